@@ -0,0 +1,127 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ 命令处理的基准测试：parseCommand解析一行输入，以及在包含大量文件的目录上执行dir命令（经过CommandProcessor.handle，
+ 包括列表缓存和提示符）。应答写入丢弃内容的输出流，控制连接是回环地址上的真实Socket
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandBenchmark {
+    /**
+     只用于解析命令的处理器，parseCommand不使用会话的其他状态
+     */
+    @State(Scope.Thread)
+    public static class Parser {
+        // 命令处理器
+        CommandProcessor processor;
+        // 要解析的一行输入
+        @Param({"dir", "get  report-2023.pdf", "cd documents"})
+        public String line;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            processor = new CommandProcessor(null, null, null, null, new User("bench", ""), null, null, null, null);
+        }
+    }
+
+    /**
+     包含entries个文件的根目录，以及在其中登录的会话
+     */
+    @State(Scope.Thread)
+    public static class Directory {
+        // 目录中的文件数
+        @Param({"100", "10000", "100000"})
+        public int entries;
+        // 是否命中目录列表缓存，为false时每次执行前使缓存失效
+        @Param({"true", "false"})
+        public boolean cached;
+
+        // 根目录
+        Path root;
+        // 控制连接
+        Loopback loopback;
+        // 命令处理器
+        CommandProcessor processor;
+
+        /**
+         创建根目录和命令处理器
+         @throws IOException 如果创建文件或者建立连接失败，则抛出该异常
+         */
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            root = Files.createTempDirectory("ftp-bench");
+            for (int i = 0; i < entries; i++) {
+                Files.createFile(root.resolve("file-" + i + ".txt"));
+            }
+            Logger.open(root.toString(), 200);
+            // 基准测试期间不回收空闲的会话
+            SessionReaper.configure(0, 0);
+            loopback = new Loopback();
+            User user = new User("bench", "");
+            processor = new CommandProcessor(new BufferedWriter(Writer.nullWriter()), root, "127.0.0.1", Logger.shared(), user,
+                    root.toString(), loopback.server().socket(), ResumeTokens.shared().issue(user, root.toString(), root),
+                    SessionReaper.shared().open("127.0.0.1", () -> { }));
+        }
+
+        /**
+         不命中缓存的测试在每次执行前使根目录的列表缓存失效
+         */
+        @Setup(Level.Invocation)
+        public void invalidate() {
+            if (!cached) {
+                DirectoryCache.shared().invalidate(root);
+            }
+        }
+
+        /**
+         关闭连接并删除根目录
+         @throws IOException 如果删除文件失败，则抛出该异常
+         */
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            loopback.close();
+            Logger.shared().close();
+            List<Path> paths;
+            try (Stream<Path> walk = Files.walk(root)) {
+                paths = walk.sorted(Comparator.reverseOrder()).toList();
+            }
+            for (Path path : paths) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public Command parseCommand(Parser parser) {
+        return parser.processor.parseCommand(parser.line);
+    }
+
+    @Benchmark
+    public boolean dir(Directory directory) throws IOException {
+        return directory.processor.handle("dir");
+    }
+}
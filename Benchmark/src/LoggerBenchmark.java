@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ 日志记录的基准测试：多个线程同时调用Logger.log，测量放入环形缓冲区的耗时，后台线程照常批量写入临时目录中的日志文件。
+ 用-t参数改变线程数可以比较不同的竞争程度
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class LoggerBenchmark {
+    // 日志文件所在的临时目录
+    private Path directory;
+
+    /**
+     在临时目录中打开日志
+     @throws IOException 如果创建日志文件失败，则抛出该异常
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("ftp-bench");
+        Logger.open(directory.toString(), 200);
+    }
+
+    /**
+     关闭日志并删除临时目录
+     @throws IOException 如果删除文件失败，则抛出该异常
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Logger.shared().close();
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.toList();
+        }
+        for (Path file : files) {
+            Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public void log() {
+        Logger.shared().log("127.0.0.1", "bench download file /srv/ftp/report.pdf\n");
+    }
+}
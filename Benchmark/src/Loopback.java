@@ -0,0 +1,49 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ 基准测试使用的一对通过本机回环地址相连的阻塞Socket通道，一端作为服务器，另一端作为客户端
+ */
+public class Loopback implements Closeable {
+    // 服务器一端
+    private final SocketChannel server;
+    // 客户端一端
+    private final SocketChannel client;
+
+    /**
+     构造函数，在回环地址的临时端口上建立连接
+     @throws IOException 如果建立连接失败，则抛出该异常
+     */
+    public Loopback() throws IOException {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            this.client = SocketChannel.open(listener.getLocalAddress());
+            this.server = listener.accept();
+        }
+    }
+
+    /**
+     @return 服务器一端的通道
+     */
+    public SocketChannel server() {
+        return server;
+    }
+
+    /**
+     @return 客户端一端的通道
+     */
+    public SocketChannel client() {
+        return client;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (client) {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ 文件传输的基准测试，在回环地址上以控制连接的格式收发不同大小的文件。
+ get由服务器发送文件（与CommandProcessor相同，经过FileCache，小文件从缓存发送，大文件零拷贝发送），
+ 对端线程读完后回送1字节确认；put由对端线程发送文件，服务器用FileTransfer.receive写入文件。
+ 每次操作的耗时除以文件大小即为吞吐量
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+    // 读取和丢弃数据的缓冲区大小
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    // 文件大小（字节），从1 KB到1 GB
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public long size;
+
+    // 临时目录
+    private Path directory;
+    // 服务器上要发送的文件
+    private Path source;
+    // 服务器接收上传的文件
+    private Path target;
+    // get使用的连接
+    private Loopback download;
+    // put使用的连接
+    private Loopback upload;
+    // 对端线程
+    private Thread downloader;
+    private Thread uploader;
+
+    /**
+     创建文件并启动对端线程
+     @throws IOException 如果创建文件或者建立连接失败，则抛出该异常
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("ftp-bench");
+        source = directory.resolve("source.bin");
+        target = directory.resolve("target.bin");
+        try (RandomAccessFile file = new RandomAccessFile(source.toFile(), "rw")) {
+            byte[] block = new byte[BUFFER_SIZE];
+            ThreadLocalRandom.current().nextBytes(block);
+            for (long written = 0; written < size; written += block.length) {
+                file.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        download = new Loopback();
+        upload = new Loopback();
+        downloader = start("bench-downloader", () -> drain(download.client()));
+        uploader = start("bench-uploader", () -> serve(upload.client()));
+    }
+
+    /**
+     关闭连接，等待对端线程结束并删除文件
+     @throws IOException 如果删除文件失败，则抛出该异常
+     @throws InterruptedException 如果等待时被中断，则抛出该异常
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        download.close();
+        upload.close();
+        downloader.join();
+        uploader.join();
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(target);
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        long sent = FileCache.shared().send(source, 0, download.server());
+        ByteBuffer ack = ByteBuffer.allocate(1);
+        readFully(download.server(), ack);
+        return sent;
+    }
+
+    @Benchmark
+    public long put() throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(1);
+        while (request.hasRemaining()) {
+            upload.server().write(request);
+        }
+        return FileTransfer.receive(upload.server(), target, 0);
+    }
+
+    /**
+     对端接收文件：读取长度，丢弃文件内容，然后回送确认，直到连接关闭
+     @param channel 对端的通道
+     @throws IOException 如果读写连接失败，则抛出该异常
+     */
+    private static void drain(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (true) {
+            long remaining = FileTransfer.readLong(channel);
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                remaining -= n;
+            }
+            ByteBuffer ack = ByteBuffer.allocate(1);
+            while (ack.hasRemaining()) {
+                channel.write(ack);
+            }
+        }
+    }
+
+    /**
+     对端发送文件：每收到1字节请求就发送一次文件，直到连接关闭
+     @param channel 对端的通道
+     @throws IOException 如果读写连接失败，则抛出该异常
+     */
+    private void serve(SocketChannel channel) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(1);
+        while (true) {
+            readFully(channel, request.clear());
+            FileTransfer.send(source, 0, channel);
+        }
+    }
+
+    /**
+     从通道读满缓冲区
+     @param channel 通道
+     @param buffer 缓冲区
+     @throws IOException 如果连接提前关闭，则抛出该异常
+     */
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     对端线程执行的任务
+     */
+    private interface Peer {
+        void run() throws IOException;
+    }
+
+    /**
+     启动对端线程，连接在测试结束时关闭，线程随之退出
+     @param name 线程名
+     @param peer 对端任务
+     @return 启动的线程
+     */
+    private static Thread start(String name, Peer peer) {
+        Thread thread = new Thread(() -> {
+            try {
+                peer.run();
+            } catch (IOException e) {
+                // 测试结束时连接关闭
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
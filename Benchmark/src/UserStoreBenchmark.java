@@ -0,0 +1,72 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ Authenticator登录时查找用户的基准测试，比较不同的用户数。find只按用户名查找；
+ authenticate是Authenticator验证密码的调用，测试的用户事先验证过一次，走最近验证成功的缓存，不重新计算PBKDF2。
+ 所有用户使用同一个预先计算的哈希，创建大量用户时不必逐个计算
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserStoreBenchmark {
+    // 测试时轮流登录的用户数，每个都需要事先计算一次PBKDF2
+    private static final int HOT_USERS = 64;
+    // 所有用户的密码
+    private static final String PASSWORD = "bench-password";
+
+    // 用户数
+    @Param({"100", "10000", "1000000"})
+    public int users;
+
+    // 用户存储
+    private UserStore store;
+    // 轮流登录的用户名，均匀分布在整个用户表中
+    private String[] names;
+    // 下一个登录的用户
+    private int next;
+
+    /**
+     创建用户存储，并验证一次轮流登录的用户
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        String hash = UserStore.hash(PASSWORD);
+        List<String[]> accounts = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            accounts.add(new String[]{"user" + i, hash});
+        }
+        store = UserStore.load(accounts, null);
+        names = new String[Math.min(HOT_USERS, users)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "user" + (long) i * users / names.length;
+            store.authenticate(names[i], PASSWORD);
+        }
+    }
+
+    @Benchmark
+    public User find() {
+        return store.find(names[next++ % names.length]);
+    }
+
+    @Benchmark
+    public User authenticate() {
+        return store.authenticate(names[next++ % names.length], PASSWORD);
+    }
+}
@@ -1,27 +1,44 @@
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- 用户身份验证类，用于验证用户的用户名和密码是否正确
+ 用户身份验证类，用于验证用户的用户名和密码是否正确。
+ 登录成功后服务器发来会话恢复令牌，开启会话恢复时按服务器地址保存在令牌文件中，
+ 下次连接时先出示令牌，恢复成功则不再询问用户名和密码，失败时照常登录
  */
 public class Authenticator {
+    // 服务器发来的会话恢复令牌的前缀
+    private static final String TOKEN_PREFIX = "Resume token: ";
     // 输入输出流
     private final BufferedReader in;
     private final BufferedWriter out;
     // 控制台输入流
     private final BufferedReader consoleIn;
+    // 服务器地址，令牌文件中按地址保存令牌
+    private final String host;
+    // 保存会话恢复令牌的文件，为null时不使用会话恢复
+    private final Path tokenFile;
 
     /**
      构造函数
      @param in 输入流，从服务器接收数据
      @param out 输出流，向服务器发送数据
      @param consoleIn 控制台输入流，用于获取用户输入的用户名和密码
+     @param host 服务器地址
+     @param tokenFile 保存会话恢复令牌的文件，为null时不使用会话恢复
      */
-    public Authenticator(BufferedReader in, BufferedWriter out, BufferedReader consoleIn) {
+    public Authenticator(BufferedReader in, BufferedWriter out, BufferedReader consoleIn, String host, Path tokenFile) {
         this.in = in;
         this.out = out;
         this.consoleIn = consoleIn;
+        this.host = host;
+        this.tokenFile = tokenFile;
     }
 
     /**
@@ -29,28 +46,38 @@ public class Authenticator {
      @throws IOException 如果在与服务器通信时出现错误，则抛出异常
      */
     public void authenticate() throws IOException {
+        // 先用保存的令牌恢复会话
+        if (resume()) {
+            return;
+        }
         // 尝试次数
         int tries = 0;
         while (true) {
             System.out.print("Username: ");
-            String username = consoleIn.readLine().trim();
+            String username = readConsole();
 
             out.write(username + "\n");
             out.flush();
 
             if ("anonymous".equals(username)) {
-                System.out.println(in.readLine());
+                String response = in.readLine();
+                exitIfClosed(response);
+                System.out.println(response);
+                if (response.startsWith("Login successful")) {
+                    readToken();
+                }
                 break;
             }
 
             System.out.print("Password: ");
-            String password = consoleIn.readLine().trim();
+            String password = readConsole();
 
             out.write(password + "\n");
             out.flush();
 
             tries++;
             String response = in.readLine();
+            exitIfClosed(response);
             if (!response.startsWith("Login successful") && tries >= 3) {
                 System.out.println(response);
                 response = in.readLine();
@@ -61,8 +88,112 @@ public class Authenticator {
 
 
             if (response.startsWith("Login successful")) {
+                readToken();
                 break;
             }
         }
     }
+
+    /**
+     出示保存的会话恢复令牌
+     @return 是否恢复成功，没有保存的令牌或者令牌无效时返回false
+     @throws IOException 如果在与服务器通信或者读写令牌文件时出现错误，则抛出异常
+     */
+    private boolean resume() throws IOException {
+        String token = loadToken();
+        if (token == null) {
+            return false;
+        }
+        out.write("resume " + token + "\n");
+        out.flush();
+        String response = in.readLine();
+        exitIfClosed(response);
+        System.out.println(response);
+        if (!response.startsWith("Session resumed")) {
+            // 令牌只能使用一次，无效的令牌不再保留；会话数已满时服务器会保留令牌，客户端也继续保存
+            if (!response.equals("User already logged in.") && !response.startsWith("Too many sessions")) {
+                saveToken(null);
+            }
+            return false;
+        }
+        readToken();
+        return true;
+    }
+
+    /**
+     读取登录成功后服务器发来的会话恢复令牌，开启会话恢复时保存
+     @throws IOException 如果在与服务器通信或者读写令牌文件时出现错误，则抛出异常
+     */
+    private void readToken() throws IOException {
+        String line = in.readLine();
+        exitIfClosed(line);
+        if (tokenFile != null && line.startsWith(TOKEN_PREFIX)) {
+            saveToken(line.substring(TOKEN_PREFIX.length()));
+        }
+    }
+
+    /**
+     从令牌文件中读取该服务器的令牌，文件中每行为“服务器地址 令牌”
+     @return 保存的令牌，没有开启会话恢复或者没有保存时返回null
+     @throws IOException 如果读取令牌文件时出现错误，则抛出异常
+     */
+    private String loadToken() throws IOException {
+        if (tokenFile == null || !Files.exists(tokenFile)) {
+            return null;
+        }
+        for (String line : Files.readAllLines(tokenFile, StandardCharsets.UTF_8)) {
+            String[] fields = line.split(" ", 2);
+            if (fields.length == 2 && fields[0].equals(host)) {
+                return fields[1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     在令牌文件中替换该服务器的令牌，其他服务器的令牌保留
+     @param token 新的令牌，为null时删除该服务器的令牌
+     @throws IOException 如果读写令牌文件时出现错误，则抛出异常
+     */
+    private void saveToken(String token) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (Files.exists(tokenFile)) {
+            for (String line : Files.readAllLines(tokenFile, StandardCharsets.UTF_8)) {
+                if (!line.startsWith(host + " ")) {
+                    lines.add(line);
+                }
+            }
+        }
+        if (token != null) {
+            lines.add(host + " " + token);
+        }
+        Files.write(tokenFile, lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     读取用户在控制台输入的一行，控制台输入结束时退出
+     @return 去掉首尾空白的一行输入
+     @throws IOException 如果读取控制台输入时出现错误，则抛出异常
+     */
+    private String readConsole() throws IOException {
+        String line = consoleIn.readLine();
+        if (line == null) {
+            System.exit(0);
+        }
+        return line.trim();
+    }
+
+    /**
+     服务器连接数已满而拒绝连接，或者已经关闭连接时，输出提示并退出
+     @param response 服务器的应答，连接关闭时为null
+     */
+    private void exitIfClosed(String response) {
+        if (response == null) {
+            System.out.println("Connection closed by server.");
+            System.exit(0);
+        } else if (response.startsWith("Too many clients")) {
+            System.out.println(response);
+            System.exit(0);
+        }
+    }
 }
@@ -1,6 +1,11 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 /**
  客户端类，用于与服务器建立连接并进行交互。
@@ -11,15 +16,19 @@ public class Client {
     private final int port;
     // 客户端的资源目录设置为当前目录下的ClientSrc目录
     private final String rootDir = System.getProperty("user.dir") + File.separator + "ClientSrc";
+    // 保存会话恢复令牌的文件，没有开启会话恢复时为null
+    private final Path tokenFile;
 
     /**
      * 构造函数，用于初始化客户端类的对象。
      * @param host 服务器的IP地址
      * @param port 服务器监听的端口号
+     * @param resume 是否开启会话恢复，开启时保存服务器发来的令牌，下次连接时用令牌代替用户名和密码
      */
-    public Client(String host, int port) {
+    public Client(String host, int port, boolean resume) {
         this.host = host;
         this.port = port;
+        this.tokenFile = resume ? Paths.get(System.getProperty("user.dir"), "resume.txt") : null;
     }
 
     /**
@@ -27,19 +36,23 @@ public class Client {
      */
     public void start() {
         try (
-                // 与服务器建立连接
-                Socket socket = new Socket(host, port);
+                // 与服务器建立连接，通过SocketChannel连接以便文件零拷贝传输
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                Socket socket = channel.socket();
                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
                 BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
                 BufferedReader consoleIn = new BufferedReader(new InputStreamReader(System.in))
         ) {
             // 用户登录验证过程
-            Authenticator authenticator = new Authenticator(in, out, consoleIn);
+            Authenticator authenticator = new Authenticator(in, out, consoleIn, host, tokenFile);
             authenticator.authenticate();
 
             // 进入命令提示符状态
-            CommandPrompt commandPrompt = new CommandPrompt(in, out, consoleIn, rootDir);
+            CommandPrompt commandPrompt = new CommandPrompt(in, out, consoleIn, rootDir, channel);
             commandPrompt.open();
+        } catch (EOFException e) {
+            // 服务器关闭了连接
+            System.out.println(e.getMessage());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -47,7 +60,7 @@ public class Client {
 
     /**
      * 客户端的主函数，用于创建客户端类的对象，并启动客户端。
-     * @param args 命令行参数
+     * @param args 命令行参数，带有--resume时开启会话恢复
      */
     public static void main(String[] args) {
         //输入服务器的IP地址
@@ -59,7 +72,7 @@ public class Client {
         } catch (IOException e) {
             e.printStackTrace();
         }
-        Client client = new Client(host, 8888);
+        Client client = new Client(host, 8888, Arrays.asList(args).contains("--resume"));
         client.start();
     }
 }
\ No newline at end of file
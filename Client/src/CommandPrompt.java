@@ -1,16 +1,52 @@
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
 
 /**
  命令提示符类，用于处理用户的命令请求并与服务器进行交互
  */
 public class CommandPrompt {
-    // 输入输出流
+    // 流水线模式下最多同时等待应答的命令数
+    private static final int BATCH_WINDOW = 64;
+    // 输入输出流，切换到分帧模式后输出流替换为帧输出流，写出的应答作为回答帧发送
     private final BufferedReader in;
-    private final BufferedWriter out;
+    private BufferedWriter out;
     // 控制台输入流
     private final BufferedReader consoleIn;
+    // 控制台输出流，显示服务器的应答和提示
+    private final PrintStream console;
     // 根目录
     private final String rootDir;
+    // 与服务器连接的通道，用于收发文件
+    private final SocketChannel channel;
+    // 是否使用被动模式，通过独立的数据连接在后台传输文件
+    private boolean passive = false;
+    // 是否开启压缩模式，服务器确认compress命令后设置
+    private boolean compress = false;
+    // 是否开启增量同步模式，服务器确认delta命令后设置
+    private boolean delta = false;
+    // 是否开启去重上传模式，服务器确认dedup命令后设置
+    private boolean dedup = false;
+    // 是否开启校验模式，服务器确认verify命令后设置
+    private boolean verify = false;
+    // 校验模式下是否同时比较SHA-256
+    private boolean sha256 = false;
+    // 断点续传的位置，服务器确认rest命令后设置，只对下一次get或put有效
+    private long restartOffset = 0;
+    // 被动模式下每次传输使用的数据连接数，服务器确认parallel命令后设置
+    private int streams = 1;
+    // 分帧模式下的帧输出流和帧读取器，文本模式下为null
+    private FrameWriter framer;
+    private FrameReader frames;
+    // 分帧模式下最近的提示符，提示符帧不带提示符时沿用
+    private String prompt;
+    // 分帧模式下尚未按行读完的应答帧的负载，以及下一行的开始位置
+    private String reply;
+    private int replyPosition;
 
     /**
      构造函数
@@ -18,12 +54,111 @@ public class CommandPrompt {
      @param out 输出流，向服务器发送数据
      @param consoleIn 控制台输入流，用于获取用户输入的命令
      @param rootDir 客户端资源文件夹的路径
+     @param channel 与服务器连接的通道，用于收发文件
      */
-    public CommandPrompt(BufferedReader in, BufferedWriter out, BufferedReader consoleIn, String rootDir) {
+    public CommandPrompt(BufferedReader in, BufferedWriter out, BufferedReader consoleIn, String rootDir, SocketChannel channel) {
+        this(in, out, consoleIn, System.out, rootDir, channel);
+    }
+
+    /**
+     构造函数，使用指定的控制台，负载生成器等没有控制台的场合用它代替标准输入输出
+     @param in 输入流，从服务器接收数据
+     @param out 输出流，向服务器发送数据
+     @param consoleIn 控制台输入流，用于获取用户输入的命令和确认
+     @param console 控制台输出流，显示服务器的应答和提示
+     @param rootDir 客户端资源文件夹的路径
+     @param channel 与服务器连接的通道，用于收发文件
+     */
+    public CommandPrompt(BufferedReader in, BufferedWriter out, BufferedReader consoleIn, PrintStream console, String rootDir,
+                         SocketChannel channel) {
         this.in = in;
         this.out = out;
         this.consoleIn = consoleIn;
+        this.console = console;
         this.rootDir = rootDir;
+        this.channel = channel;
+    }
+
+    /**
+     读取服务器的一行应答
+     @return 一行应答
+     @throws EOFException 如果服务器已经关闭连接（例如会话空闲超时被回收），则抛出该异常
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    private String readLine() throws IOException {
+        if (frames != null) {
+            return readFramedLine();
+        }
+        String line = in.readLine();
+        if (line == null) {
+            throw new EOFException("Connection closed by server.");
+        }
+        return line;
+    }
+
+    /**
+     分帧模式下读取一行应答，提示符帧作为一行提示符返回，这样各个命令的处理过程在两种模式下相同
+     @return 应答帧中的下一行，或者提示符
+     @throws IOException 如果连接已经关闭，或者在与服务器通信时出现错误，则抛出异常
+     */
+    private String readFramedLine() throws IOException {
+        if (reply == null && !readReply()) {
+            return prompt;
+        }
+        int end = reply.indexOf('\n', replyPosition);
+        String line = reply.substring(replyPosition, end < 0 ? reply.length() : end);
+        replyPosition = end < 0 ? reply.length() : end + 1;
+        if (replyPosition >= reply.length()) {
+            reply = null;
+        }
+        return line;
+    }
+
+    /**
+     分帧模式下读取一帧，提示符帧带有提示符时更新提示符
+     @return 是否读到应答帧，读到提示符帧时返回false，表示命令的应答已经结束
+     @throws IOException 如果连接已经关闭，或者在与服务器通信时出现错误，则抛出异常
+     */
+    private boolean readReply() throws IOException {
+        if (!frames.read(channel)) {
+            throw new EOFException("Connection closed by server.");
+        }
+        if (frames.opcode() == Frame.PROMPT) {
+            if (!frames.payload().isEmpty()) {
+                prompt = frames.payload();
+            }
+            return false;
+        }
+        reply = frames.payload();
+        replyPosition = 0;
+        return true;
+    }
+
+    /**
+     向服务器发送一条命令。分帧模式下以操作码表示命令，负载是命令的第一个参数，与服务器在文本模式下解析的参数相同；
+     不认识的命令原样作为负载发送，由服务器回答“Invalid command.”
+     @param input 用户输入的命令
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void send(String input) throws IOException {
+        if (framer == null) {
+            out.write(input + "\n");
+            out.flush();
+            return;
+        }
+        String[] tokens = input.split("\\s+");
+        int opcode = Frame.opcode(tokens[0]);
+        framer.frame(opcode, Frame.OK, opcode == Frame.UNKNOWN ? input : tokens.length > 1 ? tokens[1] : "");
+    }
+
+    /**
+     读取用户对覆盖文件的确认
+     @return 去掉首尾空白的一行输入，控制台输入结束时视为N
+     @throws IOException 如果读取控制台输入时出现错误，则抛出异常
+     */
+    private String readAnswer() throws IOException {
+        String line = consoleIn.readLine();
+        return line == null ? "N" : line.trim();
     }
 
     /**
@@ -31,13 +166,25 @@ public class CommandPrompt {
      @throws IOException 如果在与服务器通信时出现错误，则抛出异常
      */
     public void dirOrCd() throws IOException {
-        String response = in.readLine();
+        // 分帧模式下应答以提示符帧结束，不需要检查行尾
+        if (frames != null) {
+            while (reply != null) {
+                console.println(readFramedLine());
+            }
+            while (readReply()) {
+                console.print(reply);
+                reply = null;
+            }
+            console.print(prompt);
+            return;
+        }
+        String response = readLine();
         // 读取服务器的响应并输出，直到遇到某行以“$ "结尾
         while (!response.endsWith("$ ")) {
-            System.out.println(response);
-            response = in.readLine();
+            console.println(response);
+            response = readLine();
         }
-        System.out.print(response);
+        console.print(response);
     }
 
     /**
@@ -46,50 +193,87 @@ public class CommandPrompt {
      @throws IOException 如果在与服务器通信时出现错误，则抛出异常
      */
     public void get(String input) throws IOException {
-        String response = in.readLine();
-        if (response.equals("Cannot download directory.")) {
-            System.out.println(response);
-            System.out.print(in.readLine());
+        long offset = restartOffset;
+        restartOffset = 0;
+        String response = readLine();
+        // 服务器拒绝下载（目录、或者需要先开启被动模式）时输出原因
+        if (!response.equals("OK")) {
+            console.println(response);
+            console.print(readLine());
             return;
         }
-        response = in.readLine();
-        if (response.startsWith("File not exists")) {
-            System.out.println(response);
-            System.out.print(in.readLine());
+        response = readLine();
+        // 服务器上文件不存在或者续传位置超出文件长度
+        if (!response.equals("File exists.")) {
+            console.println(response);
+            console.print(readLine());
             return;
         }
         String[] inputs = input.split("\\s+");
         String filename = inputs[1];
-        // 假如客户端已经存在同名文件，询问是否覆盖
         File file = new File(rootDir + File.separator + filename);
-        if (file.exists()) {
+        // 本地文件不存在或者短于续传位置时不能续传，回答N使服务器放弃发送
+        if (offset > 0 && (!file.isFile() || file.length() < offset)) {
+            out.write("File already exists.\n");
+            out.write("N\n");
+            out.flush();
+            console.println("Local file is shorter than restart offset " + offset + ".");
+            console.print(readLine());
+            return;
+        }
+        // 断点续传时直接在已有文件的offset处继续写入，不询问是否覆盖
+        if (offset > 0) {
+            out.write("File already exists.\n");
+            out.write("Y\n");
+            out.flush();
+            console.println("Resuming download at byte " + offset + ".");
+        } else if (file.exists()) {
+            // 假如客户端已经存在同名文件，询问是否覆盖
             out.write("File already exists.\n");
             out.flush();
-            System.out.print("File already exists. Do you want to overwrite it? (Y/N) ");
-            BufferedReader consoleIn = new BufferedReader(new InputStreamReader(System.in));
-            String answer = consoleIn.readLine();
+            console.print("File already exists. Do you want to overwrite it? (Y/N) ");
+            String answer = readAnswer();
             //向服务器发送用户的选择
             out.write(answer + "\n");
             out.flush();
             //假如回应是“N”或者”n"，则不下载文件
             if (answer.equals("N") || answer.equals("n")) {
-                System.out.print(in.readLine());
+                console.print(readLine());
                 return;
             }
         } else {
             out.write("File not exists.\n");
             out.flush();
         }
-        try (BufferedWriter fileOut = new BufferedWriter(new FileWriter(file))) {
-            String line = in.readLine();
-            while (!line.equals("EOF")) {
-                fileOut.write(line + "\n");
-                fileOut.flush();
-                line = in.readLine();
-            }
+        // 被动模式下连接服务器的数据端口，在后台接收文件
+        if (passive && streams > 1) {
+            int port = DataConnection.parsePort(readLine());
+            ParallelTransfer transfer = new ParallelTransfer(file.toPath(), offset, streams);
+            transferInBackground(port, streams, transfer::receiveRange,
+                    "File downloaded: " + filename, "File download failed: " + filename);
+            console.print(readLine());
+            return;
+        } else if (passive) {
+            int port = DataConnection.parsePort(readLine());
+            transferInBackground(port, 1, dataChannel -> {
+                ChecksumTransfer.Result result = receive(dataChannel, file, offset);
+                if (result != null && !result.verified()) {
+                    throw new IOException("Checksum mismatch (expected " + result.expected() + ", got " + result.actual() + ")");
+                }
+            }, "File downloaded: " + filename, "File download failed: " + filename);
+            console.print(readLine());
+            return;
         }
-        System.out.println("File downloaded.");
-        System.out.print(in.readLine());
+        // 以原始字节接收文件
+        ChecksumTransfer.Result result = receive(channel, file, offset);
+        if (result == null) {
+            console.println("File downloaded.");
+        } else if (result.verified()) {
+            console.println("File downloaded. Checksum verified (" + result.actual() + ").");
+        } else {
+            console.println("Checksum mismatch (expected " + result.expected() + ", got " + result.actual() + ").");
+        }
+        console.print(readLine());
     }
 
     /**
@@ -98,10 +282,13 @@ public class CommandPrompt {
      @throws IOException 如果在与服务器通信时出现错误，则抛出异常
      */
     public void put(String input) throws IOException {
-        String response = in.readLine();
-        if (response.startsWith("Access denied.")) {
-            System.out.println(response);
-            System.out.print(in.readLine());
+        long offset = restartOffset;
+        restartOffset = 0;
+        String response = readLine();
+        // 服务器拒绝上传（无权限、或者需要先开启被动模式）时输出原因
+        if (!response.equals("OK")) {
+            console.println(response);
+            console.print(readLine());
             return;
         }
         String[] inputs = input.split("\\s+");
@@ -111,7 +298,7 @@ public class CommandPrompt {
         if (file.isDirectory()) {
             out.write("Cannot upload directory.\n");
             out.flush();
-            System.out.print(in.readLine());
+            console.print(readLine());
             return;
         } else {
             out.write("OK.\n");
@@ -121,36 +308,509 @@ public class CommandPrompt {
         if (!file.exists()) {
             out.write("File not exists.\n");
             out.flush();
-            System.out.println("File not exists.");
-            System.out.print(in.readLine());
+            console.println("File not exists.");
+            console.print(readLine());
             return;
         } else {
             out.write("File exists.\n");
             out.flush();
         }
         //假如服务器上已经存在同名文件，询问用户是否覆盖
-        response = in.readLine();
+        response = readLine();
         if (response.startsWith("File exists.")) {
-            System.out.print(response);
-            String answer = new BufferedReader(new InputStreamReader(System.in)).readLine().trim();
+            console.print(response);
+            String answer = readAnswer();
             out.write(answer + "\n");
             out.flush();
             if (answer.equals("N")) {
-                System.out.print(in.readLine());
+                console.print(readLine());
+                return;
+            }
+            // 等待服务器确认覆盖后再发送文件
+            readLine();
+        } else if (!response.startsWith("Resuming upload") && !response.equals("File not exists.")) {
+            // 续传位置超出服务器上文件的长度
+            console.println(response);
+            console.print(readLine());
+            return;
+        }
+        // 被动模式下连接服务器的数据端口，在后台发送文件并等待服务器确认
+        if (passive && streams > 1) {
+            int port = DataConnection.parsePort(readLine());
+            ParallelTransfer transfer = new ParallelTransfer(file.toPath(), offset, streams);
+            transferInBackground(port, streams, dataChannel -> {
+                transfer.sendNextRange(dataChannel);
+                DataConnection.readAck(dataChannel);
+            }, "File uploaded: " + filename, "File upload failed: " + filename);
+            console.print(readLine());
+            return;
+        } else if (passive) {
+            int port = DataConnection.parsePort(readLine());
+            transferInBackground(port, 1, dataChannel -> {
+                send(file, offset, dataChannel);
+                DataConnection.readAck(dataChannel);
+            }, "File uploaded: " + filename, "File upload failed: " + filename);
+            console.print(readLine());
+            return;
+        }
+        // 以原始字节发送文件
+        send(file, offset, channel);
+        console.println(readLine());
+        console.print(readLine());
+    }
+
+    /**
+     处理mget命令，把服务器上的整个目录作为一个归档流下载到客户端资源文件夹
+     @param input 用户输入的mget命令及相关参数
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void mget(String input) throws IOException {
+        String response = readLine();
+        // 服务器拒绝下载（目录不存在、或者需要先开启被动模式）时输出原因
+        if (!response.equals("OK")) {
+            console.println(response);
+            console.print(readLine());
+            return;
+        }
+        String[] inputs = input.split("\\s+");
+        String dirname = inputs[1];
+        File dir = new File(rootDir + File.separator + dirname);
+        if (dir.exists() && !dir.isDirectory()) {
+            // 本地已有同名文件，不能下载
+            out.write("Directory already exists.\n");
+            out.write("N\n");
+            out.flush();
+            console.println("Cannot download directory over a file.");
+            console.print(readLine());
+            return;
+        } else if (dir.exists()) {
+            // 假如客户端已经存在同名目录，询问是否合并，同名文件会被覆盖
+            out.write("Directory already exists.\n");
+            out.flush();
+            console.print("Directory already exists. Merge and overwrite files? (Y/N) ");
+            String answer = readAnswer();
+            out.write(answer + "\n");
+            out.flush();
+            if (answer.equals("N") || answer.equals("n")) {
+                console.print(readLine());
                 return;
             }
+        } else {
+            out.write("Directory not exists.\n");
+            out.flush();
+        }
+        // 被动模式下连接服务器的数据端口，在后台接收归档
+        if (passive) {
+            int port = DataConnection.parsePort(readLine());
+            transferInBackground(port, 1, dataChannel -> ArchiveTransfer.receive(dataChannel, dir.toPath(), this::receiveEntry),
+                    "Directory downloaded: " + dirname, "Directory download failed: " + dirname);
+            console.print(readLine());
+            return;
+        }
+        ArchiveTransfer.Summary summary = ArchiveTransfer.receive(channel, dir.toPath(), this::receiveEntry);
+        console.println("Directory downloaded: " + summary.files() + " files.");
+        console.print(readLine());
+    }
+
+    /**
+     处理mput命令，把客户端资源文件夹中的整个目录作为一个归档流上传到服务器
+     @param input 用户输入的mput命令及相关参数
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void mput(String input) throws IOException {
+        String response = readLine();
+        // 服务器拒绝上传（无权限、或者需要先开启被动模式）时输出原因
+        if (!response.equals("OK")) {
+            console.println(response);
+            console.print(readLine());
+            return;
+        }
+        String[] inputs = input.split("\\s+");
+        String dirname = inputs[1];
+        File dir = new File(rootDir + File.separator + dirname);
+        if (!dir.isDirectory()) {
+            out.write("Not a directory.\n");
+            out.flush();
+            console.println("Directory not exists.");
+            console.print(readLine());
+            return;
+        } else {
+            out.write("OK.\n");
+            out.flush();
         }
-        try (BufferedReader fileIn = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = fileIn.readLine()) != null) {
-                out.write(line + "\n");
-                out.flush();
+        // 假如服务器上已经存在同名目录，询问用户是否合并
+        response = readLine();
+        if (response.startsWith("Directory exists.")) {
+            console.print(response);
+            String answer = readAnswer();
+            out.write(answer + "\n");
+            out.flush();
+            if (answer.equals("N")) {
+                console.print(readLine());
+                return;
             }
+            // 等待服务器确认合并后再发送归档
+            readLine();
+        } else if (!response.equals("Directory not exists.")) {
+            console.println(response);
+            console.print(readLine());
+            return;
+        }
+        // 被动模式下连接服务器的数据端口，在后台发送归档并等待服务器确认
+        if (passive) {
+            int port = DataConnection.parsePort(readLine());
+            transferInBackground(port, 1, dataChannel -> {
+                ArchiveTransfer.send(dir.toPath(), dataChannel, this::sendEntry);
+                DataConnection.readAck(dataChannel);
+            }, "Directory uploaded: " + dirname, "Directory upload failed: " + dirname);
+            console.print(readLine());
+            return;
+        }
+        ArchiveTransfer.send(dir.toPath(), channel, this::sendEntry);
+        console.println(readLine());
+        console.print(readLine());
+    }
+
+    /**
+     发送归档中一个文件的内容，压缩模式下经过压缩发送
+     @param filePath 要发送的文件路径
+     @param dataChannel 控制连接或数据连接的通道
+     @throws IOException 如果读取文件或写入通道时发生IO异常，则抛出该异常
+     */
+    private void sendEntry(Path filePath, SocketChannel dataChannel) throws IOException {
+        if (compress) {
+            CompressedTransfer.send(filePath, 0, dataChannel);
+        } else {
+            FileTransfer.send(filePath, 0, dataChannel);
         }
-        out.write("EOF\n");
-        out.flush();
-        System.out.println(in.readLine());
-        System.out.print(in.readLine());
+    }
+
+    /**
+     接收归档中一个文件的内容，压缩模式下接收压缩的数据
+     @param dataChannel 控制连接或数据连接的通道
+     @param filePath 保存文件的路径
+     @throws IOException 如果读取通道或写入文件时发生IO异常，则抛出该异常
+     */
+    private void receiveEntry(SocketChannel dataChannel, Path filePath) throws IOException {
+        if (compress) {
+            CompressedTransfer.receive(dataChannel, filePath, 0);
+        } else {
+            FileTransfer.receive(dataChannel, filePath, 0);
+        }
+    }
+
+    /**
+     在通道上发送文件，去重上传模式下只发送服务器去重存储中没有的块，
+     增量同步模式下只发送服务器旧版本中没有的部分，压缩模式下经过压缩发送
+     @param file 要发送的文件
+     @param offset 开始发送的位置
+     @param dataChannel 控制连接或数据连接的通道
+     @throws IOException 如果读取文件或写入通道时发生IO异常，则抛出该异常
+     */
+    private void send(File file, long offset, SocketChannel dataChannel) throws IOException {
+        if (dedup && offset == 0) {
+            DedupTransfer.send(file.toPath(), dataChannel);
+        } else if (delta && offset == 0) {
+            DeltaTransfer.send(file.toPath(), dataChannel);
+        } else if (compress) {
+            CompressedTransfer.send(file.toPath(), offset, dataChannel);
+        } else if (verify) {
+            ChecksumTransfer.send(file.toPath(), offset, dataChannel, sha256);
+        } else {
+            FileTransfer.send(file.toPath(), offset, dataChannel);
+        }
+    }
+
+    /**
+     从通道接收文件，增量同步模式下以本地已有的文件为旧版本重建新文件，压缩模式下接收压缩的数据，
+     校验模式下边收边计算校验和并与服务器的比较
+     @param dataChannel 控制连接或数据连接的通道
+     @param file 保存文件的位置
+     @param offset 开始写入的位置
+     @return 校验模式下的校验结果，其他模式返回null
+     @throws IOException 如果读取通道或写入文件时发生IO异常，则抛出该异常
+     */
+    private ChecksumTransfer.Result receive(SocketChannel dataChannel, File file, long offset) throws IOException {
+        if (delta && offset == 0) {
+            DeltaTransfer.receive(dataChannel, file.toPath());
+        } else if (compress) {
+            CompressedTransfer.receive(dataChannel, file.toPath(), offset);
+        } else if (verify) {
+            return ChecksumTransfer.receive(dataChannel, file.toPath(), offset);
+        } else {
+            FileTransfer.receive(dataChannel, file.toPath(), offset);
+        }
+        return null;
+    }
+
+    /**
+     处理rest命令，服务器确认后记录下一次get或put的断点续传位置
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void rest() throws IOException {
+        String response = readLine();
+        setRestartOffset(response);
+        console.println(response);
+        console.print(readLine());
+    }
+
+    /**
+     处理reget命令，以本地已有文件的长度为续传位置，从服务器继续下载剩余部分
+     @param input 用户输入的reget命令及相关参数
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void reget(String input) throws IOException {
+        String filename = input.split("\\s+")[1];
+        File file = new File(rootDir + File.separator + filename);
+        restartAt(file.exists() ? file.length() : 0);
+        send("get " + filename);
+        get("get " + filename);
+    }
+
+    /**
+     处理reput命令，先查询服务器上已有部分的长度作为续传位置，再继续上传剩余部分
+     @param input 用户输入的reput命令及相关参数
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void reput(String input) throws IOException {
+        String filename = input.split("\\s+")[1];
+        send("size " + filename);
+        String response = readLine();
+        readLine();
+        long offset = response.startsWith("Size: ") ? Long.parseLong(response.substring("Size: ".length())) : 0;
+        restartAt(offset);
+        send("put " + filename);
+        put("put " + filename);
+    }
+
+    /**
+     向服务器发送rest命令设置断点续传位置，不输出服务器的应答
+     @param offset 断点续传位置
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    private void restartAt(long offset) throws IOException {
+        send("rest " + offset);
+        setRestartOffset(readLine());
+        readLine();
+    }
+
+    /**
+     根据服务器对rest命令的应答“Restarting at N.”设置断点续传位置
+     @param response 服务器的应答
+     */
+    private void setRestartOffset(String response) {
+        if (response.startsWith("Restarting at ")) {
+            restartOffset = Long.parseLong(response.substring("Restarting at ".length(), response.length() - 1));
+        }
+    }
+
+    /**
+     处理pasv命令，根据服务器的应答切换被动模式
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void pasv() throws IOException {
+        String response = readLine();
+        passive = response.startsWith("Passive mode on");
+        console.println(response);
+        console.print(readLine());
+    }
+
+    /**
+     处理compress命令，根据服务器的应答切换压缩模式
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void compress() throws IOException {
+        String response = readLine();
+        compress = response.startsWith("Compression on");
+        console.println(response);
+        console.print(readLine());
+    }
+
+    /**
+     处理delta命令，根据服务器的应答切换增量同步模式
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void delta() throws IOException {
+        String response = readLine();
+        delta = response.startsWith("Delta sync on");
+        console.println(response);
+        console.print(readLine());
+    }
+
+    /**
+     处理dedup命令，根据服务器的应答切换去重上传模式
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void dedup() throws IOException {
+        String response = readLine();
+        dedup = response.startsWith("Dedup upload on");
+        console.println(response);
+        console.print(readLine());
+    }
+
+    /**
+     处理verify命令，根据服务器的应答切换校验模式
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void verify() throws IOException {
+        String response = readLine();
+        setVerify(response);
+        console.println(response);
+        console.print(readLine());
+    }
+
+    /**
+     根据服务器对verify命令的应答设置校验模式
+     @param response 服务器的应答
+     */
+    private void setVerify(String response) {
+        verify = response.startsWith("Checksum verification on");
+        sha256 = verify && response.contains("SHA-256");
+    }
+
+    /**
+     处理parallel命令，服务器确认后记录被动模式下每次传输使用的数据连接数
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void parallel() throws IOException {
+        String response = readLine();
+        if (response.startsWith("Parallel streams: ")) {
+            streams = Integer.parseInt(response.substring("Parallel streams: ".length(), response.length() - 1));
+        }
+        console.println(response);
+        console.print(readLine());
+    }
+
+    /**
+     处理batch命令，从客户端资源文件夹中的脚本文件逐行读取命令，以流水线模式发给服务器。
+     每条命令加上“#序号 ”标签，最多BATCH_WINDOW条命令同时等待应答，服务器按顺序返回带相同标签的应答，
+     一批命令只需要大约一次往返时间
+     @param input 用户输入的batch命令及相关参数
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void batch(String input) throws IOException {
+        // 带标签的命令只能在文本模式下发送
+        if (frames != null) {
+            console.println("Batch is not available in framed mode.");
+            console.print(prompt);
+            return;
+        }
+        String[] inputs = input.split("\\s+");
+        File file = new File(rootDir + File.separator + (inputs.length > 1 ? inputs[1] : ""));
+        List<String> commands = inputs.length < 2 || !file.isFile() ? List.of() : Files.readAllLines(file.toPath())
+                .stream().map(String::trim).filter(command -> !command.isEmpty()).toList();
+        // 脚本不存在或者为空时，发送不带参数的size命令取得服务器的提示符，不改变会话状态
+        if (commands.isEmpty()) {
+            out.write("size\n");
+            out.flush();
+            readLine();
+            console.println(file.isFile() ? "No commands." : "File not exists.");
+            console.print(readLine());
+            return;
+        }
+        // 已发出但尚未收到应答的命令
+        ArrayDeque<String> waiting = new ArrayDeque<>();
+        String prompt = null;
+        int sent = 0;
+        int received = 0;
+        while (received < commands.size()) {
+            // 在窗口允许的范围内连续发出命令，一次性写出
+            while (sent < commands.size() && waiting.size() < BATCH_WINDOW) {
+                out.write("#" + sent + " " + commands.get(sent) + "\n");
+                waiting.add(commands.get(sent));
+                sent++;
+            }
+            out.flush();
+            // 读取最早发出的命令的应答，直到带相同标签的提示符
+            String command = waiting.poll();
+            String tag = "#" + received + " ";
+            console.println("> " + command);
+            String first = null;
+            while (true) {
+                String response = readLine();
+                if (response == null || !response.startsWith(tag)) {
+                    throw new IOException("Unexpected response: " + response);
+                }
+                response = response.substring(tag.length());
+                if (response.endsWith("$ ")) {
+                    prompt = response;
+                    break;
+                }
+                if (first == null) {
+                    first = response;
+                }
+                console.println(response);
+            }
+            applyBatchResponse(command, first);
+            received++;
+        }
+        console.print(prompt);
+    }
+
+    /**
+     流水线中的pasv、compress、delta、dedup、verify、rest和parallel命令同样会改变客户端的状态，根据应答的第一行更新
+     @param command 发出的命令
+     @param response 应答的第一行
+     */
+    private void applyBatchResponse(String command, String response) {
+        if (response == null) {
+            return;
+        }
+        if (command.startsWith("pasv")) {
+            passive = response.startsWith("Passive mode on");
+        } else if (command.startsWith("compress")) {
+            compress = response.startsWith("Compression on");
+        } else if (command.startsWith("delta")) {
+            delta = response.startsWith("Delta sync on");
+        } else if (command.startsWith("dedup")) {
+            dedup = response.startsWith("Dedup upload on");
+        } else if (command.startsWith("verify")) {
+            setVerify(response);
+        } else if (command.startsWith("rest")) {
+            setRestartOffset(response);
+        } else if (command.startsWith("parallel") && response.startsWith("Parallel streams: ")) {
+            streams = Integer.parseInt(response.substring("Parallel streams: ".length(), response.length() - 1));
+        }
+    }
+
+    /**
+     在后台线程中建立到服务器数据端口的连接并执行传输，命令提示符可以继续处理其他命令
+     @param port 服务器的数据端口
+     @param count 数据连接数
+     @param task 在每个数据连接上执行的传输任务
+     @param success 传输成功时输出的提示
+     @param failure 传输失败时输出的提示
+     */
+    private void transferInBackground(int port, int count, DataConnection.Task task, String success, String failure) {
+        console.println("Transfer started in background.");
+        new Thread(() -> {
+            try {
+                DataConnection.connectAll(channel.socket().getInetAddress(), port, count, task);
+                console.println();
+                console.println(success);
+            } catch (IOException e) {
+                console.println();
+                console.println(failure + " (" + e.getMessage() + ")");
+            }
+        }).start();
+    }
+
+    /**
+     处理framed命令，服务器确认后切换到分帧模式。切换前的最后一个提示符仍是文本行，
+     服务器在收到下一条命令之前不会再发送数据，输入流的缓冲区中没有剩余的内容
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    public void framed() throws IOException {
+        String response = readLine();
+        console.println(response);
+        String line = readLine();
+        if (frames == null && response.equals("Framed mode on.")) {
+            framer = new FrameWriter(Channels.newOutputStream(channel), Frame.ANSWER);
+            out = new BufferedWriter(framer);
+            frames = new FrameReader(Frame.MAX_PAYLOAD_LENGTH);
+            prompt = line;
+        }
+        console.print(line);
     }
 
     /**
@@ -158,8 +818,8 @@ public class CommandPrompt {
      * @throws IOException 如果在与服务器通信时出现错误，则抛出异常
      */
     public void exit() throws IOException {
-        String response = in.readLine();
-        System.out.print(response);
+        String response = readLine();
+        console.print(response);
     }
 
     /**
@@ -167,26 +827,60 @@ public class CommandPrompt {
      * @throws IOException 如果在与服务器通信时出现错误，则抛出异常
      */
     public void open() throws IOException {
-        System.out.print(in.readLine());
+        console.print(readLine());
         while (true) {
-            String input = consoleIn.readLine().trim();
+            // 控制台输入结束时与exit命令一样退出，服务器立即释放会话
+            String line = consoleIn.readLine();
+            String input = line == null ? "exit" : line.trim();
 
-            out.write(input + "\n");
-            out.flush();
+            // reget和reput由客户端转换为rest命令加上get或put命令
+            if (input.startsWith("reget")) {
+                reget(input);
+                continue;
+            } else if (input.startsWith("reput")) {
+                reput(input);
+                continue;
+            } else if (input.startsWith("batch")) {
+                batch(input);
+                continue;
+            }
+            send(input);
             if (input.startsWith("dir")) {
                 dirOrCd();
             } else if (input.startsWith("cd")) {
                 dirOrCd();
+            } else if (input.startsWith("who")) {
+                dirOrCd();
             } else if (input.startsWith("get")) {
                 get(input);
             } else if (input.startsWith("put")) {
                 put(input);
+            } else if (input.startsWith("mget")) {
+                mget(input);
+            } else if (input.startsWith("mput")) {
+                mput(input);
+            } else if (input.startsWith("rest")) {
+                rest();
+            } else if (input.startsWith("parallel")) {
+                parallel();
+            } else if (input.startsWith("pasv")) {
+                pasv();
+            } else if (input.startsWith("compress")) {
+                compress();
+            } else if (input.startsWith("delta")) {
+                delta();
+            } else if (input.startsWith("dedup")) {
+                dedup();
+            } else if (input.startsWith("verify")) {
+                verify();
+            } else if (input.startsWith("framed")) {
+                framed();
             } else if (input.startsWith("exit")) {
                 exit();
                 break;
             } else {
-                System.out.println(in.readLine());
-                System.out.print(in.readLine());
+                console.println(readLine());
+                console.print(readLine());
             }
         }
     }
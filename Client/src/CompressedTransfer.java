@@ -0,0 +1,269 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ 压缩传输类，在开启压缩模式时代替FileTransfer收发文件。
+ 头部为8字节的原始数据长度和1字节的编码方式，编码方式为原始字节时后面与FileTransfer相同；
+ 为Deflate时后面是若干个“4字节长度 + 压缩数据”的数据帧，直到解压出全部原始数据。
+ 已经压缩过的文件类型（按扩展名判断，或者第一个数据块的熵接近8位/字节）不再压缩。
+ Deflater、Inflater和堆外缓冲区放在池中重复使用，压缩和解压直接在堆外缓冲区上进行
+ */
+public class CompressedTransfer {
+    // 编码方式：原始字节
+    private static final byte RAW = 0;
+    // 编码方式：Deflate数据帧
+    private static final byte DEFLATE = 1;
+    // 读取文件的数据块大小，也是单个数据帧的最大长度
+    private static final int BLOCK_SIZE = 256 * 1024;
+    // 判断是否值得压缩时采样的字节数
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // 熵不低于该值（位/字节）的数据视为已经压缩过
+    private static final double ENTROPY_THRESHOLD = 7.5;
+    // 已经压缩过的文件类型
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "jar", "war",
+            "png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "m4a", "mkv", "avi", "mov",
+            "pdf", "docx", "xlsx", "pptx");
+    // 可重复使用的压缩器、解压器和缓冲区
+    private static final ConcurrentLinkedQueue<Codec> POOL = new ConcurrentLinkedQueue<>();
+
+    /**
+     一次传输使用的压缩器、解压器和堆外缓冲区
+     */
+    private static class Codec {
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final Inflater inflater = new Inflater();
+        private final ByteBuffer input = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        private final ByteBuffer output = ByteBuffer.allocateDirect(Integer.BYTES + BLOCK_SIZE);
+    }
+
+    private CompressedTransfer() {
+    }
+
+    /**
+     发送文件，值得压缩时以Deflate数据帧发送，否则以原始字节发送
+     @param filePath 要发送的文件路径
+     @param offset 开始发送的位置
+     @param channel 连接到对端的Socket通道
+     @return 发送的原始数据字节数
+     @throws IOException 如果offset超出文件长度，或者读取文件、写入通道时发生IO异常，则抛出该异常
+     */
+    public static long send(Path filePath, long offset, SocketChannel channel) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            if (offset < 0 || offset > size) {
+                throw new IOException("Restart offset beyond end of file.");
+            }
+            long length = size - offset;
+            boolean deflate = worthCompressing(filePath, fileChannel, offset);
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES + 1).putLong(length).put(deflate ? DEFLATE : RAW).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            if (!deflate) {
+                FileTransfer.sendRange(fileChannel, offset, length, channel);
+                return length;
+            }
+            Codec codec = acquire();
+            try {
+                long position = offset;
+                while (position < size) {
+                    ByteBuffer input = codec.input.clear();
+                    input.limit((int) Math.min(input.capacity(), size - position));
+                    while (input.hasRemaining()) {
+                        if (fileChannel.read(input, position + input.position()) < 0) {
+                            throw new EOFException("File truncated during transfer.");
+                        }
+                    }
+                    position += input.limit();
+                    codec.deflater.setInput(input.flip());
+                    while (!codec.deflater.needsInput()) {
+                        writeFrame(codec, channel);
+                    }
+                }
+                codec.deflater.finish();
+                while (!codec.deflater.finished()) {
+                    writeFrame(codec, channel);
+                }
+                return length;
+            } finally {
+                release(codec);
+            }
+        }
+    }
+
+    /**
+     接收文件，按头部的编码方式把数据写入文件的offset处，文件在offset之后的原有内容会被截掉
+     @param channel 连接到对端的Socket通道
+     @param filePath 保存文件的路径
+     @param offset 开始写入的位置，为0时覆盖整个文件
+     @return 接收的原始数据字节数
+     @throws IOException 如果数据格式不正确，或者读取通道、写入文件时发生IO异常，则抛出该异常
+     */
+    public static long receive(SocketChannel channel, Path filePath, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES + 1);
+        readFully(channel, header);
+        long length = header.getLong();
+        byte encoding = header.get();
+        if (length < 0 || (encoding != RAW && encoding != DEFLATE)) {
+            throw new IOException("Invalid transfer header.");
+        }
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            fileChannel.truncate(offset);
+            if (encoding == RAW) {
+                FileTransfer.receiveRange(channel, fileChannel, offset, length);
+                return length;
+            }
+            Codec codec = acquire();
+            try {
+                long position = offset;
+                long end = offset + length;
+                while (!codec.inflater.finished()) {
+                    if (codec.inflater.needsInput()) {
+                        readFrame(codec.input, channel);
+                        codec.inflater.setInput(codec.input);
+                    } else if (codec.inflater.needsDictionary()) {
+                        throw new IOException("Invalid compressed data.");
+                    }
+                    ByteBuffer output = codec.output.clear();
+                    int n = codec.inflater.inflate(output);
+                    position += n;
+                    if (position > end) {
+                        throw new IOException("Compressed data longer than announced.");
+                    }
+                    output.flip();
+                    while (output.hasRemaining()) {
+                        fileChannel.write(output, position - output.remaining());
+                    }
+                }
+                if (position != end) {
+                    throw new EOFException("Compressed data shorter than announced.");
+                }
+                return length;
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed data: " + e.getMessage());
+            } finally {
+                release(codec);
+            }
+        }
+    }
+
+    /**
+     判断文件是否值得压缩：已经压缩过的文件类型不压缩，其他文件采样offset处的第一个数据块，熵低于阈值时压缩
+     @param filePath 文件路径
+     @param fileChannel 文件通道
+     @param offset 开始发送的位置
+     @return 是否值得压缩
+     @throws IOException 如果读取文件失败，则抛出该异常
+     */
+    private static boolean worthCompressing(Path filePath, FileChannel fileChannel, long offset) throws IOException {
+        String name = filePath.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return false;
+        }
+        ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+        while (sample.hasRemaining() && fileChannel.read(sample, offset + sample.position()) > 0) {
+            // 读取到采样大小或者文件末尾
+        }
+        if (sample.position() == 0) {
+            return false;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < sample.position(); i++) {
+            counts[sample.get(i) & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / sample.position();
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy < ENTROPY_THRESHOLD;
+    }
+
+    /**
+     压缩出一个数据帧并写入通道，数据帧的长度写在同一个缓冲区的开头，一次写出
+     @param codec 压缩器和缓冲区
+     @param channel Socket通道
+     @throws IOException 如果写入通道时发生IO异常，则抛出该异常
+     */
+    private static void writeFrame(Codec codec, SocketChannel channel) throws IOException {
+        ByteBuffer output = codec.output.clear().position(Integer.BYTES);
+        codec.deflater.deflate(output);
+        int n = output.position() - Integer.BYTES;
+        if (n == 0) {
+            return;
+        }
+        output.putInt(0, n).flip();
+        while (output.hasRemaining()) {
+            channel.write(output);
+        }
+        TransferProgress.advanced(channel, output.limit());
+    }
+
+    /**
+     读取一个数据帧
+     @param input 存放数据帧的缓冲区，读取完成后处于可读状态
+     @param channel Socket通道
+     @throws IOException 如果数据帧长度不合法，或者连接提前关闭，则抛出该异常
+     */
+    private static void readFrame(ByteBuffer input, SocketChannel channel) throws IOException {
+        input.clear().limit(Integer.BYTES);
+        readFully(channel, input);
+        int n = input.getInt();
+        if (n <= 0 || n > input.capacity()) {
+            throw new IOException("Invalid compressed frame length: " + n);
+        }
+        input.clear().limit(n);
+        readFully(channel, input);
+    }
+
+    /**
+     从通道读满缓冲区的剩余空间，读取完成后缓冲区处于可读状态
+     @param channel Socket通道
+     @param buffer 缓冲区
+     @throws IOException 如果连接提前关闭，则抛出该异常
+     */
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer);
+            if (n < 0) {
+                throw new EOFException("Connection closed during transfer.");
+            }
+            TransferProgress.advanced(channel, n);
+        }
+        buffer.flip();
+    }
+
+    /**
+     从池中取出压缩器和缓冲区，池为空时新建
+     @return 压缩器和缓冲区
+     */
+    private static Codec acquire() {
+        Codec codec = POOL.poll();
+        return codec != null ? codec : new Codec();
+    }
+
+    /**
+     重置压缩器和解压器后放回池中
+     @param codec 压缩器和缓冲区
+     */
+    private static void release(Codec codec) {
+        codec.deflater.reset();
+        codec.inflater.reset();
+        POOL.offer(codec);
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ 被动模式数据连接类，用于连接服务器为每次传输打开的临时端口
+ */
+public class DataConnection {
+    // 数据连接的Socket缓冲区大小
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     在数据连接上执行的传输任务
+     */
+    public interface Task {
+        void run(SocketChannel channel) throws IOException;
+    }
+
+    private DataConnection() {
+    }
+
+    /**
+     从服务器的应答中解析数据连接的端口号，应答格式为“Entering passive mode (端口).”
+     @param response 服务器的应答
+     @return 端口号
+     @throws IOException 如果应答格式不正确，则抛出该异常
+     */
+    public static int parsePort(String response) throws IOException {
+        int start = response.indexOf('(');
+        int end = response.indexOf(')', start + 1);
+        if (start < 0 || end < 0) {
+            throw new IOException("Unexpected response: " + response);
+        }
+        try {
+            return Integer.parseInt(response.substring(start + 1, end));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected response: " + response);
+        }
+    }
+
+    /**
+     连接服务器的数据端口
+     @param host 服务器地址
+     @param port 数据端口
+     @return 建立的数据连接通道
+     @throws IOException 如果连接失败，则抛出该异常
+     */
+    public static SocketChannel connect(InetAddress host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            // 缓冲区需要在连接前设置，才能在握手时协商更大的窗口
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, BUFFER_SIZE);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, BUFFER_SIZE);
+            channel.connect(new InetSocketAddress(host, port));
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     建立count个到服务器数据端口的连接，在每条连接上并行执行传输任务，全部完成后关闭这些连接
+     @param host 服务器地址
+     @param port 数据端口
+     @param count 数据连接数
+     @param task 传输任务
+     @throws IOException 如果连接失败，或者任意一条连接上的任务失败，则抛出该异常
+     */
+    public static void connectAll(InetAddress host, int port, int count, Task task) throws IOException {
+        List<SocketChannel> channels = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                channels.add(connect(host, port));
+            }
+            runAll(channels, task);
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     在每条数据连接上并行执行传输任务，全部完成后返回，只有一条连接时直接在当前线程中执行
+     @param channels 数据连接通道
+     @param task 传输任务
+     @throws IOException 如果任意一条连接上的任务失败，则抛出第一个失败的异常
+     */
+    private static void runAll(List<SocketChannel> channels, Task task) throws IOException {
+        if (channels.size() == 1) {
+            task.run(channels.get(0));
+            return;
+        }
+        List<Thread> threads = new ArrayList<>();
+        IOException[] failure = new IOException[1];
+        for (SocketChannel channel : channels) {
+            Thread thread = new Thread(() -> {
+                try {
+                    task.run(channel);
+                } catch (IOException e) {
+                    synchronized (failure) {
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted.");
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
+    /**
+     等待服务器在保存文件后回送的确认字节
+     @param channel 数据连接通道
+     @throws IOException 如果连接在确认前关闭，则抛出该异常
+     */
+    public static void readAck(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed before acknowledgement.");
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ 去重上传类。文件按内容切分成块（Gear滚动哈希决定块边界，插入或删除数据只影响附近的块），每块以SHA-256标识：
+ 1. 发送方发送文件清单：8字节文件长度、4字节块数，以及每块的32字节哈希和4字节长度；
+ 2. 接收方回复一个位图，标出服务器上还没有的块；
+ 3. 发送方只发送这些块的原始字节。
+ 服务器上已经有全部块时，上传只需要交换哈希
+ */
+public class DedupTransfer {
+    // 块长度的下限和上限，平均块长度约为64KB
+    public static final int MIN_CHUNK_SIZE = 16 * 1024;
+    public static final int MAX_CHUNK_SIZE = 256 * 1024;
+    // 滚动哈希的高16位为0时切分，只取决于最近的64个字节
+    private static final long BOUNDARY_MASK = 0xffff000000000000L;
+    // 哈希的长度
+    public static final int HASH_SIZE = 32;
+    // 块数的上限，防止对端发送不合理的清单
+    private static final int MAX_CHUNKS = 1 << 22;
+    // 接收方每批读取的清单项数，清单随实际收到的数据增长
+    private static final int MANIFEST_BATCH = 4096;
+    // 清单中每项的长度：32字节哈希 + 4字节块长度
+    private static final int ENTRY_SIZE = HASH_SIZE + Integer.BYTES;
+    // Gear哈希表，发送方和接收方必须相同，因此使用固定的种子
+    private static final long[] GEAR = new SplittableRandom(0x6765617243444331L).longs(256).toArray();
+
+    /**
+     一个块
+     @param hash 块内容的SHA-256
+     @param length 块的长度
+     */
+    public record Chunk(byte[] hash, int length) {
+        /**
+         @return 十六进制表示的哈希
+         */
+        public String id() {
+            return HexFormat.of().formatHex(hash);
+        }
+    }
+
+    /**
+     文件清单
+     @param size 文件长度
+     @param chunks 按顺序排列的块
+     */
+    public record Manifest(long size, List<Chunk> chunks) {
+    }
+
+    private DedupTransfer() {
+    }
+
+    /**
+     按内容切分文件并计算每块的哈希，只读一遍文件
+     @param fileChannel 文件通道
+     @return 按顺序排列的块
+     @throws IOException 如果读取文件失败，则抛出该异常
+     */
+    public static List<Chunk> chunk(FileChannel fileChannel) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest sha256 = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        byte[] bytes = buffer.array();
+        long position = 0;
+        long hash = 0;
+        int length = 0;
+        int n;
+        while ((n = fileChannel.read(buffer.clear(), position)) > 0) {
+            position += n;
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                hash = (hash << 1) + GEAR[bytes[i] & 0xff];
+                length++;
+                if ((length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) || length >= MAX_CHUNK_SIZE) {
+                    sha256.update(bytes, start, i + 1 - start);
+                    chunks.add(new Chunk(sha256.digest(), length));
+                    start = i + 1;
+                    hash = 0;
+                    length = 0;
+                }
+            }
+            sha256.update(bytes, start, n - start);
+        }
+        if (length > 0) {
+            chunks.add(new Chunk(sha256.digest(), length));
+        }
+        return chunks;
+    }
+
+    /**
+     发送方：发送文件清单，再只发送接收方缺少的块
+     @param filePath 要发送的文件路径
+     @param channel 连接到接收方的Socket通道
+     @return 实际发送的块数据字节数
+     @throws IOException 如果读取文件或读写通道时发生IO异常，则抛出该异常
+     */
+    public static long send(Path filePath, SocketChannel channel) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            List<Chunk> chunks = chunk(fileChannel);
+            ByteBuffer manifest = ByteBuffer.allocate(Long.BYTES + Integer.BYTES
+                    + chunks.size() * (HASH_SIZE + Integer.BYTES));
+            manifest.putLong(fileChannel.size()).putInt(chunks.size());
+            for (Chunk chunk : chunks) {
+                manifest.put(chunk.hash()).putInt(chunk.length());
+            }
+            manifest.flip();
+            while (manifest.hasRemaining()) {
+                TransferProgress.advanced(channel, channel.write(manifest));
+            }
+            ByteBuffer missing = readFully(channel, ByteBuffer.allocate((chunks.size() + 7) / 8));
+            long position = 0;
+            long sent = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                int length = chunks.get(i).length();
+                if ((missing.get(i / 8) & (1 << (i % 8))) != 0) {
+                    FileTransfer.sendRange(fileChannel, position, length, channel);
+                    sent += length;
+                }
+                position += length;
+            }
+            return sent;
+        }
+    }
+
+    /**
+     接收方：读取并校验文件清单
+     @param channel 连接到发送方的Socket通道
+     @return 文件清单
+     @throws IOException 如果清单不合法，或者连接提前关闭，则抛出该异常
+     */
+    public static Manifest readManifest(SocketChannel channel) throws IOException {
+        ByteBuffer header = readFully(channel, ByteBuffer.allocate(Long.BYTES + Integer.BYTES));
+        long size = header.getLong();
+        int count = header.getInt();
+        // 除最后一块外每块至少MIN_CHUNK_SIZE字节，块数不会超过文件长度决定的上限
+        if (size < 0 || count < 0 || count > MAX_CHUNKS || count > size / MIN_CHUNK_SIZE + 1) {
+            throw new IOException("Invalid chunk manifest.");
+        }
+        ByteBuffer entries = ByteBuffer.allocate(Math.min(count, MANIFEST_BATCH) * ENTRY_SIZE);
+        List<Chunk> chunks = new ArrayList<>(Math.min(count, MANIFEST_BATCH));
+        long total = 0;
+        for (int i = 0; i < count; ) {
+            readFully(channel, entries.clear().limit(Math.min(MANIFEST_BATCH, count - i) * ENTRY_SIZE));
+            for (; entries.hasRemaining(); i++) {
+                byte[] hash = new byte[HASH_SIZE];
+                entries.get(hash);
+                int length = entries.getInt();
+                if (length <= 0 || length > MAX_CHUNK_SIZE || (length < MIN_CHUNK_SIZE && i < count - 1)) {
+                    throw new IOException("Invalid chunk length: " + length);
+                }
+                chunks.add(new Chunk(hash, length));
+                total += length;
+            }
+        }
+        if (total != size) {
+            throw new IOException("Chunk lengths do not match file size.");
+        }
+        return new Manifest(size, chunks);
+    }
+
+    /**
+     从通道读满缓冲区的剩余空间，读取完成后缓冲区处于可读状态
+     @param channel Socket通道
+     @param buffer 缓冲区
+     @return 读满的缓冲区
+     @throws IOException 如果连接提前关闭，则抛出该异常
+     */
+    public static ByteBuffer readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer);
+            if (n < 0) {
+                throw new EOFException("Connection closed during transfer.");
+            }
+            TransferProgress.advanced(channel, n);
+        }
+        return buffer.flip();
+    }
+
+    /**
+     @return 新的SHA-256摘要对象
+     */
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ 分帧模式下控制连接的帧格式。每一帧由6字节的帧头和负载组成：1字节操作码、1字节状态码、4字节大端序的负载长度，负载是UTF-8编码的文本。
+ 客户端的命令帧用操作码表示命令，负载是命令的参数；回答帧（ANSWER）的负载是对服务器询问的应答，每行一个，与文本模式下的输入行相同。
+ 服务器的应答帧沿用命令的操作码，状态码表示命令是否成功。每条命令的应答以一个提示符帧（PROMPT）结束，
+ 当前目录没有变化时提示符帧的负载为空，客户端沿用上一次的提示符，不需要再按行尾判断应答是否结束
+ */
+public class Frame {
+    // 帧头的长度
+    public static final int HEADER_LENGTH = 6;
+    // 服务器发给客户端的帧的负载最大长度，大目录的列表可能很长
+    public static final int MAX_PAYLOAD_LENGTH = 64 * 1024 * 1024;
+    // 客户端发给服务器的帧（命令和回答）的负载最大长度，与文本模式下一行的长度上限相同
+    public static final int MAX_COMMAND_LENGTH = 8192;
+
+    // 操作码：未知的命令，以及各个命令，数值是命令在COMMANDS中的下标
+    public static final int UNKNOWN = 0;
+    public static final int DIR = 1;
+    public static final int CD = 2;
+    public static final int GET = 3;
+    public static final int PUT = 4;
+    public static final int MGET = 5;
+    public static final int MPUT = 6;
+    public static final int WHO = 7;
+    public static final int REST = 8;
+    public static final int SIZE = 9;
+    public static final int PARALLEL = 10;
+    public static final int PASV = 11;
+    public static final int COMPRESS = 12;
+    public static final int DELTA = 13;
+    public static final int DEDUP = 14;
+    public static final int VERIFY = 15;
+    public static final int RATE = 16;
+    public static final int EXIT = 17;
+    // 操作码：客户端对服务器询问的应答
+    public static final int ANSWER = 64;
+    // 操作码：一条命令的应答结束，负载为新的提示符或者为空
+    public static final int PROMPT = 65;
+
+    // 状态码
+    public static final int OK = 0;
+    public static final int FAILED = 1;
+    public static final int INVALID = 2;
+    public static final int DENIED = 3;
+    public static final int NOT_FOUND = 4;
+
+    // 各操作码对应的命令名
+    private static final String[] COMMANDS = {null, "dir", "cd", "get", "put", "mget", "mput", "who", "rest", "size",
+            "parallel", "pasv", "compress", "delta", "dedup", "verify", "rate", "exit"};
+
+    private Frame() {
+    }
+
+    /**
+     @param command 命令名
+     @return 命令的操作码，不是可以分帧发送的命令时返回UNKNOWN
+     */
+    public static int opcode(String command) {
+        for (int i = 1; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(command)) {
+                return i;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     @param opcode 操作码
+     @return 操作码对应的命令名，不是命令的操作码时返回null
+     */
+    public static String command(int opcode) {
+        return opcode > UNKNOWN && opcode < COMMANDS.length ? COMMANDS[opcode] : null;
+    }
+}
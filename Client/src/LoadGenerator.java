@@ -0,0 +1,361 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ 负载生成器，在一个进程中模拟多个同时在线的用户，不需要控制台。
+ 每个虚拟用户一个线程，各自连接服务器并登录，然后按脚本重复执行：进入目录、dir、返回上一级、上传和下载不同大小的文件。
+ 命令的收发复用客户端的CommandPrompt，应答写入每个用户自己的输出流，覆盖文件的询问一律回答Y。
+ 结束后按操作输出次数、错误数、吞吐量以及p50、p99、p999和最大延迟
+ */
+public class LoadGenerator {
+    // 操作的名称，按报告中的顺序排列
+    private static final String[] OPERATIONS = {"connect", "login", "cd", "dir", "put", "get"};
+
+    // 服务器的IP地址和端口号
+    private final String host;
+    private final int port;
+    // 虚拟用户数
+    private final int users;
+    // 每个虚拟用户执行脚本的次数
+    private final int iterations;
+    // 登录使用的账号，每个为{用户名, 密码}，按顺序轮流分配给虚拟用户
+    private final List<String[]> logins;
+    // 上传和下载的文件大小（字节）
+    private final long[] sizes;
+    // 每次执行脚本时进入的目录
+    private final String directory;
+    // 登录后是否切换到分帧模式
+    private final boolean framed;
+
+    // 每种操作的延迟直方图和错误数
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final Map<String, AtomicLong> errors = new LinkedHashMap<>();
+    // 成功上传和下载的字节数
+    private final AtomicLong transferred = new AtomicLong();
+
+    /**
+     构造函数
+     @param host 服务器的IP地址
+     @param port 服务器监听的端口号
+     @param users 虚拟用户数
+     @param iterations 每个虚拟用户执行脚本的次数
+     @param logins 登录使用的账号，每个为{用户名, 密码}
+     @param sizes 上传和下载的文件大小（字节）
+     @param directory 每次执行脚本时进入的目录
+     @param framed 登录后是否切换到分帧模式
+     */
+    public LoadGenerator(String host, int port, int users, int iterations, List<String[]> logins, long[] sizes, String directory,
+                         boolean framed) {
+        this.host = host;
+        this.port = port;
+        this.users = users;
+        this.iterations = iterations;
+        this.logins = logins;
+        this.sizes = sizes;
+        this.directory = directory;
+        this.framed = framed;
+        for (String operation : OPERATIONS) {
+            latencies.put(operation, new LatencyHistogram());
+            errors.put(operation, new AtomicLong());
+        }
+    }
+
+    /**
+     启动所有虚拟用户，等待全部结束后输出报告
+     @throws InterruptedException 如果等待时被中断，则抛出异常
+     */
+    public void run() throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            int user = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    simulate(user);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "load-user-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report(System.nanoTime() - begin);
+    }
+
+    /**
+     一个虚拟用户的全部过程，连接断开或者登录失败时记录错误并结束该用户
+     @param user 虚拟用户的序号
+     */
+    private void simulate(int user) {
+        String[] login = logins.get(user % logins.size());
+        Path rootDir = null;
+        long begin = System.nanoTime();
+        String operation = "connect";
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+             Socket socket = channel.socket();
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            record(operation, begin, true);
+
+            operation = "login";
+            begin = System.nanoTime();
+            if (!login(in, out, login[0], login[1])) {
+                record(operation, begin, false);
+                return;
+            }
+            record(operation, begin, true);
+
+            rootDir = Files.createTempDirectory("ftp-load");
+            List<String> files = new ArrayList<>(sizes.length);
+            for (long size : sizes) {
+                String filename = "load-" + user + "-" + size + ".bin";
+                createFile(rootDir.resolve(filename), size);
+                files.add(filename);
+            }
+            // 每次上传和下载都可能询问是否覆盖
+            BufferedReader answers = new BufferedReader(new StringReader("Y\n".repeat(2 * iterations * sizes.length + 1)));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            PrintStream console = new PrintStream(output, true, StandardCharsets.UTF_8);
+            CommandPrompt prompt = new CommandPrompt(in, out, answers, console, rootDir.toString(), channel);
+            if (framed) {
+                send(prompt, output, "framed");
+                prompt.framed();
+                if (!output.toString(StandardCharsets.UTF_8).startsWith("Framed mode on.")) {
+                    throw new IOException("Framed mode not supported.");
+                }
+            }
+
+            for (int i = 0; i < iterations; i++) {
+                operation = "cd";
+                begin = System.nanoTime();
+                send(prompt, output, "cd " + directory);
+                prompt.dirOrCd();
+                record(operation, begin, !output.toString(StandardCharsets.UTF_8).contains("Directory not exists."));
+
+                operation = "dir";
+                begin = System.nanoTime();
+                send(prompt, output, "dir");
+                prompt.dirOrCd();
+                record(operation, begin, true);
+
+                operation = "cd";
+                begin = System.nanoTime();
+                send(prompt, output, "cd ..");
+                prompt.dirOrCd();
+                record(operation, begin, !output.toString(StandardCharsets.UTF_8).contains("Directory not exists."));
+
+                for (int j = 0; j < files.size(); j++) {
+                    operation = "put";
+                    begin = System.nanoTime();
+                    send(prompt, output, "put " + files.get(j));
+                    prompt.put("put " + files.get(j));
+                    boolean uploaded = output.toString(StandardCharsets.UTF_8).contains("File uploaded");
+                    record(operation, begin, uploaded);
+                    if (uploaded) {
+                        transferred.addAndGet(sizes[j]);
+                    }
+
+                    operation = "get";
+                    begin = System.nanoTime();
+                    send(prompt, output, "get " + files.get(j));
+                    prompt.get("get " + files.get(j));
+                    boolean downloaded = output.toString(StandardCharsets.UTF_8).contains("File downloaded");
+                    record(operation, begin, downloaded);
+                    if (downloaded) {
+                        transferred.addAndGet(sizes[j]);
+                    }
+                }
+            }
+            send(prompt, output, "exit");
+            prompt.exit();
+        } catch (IOException e) {
+            record(operation, begin, false);
+            System.err.println("User " + user + " stopped at " + operation + ": " + e.getMessage());
+        } finally {
+            if (rootDir != null) {
+                delete(rootDir);
+            }
+        }
+    }
+
+    /**
+     登录服务器。客户端的Authenticator在登录失败时会结束整个进程，所以这里直接按同样的格式收发
+     @param in 输入流，从服务器接收数据
+     @param out 输出流，向服务器发送数据
+     @param username 用户名
+     @param password 密码
+     @return 是否登录成功，成功时已经读完会话恢复令牌和第一个提示符
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    private static boolean login(BufferedReader in, BufferedWriter out, String username, String password) throws IOException {
+        out.write(username + "\n");
+        out.write(password + "\n");
+        out.flush();
+        String response = in.readLine();
+        if (response == null) {
+            throw new EOFException("Connection closed by server.");
+        }
+        if (!response.startsWith("Login successful")) {
+            return false;
+        }
+        // 会话恢复令牌和提示符
+        return in.readLine() != null && in.readLine() != null;
+    }
+
+    /**
+     清空上一个命令的应答并向服务器发送命令
+     @param prompt 虚拟用户的命令提示符
+     @param output 虚拟用户的控制台输出
+     @param command 命令
+     @throws IOException 如果在与服务器通信时出现错误，则抛出异常
+     */
+    private static void send(CommandPrompt prompt, ByteArrayOutputStream output, String command) throws IOException {
+        output.reset();
+        prompt.send(command);
+    }
+
+    /**
+     记录一次操作的耗时，失败时同时计入错误数
+     @param operation 操作的名称
+     @param begin 操作开始的时间（System.nanoTime）
+     @param success 操作是否成功
+     */
+    private void record(String operation, long begin, boolean success) {
+        latencies.get(operation).record(System.nanoTime() - begin);
+        if (!success) {
+            errors.get(operation).incrementAndGet();
+        }
+    }
+
+    /**
+     输出每种操作的次数、错误数、吞吐量和延迟分布，以及总的传输速率
+     @param elapsed 全部虚拟用户运行的总时间（纳秒）
+     */
+    private void report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.printf("%d users x %d iterations in %.3f s%n", users, iterations, seconds);
+        System.out.printf("%-10s %8s %8s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (String operation : OPERATIONS) {
+            LatencyHistogram histogram = latencies.get(operation);
+            System.out.printf("%-10s %8d %8d %10.1f %10.3f %10.3f %10.3f %10.3f%n",
+                    operation, histogram.count(), errors.get(operation).get(), histogram.count() / seconds,
+                    histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6, histogram.percentile(99.9) / 1e6,
+                    histogram.max() / 1e6);
+        }
+        System.out.printf("Transferred %d bytes, %.2f MB/s%n", transferred.get(), transferred.get() / seconds / (1024 * 1024));
+    }
+
+    /**
+     创建指定大小的随机内容文件
+     @param file 文件路径
+     @param size 文件大小（字节）
+     @throws IOException 如果写入文件失败，则抛出异常
+     */
+    private static void createFile(Path file, long size) throws IOException {
+        byte[] block = new byte[64 * 1024];
+        try (OutputStream stream = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                ThreadLocalRandom.current().nextBytes(block);
+                stream.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    /**
+     删除虚拟用户的临时目录
+     @param directory 临时目录
+     */
+    private static void delete(Path directory) {
+        try (Stream<Path> walk = Files.walk(directory)) {
+            for (Path path : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to delete " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     负载生成器的主函数
+     @param args 命令行参数：--host 地址、--port 端口、--users 虚拟用户数、--iterations 次数、
+                 --login 用户名:密码（必须指定，可以重复，轮流分配给虚拟用户）、--sizes 逗号分隔的文件大小（字节）、--cd 进入的目录、
+                 --framed 登录后切换到分帧模式
+     */
+    public static void main(String[] args) {
+        String host = "127.0.0.1";
+        int port = 8888;
+        int users = 10;
+        int iterations = 10;
+        List<String[]> logins = new ArrayList<>();
+        long[] sizes = {1024, 64 * 1024, 1024 * 1024};
+        String directory = "1";
+        boolean framed = false;
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                //--framed不带参数
+                if (args[i].equals("--framed")) {
+                    framed = true;
+                    i--;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--host" -> host = value;
+                    case "--port" -> port = Integer.parseInt(value);
+                    case "--users" -> users = Integer.parseInt(value);
+                    case "--iterations" -> iterations = Integer.parseInt(value);
+                    case "--login" -> {
+                        String[] login = value.split(":", 2);
+                        if (login.length != 2) {
+                            throw new IllegalArgumentException("Invalid login: " + value);
+                        }
+                        logins.add(login);
+                    }
+                    case "--sizes" -> sizes = Stream.of(value.split(",")).mapToLong(s -> Long.parseLong(s.trim())).toArray();
+                    case "--cd" -> directory = value;
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            //虚拟用户要上传文件，不能使用匿名用户；每个账号同时在线的会话数受服务器的maxSessionsPerUser限制，不提供默认账号
+            if (logins.isEmpty()) {
+                throw new IllegalArgumentException("At least one --login is required.");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java LoadGenerator [--host address] [--port port] [--users n] [--iterations n] "
+                    + "--login username:password [--login username:password]... [--sizes bytes,...] [--cd directory] [--framed]");
+            System.err.println("Logins are assigned to users in turn; each account must allow at least "
+                    + "ceil(users / logins) concurrent sessions (server setting maxSessionsPerUser).");
+            return;
+        }
+        try {
+            new LoadGenerator(host, port, users, iterations, logins, sizes, directory, framed).run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ 传输进度登记类。收发文件数据的循环每读写一次连接就报告一次收发的字节数，
+ 关心进度的一方事先为连接登记监听器：服务器的会话回收器据此判断传输是否停滞，带宽调度器据此限速（在报告时阻塞），
+ 并限制每次读写的字节数，避免大块的突发。没有登记的连接报告进度时只是一次查表
+ */
+public class TransferProgress {
+    /**
+     连接上有数据收发时调用的监听器
+     */
+    public interface Listener {
+        /**
+         连接上收发了一批数据，监听器可以在这里阻塞以限制速率
+         @param bytes 收发的字节数
+         @throws IOException 如果等待时被中断，则抛出该异常
+         */
+        void advanced(long bytes) throws IOException;
+
+        /**
+         限制下一次读写的字节数
+         @param requested 传输循环打算读写的字节数
+         @return 允许读写的字节数，不超过requested且至少为1
+         */
+        default long limit(long requested) {
+            return requested;
+        }
+    }
+
+    // 按连接登记的监听器
+    private static final Map<SocketChannel, Listener[]> LISTENERS = new ConcurrentHashMap<>();
+
+    private TransferProgress() {
+    }
+
+    /**
+     为连接登记监听器，同一连接可以登记多个监听器
+     @param channel 连接的通道
+     @param listener 监听器
+     */
+    public static void watch(SocketChannel channel, Listener listener) {
+        LISTENERS.compute(channel, (key, listeners) -> {
+            if (listeners == null) {
+                return new Listener[]{listener};
+            }
+            Listener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+            added[listeners.length] = listener;
+            return added;
+        });
+    }
+
+    /**
+     取消连接的一个监听器
+     @param channel 连接的通道
+     @param listener 监听器
+     */
+    public static void unwatch(SocketChannel channel, Listener listener) {
+        LISTENERS.computeIfPresent(channel, (key, listeners) -> {
+            Listener[] remaining = Arrays.stream(listeners).filter(l -> l != listener).toArray(Listener[]::new);
+            return remaining.length == 0 ? null : remaining;
+        });
+    }
+
+    /**
+     报告连接上的一次数据收发
+     @param channel 连接的通道
+     @param bytes 收发的字节数
+     @throws IOException 如果监听器限速等待时被中断，则抛出该异常
+     */
+    public static void advanced(SocketChannel channel, long bytes) throws IOException {
+        Listener[] listeners = LISTENERS.get(channel);
+        if (listeners != null) {
+            for (Listener listener : listeners) {
+                listener.advanced(bytes);
+            }
+        }
+    }
+
+    /**
+     获取连接下一次读写允许的字节数
+     @param channel 连接的通道
+     @param requested 传输循环打算读写的字节数
+     @return 允许读写的字节数，没有监听器限制时为requested
+     */
+    public static long limit(SocketChannel channel, long requested) {
+        Listener[] listeners = LISTENERS.get(channel);
+        if (listeners != null) {
+            for (Listener listener : listeners) {
+                requested = listener.limit(requested);
+            }
+        }
+        return requested;
+    }
+}
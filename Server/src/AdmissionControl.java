@@ -0,0 +1,103 @@
+import java.io.Serial;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ 连接准入控制类，用信号量限制同时处理的会话数，超出的连接进入有界的等待队列，
+ 等待队列也满时拒绝新的连接。上限可以在运行时调整，正在处理的会话不受影响
+ */
+public class AdmissionControl {
+    // 同时处理的会话数上限
+    private volatile int maxClients;
+    // 等待队列长度上限
+    private volatile int maxQueued;
+    // 会话许可
+    private final ResizableSemaphore permits;
+
+    /**
+     可以减少许可数的信号量，减少后正在使用的许可归还时不再发出新的许可，直到低于新的上限
+     */
+    private static class ResizableSemaphore extends Semaphore {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+    // 已准入的连接数，包括正在处理和正在等待的连接
+    private final AtomicInteger admitted = new AtomicInteger();
+
+    /**
+     构造函数
+     @param maxClients 同时处理的会话数上限
+     @param maxQueued 等待队列长度上限
+     */
+    public AdmissionControl(int maxClients, int maxQueued) {
+        this.maxClients = maxClients;
+        this.maxQueued = maxQueued;
+        this.permits = new ResizableSemaphore(maxClients);
+    }
+
+    /**
+     调整上限，在配置重新加载时调用
+     @param maxClients 同时处理的会话数上限
+     @param maxQueued 等待队列长度上限
+     */
+    public synchronized void resize(int maxClients, int maxQueued) {
+        int difference = maxClients - this.maxClients;
+        if (difference > 0) {
+            permits.release(difference);
+        } else if (difference < 0) {
+            permits.reduce(-difference);
+        }
+        this.maxClients = maxClients;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     尝试准入一个新连接，成功后必须调用run处理该连接
+     @return 是否准入，正在处理和等待的连接都已满时返回false
+     */
+    public boolean tryAdmit() {
+        if (admitted.incrementAndGet() > maxClients + maxQueued) {
+            admitted.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     等待获得会话许可后处理会话，会话结束时释放许可
+     @param session 会话任务
+     */
+    public void run(Runnable session) {
+        permits.acquireUninterruptibly();
+        try {
+            session.run();
+        } finally {
+            permits.release();
+            admitted.decrementAndGet();
+        }
+    }
+
+    /**
+     获取正在处理的会话数
+     @return 正在处理的会话数
+     */
+    public int getActive() {
+        return maxClients - permits.availablePermits();
+    }
+
+    /**
+     获取正在等待许可的连接数
+     @return 正在等待的连接数
+     */
+    public int getQueued() {
+        return Math.max(0, admitted.get() - getActive());
+    }
+}
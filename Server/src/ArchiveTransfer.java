@@ -0,0 +1,210 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ 目录传输类，把整个目录树作为一个连续的归档流在一次传输中收发，不需要为每个文件单独交互。
+ 归档由若干条目组成，每个条目的头部为1字节类型、2字节名称长度和UTF-8编码的相对路径（以“/”分隔），
+ 文件条目的头部之后紧跟文件内容，格式由调用者决定（例如FileTransfer或CompressedTransfer的格式）。
+ 类型为END的条目表示归档结束。接收方在条目到达时立即创建目录和文件
+ */
+public class ArchiveTransfer {
+    // 条目类型：归档结束
+    private static final byte END = 0;
+    // 条目类型：目录
+    private static final byte DIRECTORY = 1;
+    // 条目类型：文件
+    private static final byte FILE = 2;
+    // 相对路径编码后的最大长度
+    private static final int MAX_NAME_LENGTH = 4096;
+
+    /**
+     发送一个文件的内容
+     */
+    public interface Sender {
+        void send(Path filePath, SocketChannel channel) throws IOException;
+    }
+
+    /**
+     接收一个文件的内容
+     */
+    public interface Receiver {
+        void receive(SocketChannel channel, Path filePath) throws IOException;
+    }
+
+    /**
+     一次目录传输的统计
+     @param directories 目录数（不含顶层目录）
+     @param files 文件数
+     */
+    public record Summary(int directories, int files) {
+    }
+
+    private ArchiveTransfer() {
+    }
+
+    /**
+     发送方：用Files.walkFileTree遍历目录树，按遍历顺序发送目录和文件条目，最后发送结束条目。
+     符号链接和其他特殊文件不发送，无法打开的文件在发送条目头部之前被跳过。
+     条目头部发出后接收方已经在等待文件内容，此时读取文件出错会中止整个归档
+     @param directory 要发送的目录
+     @param channel 连接到接收方的Socket通道
+     @param sender 发送文件内容的方法
+     @return 发送的目录数和文件数
+     @throws IOException 如果读取文件或写入通道时发生IO异常，则抛出该异常
+     */
+    public static Summary send(Path directory, SocketChannel channel, Sender sender) throws IOException {
+        int[] counts = new int[2];
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(directory)) {
+                    writeHeader(channel, DIRECTORY, name(directory, dir));
+                    counts[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile()) {
+                    // 先确认文件可以打开，失败时还没有发出任何字节，可以跳过而不破坏归档流
+                    try (FileChannel probe = FileChannel.open(file, StandardOpenOption.READ)) {
+                        probe.size();
+                    } catch (IOException e) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    writeHeader(channel, FILE, name(directory, file));
+                    sender.send(file, channel);
+                    counts[1]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        writeHeader(channel, END, "");
+        return new Summary(counts[0], counts[1]);
+    }
+
+    /**
+     接收方：创建目标目录，按条目到达的顺序创建子目录和文件，直到收到结束条目。
+     条目的相对路径不能离开目标目录
+     @param channel 连接到发送方的Socket通道
+     @param directory 保存目录树的目标目录
+     @param receiver 接收文件内容的方法
+     @return 接收的目录数和文件数
+     @throws IOException 如果条目不合法，或者读取通道、写入文件时发生IO异常，则抛出该异常
+     */
+    public static Summary receive(SocketChannel channel, Path directory, Receiver receiver) throws IOException {
+        Files.createDirectories(directory);
+        ByteBuffer header = ByteBuffer.allocate(1 + Short.BYTES);
+        int directories = 0;
+        int files = 0;
+        while (true) {
+            readFully(channel, header.clear());
+            byte type = header.get();
+            int length = header.getShort() & 0xffff;
+            if (type == END) {
+                return new Summary(directories, files);
+            }
+            if ((type != DIRECTORY && type != FILE) || length == 0 || length > MAX_NAME_LENGTH) {
+                throw new IOException("Invalid archive entry.");
+            }
+            ByteBuffer name = readFully(channel, ByteBuffer.allocate(length));
+            Path path = resolve(directory, new String(name.array(), StandardCharsets.UTF_8));
+            if (type == DIRECTORY) {
+                Files.createDirectories(path);
+                directories++;
+            } else {
+                receiver.receive(channel, path);
+                files++;
+            }
+        }
+    }
+
+    /**
+     计算条目的相对路径，各级名称以“/”连接，与操作系统的路径分隔符无关
+     @param directory 顶层目录
+     @param path 目录树中的路径
+     @return 相对路径
+     */
+    private static String name(Path directory, Path path) {
+        StringBuilder name = new StringBuilder();
+        for (Path element : directory.relativize(path)) {
+            if (!name.isEmpty()) {
+                name.append('/');
+            }
+            name.append(element);
+        }
+        return name.toString();
+    }
+
+    /**
+     把条目的相对路径解析为目标目录下的路径，拒绝空名称、“.”、“..”以及绝对路径
+     @param directory 目标目录
+     @param name 相对路径
+     @return 目标目录下的路径
+     @throws IOException 如果相对路径不合法，则抛出该异常
+     */
+    private static Path resolve(Path directory, String name) throws IOException {
+        Path path = directory;
+        for (String element : name.split("/", -1)) {
+            if (element.isEmpty() || element.equals(".") || element.equals("..")) {
+                throw new IOException("Invalid archive entry: " + name);
+            }
+            path = path.resolve(element);
+        }
+        if (!path.normalize().startsWith(directory.normalize()) || path.normalize().equals(directory.normalize())) {
+            throw new IOException("Invalid archive entry: " + name);
+        }
+        return path;
+    }
+
+    /**
+     写出一个条目的头部
+     @param channel Socket通道
+     @param type 条目类型
+     @param name 相对路径
+     @throws IOException 如果相对路径过长，或者写入通道时发生IO异常，则抛出该异常
+     */
+    private static void writeHeader(SocketChannel channel, byte type, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_LENGTH) {
+            throw new IOException("Path too long: " + name);
+        }
+        ByteBuffer header = ByteBuffer.allocate(1 + Short.BYTES + bytes.length)
+                .put(type).putShort((short) bytes.length).put(bytes).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     从通道读满缓冲区的剩余空间，读取完成后缓冲区处于可读状态
+     @param channel Socket通道
+     @param buffer 缓冲区
+     @return 读满的缓冲区
+     @throws IOException 如果连接提前关闭，则抛出该异常
+     */
+    private static ByteBuffer readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed during transfer.");
+            }
+        }
+        return buffer.flip();
+    }
+}
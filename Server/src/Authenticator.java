@@ -1,114 +1,281 @@
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.Socket;
-import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
- * 用户登录验证类,用于验证用户登录的用户名和密码
+ * 用户登录验证类,用于验证用户登录的用户名和密码。
+ * 登录成功时在共享的会话登记表中登记会话，关闭验证器时释放，调用者应在会话结束时（无论原因）关闭。
+ * 登录成功后发给客户端一个会话恢复令牌，客户端重新连接时可以用“resume 令牌”代替用户名和密码，恢复用户和当前目录
  */
-public class Authenticator {
-    // 用户列表
-    private final List<User> users;
-    // 输入输出流
-    private final BufferedReader in;
+public class Authenticator implements Closeable {
+    // 出示会话恢复令牌的输入前缀
+    private static final String RESUME_PREFIX = "resume ";
+    // 配置，每次验证时使用其中最新的用户存储
+    private final ConfigWatcher config;
+    // 输出流
     private final BufferedWriter out;
     // 用户IP地址
     private final String ip;
     // 日志记录器
     private final Logger log;
-    // socket
-    private final Socket socket;
+    // 已输入、等待密码的用户名
+    private String username;
+    // 尝试次数
+    private int tries = 0;
+    // 尝试次数过多，连接需要关闭
+    private boolean closed = false;
+    // 是否已经出示过会话恢复令牌，每个连接只能出示一次
+    private boolean resumeTried = false;
+    // 登录成功后登记的会话
+    private SessionRegistry.Session session;
+    // 登录成功后签发的会话恢复令牌
+    private ResumeTokens.Ticket ticket;
 
     /**
      构造函数，初始化用户认证器的相关属性
-     @param users 当前系统中已注册的用户列表
-     @param in 客户端输入流
+     @param config 配置，其中包含当前系统中已注册的用户
      @param out 客户端输出流
      @param ip 客户端的IP地址
-     @param log 日志记录器
-     @param socket 客户端连接的Socket对象 */
-    public Authenticator(List<User> users, BufferedReader in, BufferedWriter out, String ip, Logger log, Socket socket) {
-        this.users = users;
-        this.in = in;
+     @param log 日志记录器 */
+    public Authenticator(ConfigWatcher config, BufferedWriter out, String ip, Logger log) {
+        this.config = config;
         this.out = out;
         this.ip = ip;
         this.log = log;
-        this.socket = socket;
     }
 
     /**
-     用户登录验证过程
-     @return 登录成功的用户对象
+     处理客户端发来的一行登录输入，依次为用户名和密码。
+     阻塞式的ClientThread和NIO引擎的会话都通过这个方法驱动登录过程
+     @param line 客户端发来的一行输入
+     @return 登录成功的用户对象，尚未登录成功则返回null
      @throws IOException IO异常
      */
-    public User run() throws IOException {
-        User user = null;
-        // 尝试次数
-        int tries = 0;
-        while (user == null) {
-            String username = in.readLine().trim();
+    public User handle(String line) throws IOException {
+        // 第一行为用户名，或者会话恢复令牌
+        if (username == null) {
+            if (line.startsWith(RESUME_PREFIX)) {
+                return resume(line.substring(RESUME_PREFIX.length()).trim());
+            }
+            username = line.trim();
 
             // 匿名用户
             if ("anonymous".equals(username)) {
-                user = new User("anonymous", "");
+                username = null;
+                User user = new User("anonymous", "");
+                session = SessionRegistry.shared().open("anonymous");
+                Metrics.shared().login(true);
                 out.write("Login successful, welcome anonymous!\n");
+                issue(user, null);
                 out.flush();
                 //日志记录匿名用户登陆成功
                 log.log(ip, "Anonymous user login successful.\n");
                 //在服务器端输出提示信息
                 System.out.println("Anonymous user login successful.\n");
-                break;
+                return user;
             }
+            return null;
+        }
 
-            String password = in.readLine().trim();
-            // 设置变量判断这次登录是否为重复登录
-            boolean isRepeat = false;
-
-            // 验证用户名和密码
-            for (User u : users) {
-                if (u.getUsername().equals(username) && u.getPassword().equals(password)) {
-                    // 假如用户已经登录，则提示用户已经登录
-                    if (u.isLoggedIn()) {
-                        out.write("User already logged in.\n");
-                        out.flush();
-                        isRepeat = true;
-                        //日志记录用户重复登录
-                        log.log(ip, username + " already logged in.\n");
-                        break;
-                    }
-                    user = u;
-                    u.setLoggedIn(true);
-                    out.write("Login successful, welcome " + username + "!\n");
-                    out.flush();
-                    //日志记录用户登录成功
-                    log.log(ip, username + " login successful.\n");
-                    //在服务器端输出提示信息
-                    System.out.println(username + " login successful.");
-                    break;
-                }
-            }
+        return login(checkPassword(line));
+    }
+
+    /**
+     @return 是否已经输入用户名，下一行输入是密码
+     */
+    public boolean expectsPassword() {
+        return username != null;
+    }
+
+    /**
+     校验一行密码输入，不改变验证器的状态。密码哈希的计算很耗时，NIO引擎在工作线程中调用，再回到事件循环调用login
+     @param line 客户端发来的密码行
+     @return 用户名和密码正确时返回用户对象，否则返回null
+     */
+    public User checkPassword(String line) {
+        // 验证用户名和密码，按用户名在最新的配置快照中直接查找，记录验证的耗时
+        long start = System.nanoTime();
+        User u = config.current().users().authenticate(username, line.trim());
+        Metrics.shared().latency(Metrics.Operation.LOGIN, System.nanoTime() - start);
+        return u;
+    }
 
-            // 用户名或密码错误
-            if (user == null && !isRepeat) {
-                out.write("Invalid username or password.\n");
+    /**
+     根据密码的校验结果完成登录：登记会话、签发令牌并应答客户端，失败时累计尝试次数
+     @param u checkPassword的结果
+     @return 登录成功的用户对象，登录失败则返回null
+     @throws IOException IO异常
+     */
+    public User login(User u) throws IOException {
+        String username = this.username;
+        this.username = null;
+        User user = null;
+        // 设置变量判断这次登录是否为重复登录
+        boolean isRepeat = false;
+
+        Metrics.shared().login(u != null);
+        if (u != null) {
+            // 原子地检查并登记会话，假如用户的会话数已达上限，则提示用户已经登录
+            SessionRegistry registry = SessionRegistry.shared();
+            SessionRegistry.Session opened = registry.open(username);
+            if (opened == null) {
+                out.write(registry.getMaxSessionsPerUser() > 1
+                        ? "Too many sessions for " + username + ".\n" : "User already logged in.\n");
+                out.flush();
+                isRepeat = true;
+                //日志记录用户重复登录
+                log.log(ip, username + " already logged in.\n");
+            } else {
+                session = opened;
+                user = u;
+                out.write("Login successful, welcome " + username + "!\n");
+                issue(user, null);
                 out.flush();
-                //日志记录用户登录失败
-                log.log(ip, "Invalid username or password.\n");
-                //累计错误次数达到3次则断开连接
-                tries++;
-                if (tries >= 3) {
-                    out.write("Too many attempts, closing connection.\n");
-                    out.flush();
-                    //日志记录用户登录失败次数过多
-                    log.log(ip, "Too many attempts, closing connection.\n");
-                    socket.close();
-                    //在服务器端输出提示信息
-                    System.out.println("Client " + ip + " disconnected.");
-                    break;
-                }
+                //日志记录用户登录成功
+                log.log(ip, username + " login successful.\n");
+                //在服务器端输出提示信息
+                System.out.println(username + " login successful.");
             }
         }
+
+        // 用户名或密码错误
+        if (user == null && !isRepeat) {
+            out.write("Invalid username or password.\n");
+            out.flush();
+            //日志记录用户登录失败
+            log.log(ip, "Invalid username or password.\n");
+            failedAttempt();
+        }
+        return user;
+    }
+
+    /**
+     累计一次失败的尝试，错误次数达到3次则断开连接
+     @throws IOException IO异常
+     */
+    private void failedAttempt() throws IOException {
+        tries++;
+        if (tries >= 3) {
+            out.write("Too many attempts, closing connection.\n");
+            out.flush();
+            //日志记录用户登录失败次数过多
+            log.log(ip, "Too many attempts, closing connection.\n");
+            closed = true;
+        }
+    }
+
+    /**
+     用会话恢复令牌登录。令牌有效、用户仍然存在且密码没有修改时恢复用户和当前目录，并换发新的令牌；
+     令牌无效时客户端可以继续用用户名和密码登录，第二次出示令牌算作一次失败的尝试
+     @param token 客户端出示的令牌
+     @return 恢复的用户对象，恢复失败则返回null
+     @throws IOException IO异常
+     */
+    private User resume(String token) throws IOException {
+        ResumeTokens.Ticket previous = ResumeTokens.shared().redeem(token);
+        boolean counted = resumeTried;
+        resumeTried = true;
+        User user = null;
+        if (previous != null) {
+            // 匿名用户不在用户存储中，其他用户必须仍然存在且密码哈希没有变化
+            User resumed = previous.getUser();
+            User current = "anonymous".equals(resumed.getUsername())
+                    ? resumed : config.current().users().find(resumed.getUsername());
+            if (current != null && current.getPasswordHash().equals(resumed.getPasswordHash())) {
+                user = current;
+            }
+        }
+        Metrics.shared().login(user != null);
+        if (user == null) {
+            out.write("Invalid or expired resume token.\n");
+            out.flush();
+            log.log(ip, "Invalid or expired resume token.\n");
+            if (counted) {
+                failedAttempt();
+            }
+            return null;
+        }
+        String username = user.getUsername();
+        SessionRegistry registry = SessionRegistry.shared();
+        SessionRegistry.Session opened = registry.open(username);
+        if (opened == null) {
+            // 令牌本身有效，放回令牌表，原来的会话结束后客户端可以再次恢复
+            ResumeTokens.shared().restore(previous);
+            out.write(registry.getMaxSessionsPerUser() > 1
+                    ? "Too many sessions for " + username + ".\n" : "User already logged in.\n");
+            out.flush();
+            log.log(ip, username + " already logged in.\n");
+            return null;
+        }
+        session = opened;
+        out.write("Session resumed, welcome " + username + "!\n");
+        issue(user, previous);
+        out.flush();
+        //日志记录用户恢复会话
+        log.log(ip, username + " session resumed.\n");
+        //在服务器端输出提示信息
+        System.out.println(username + " session resumed.");
+        return user;
+    }
+
+    /**
+     签发会话恢复令牌并发给客户端。恢复的会话使用原来的根目录和当前目录，
+     配置中的根目录已经改变或者原来的目录已不存在时从新的根目录开始
+     @param user 登录成功的用户
+     @param previous 恢复会话时使用的令牌，新登录时为null
+     @throws IOException IO异常
+     */
+    private void issue(User user, ResumeTokens.Ticket previous) throws IOException {
+        String rootDir = config.current().rootDir();
+        Path currentPath = Paths.get(rootDir);
+        if (previous != null && previous.getRootDir().equals(rootDir) && Files.isDirectory(previous.getCurrentPath())) {
+            currentPath = previous.getCurrentPath();
+        }
+        ticket = ResumeTokens.shared().issue(user, rootDir, currentPath);
+        out.write("Resume token: " + ticket.getToken() + "\n");
+    }
+
+    /**
+     @return 登录成功后签发的会话恢复令牌，记录会话的根目录和当前目录，尚未登录成功时为null
+     */
+    public ResumeTokens.Ticket getTicket() {
+        return ticket;
+    }
+
+    /**
+     尝试次数过多时连接需要由调用者关闭
+     @return 连接是否需要关闭
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     释放登录成功时登记的会话，多次调用只释放一次
+     */
+    @Override
+    public void close() {
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     阻塞地读取客户端输入，完成用户登录验证过程
+     @param in 客户端输入流
+     @return 登录成功的用户对象，尝试次数过多或者连接断开时返回null
+     @throws IOException IO异常
+     */
+    public User run(BufferedReader in) throws IOException {
+        User user = null;
+        String line;
+        while (user == null && !closed && (line = in.readLine()) != null) {
+            user = handle(line);
+        }
         return user;
     }
 }
\ No newline at end of file
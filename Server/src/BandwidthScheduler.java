@@ -0,0 +1,386 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ 带宽调度器类，所有会话共享。限速分为全局、每个用户和每个会话三级（字节/秒，0表示不限速），
+ 每个正在传输的连接是一个流，有自己的令牌桶，传输循环通过TransferProgress报告收发的字节数，令牌不足时在报告处等待。
+ 调度器按层次的最大最小公平分配各流的速率：全局带宽在有传输的用户之间平分，用户的带宽在其会话之间平分，
+ 会话的带宽在其流之间平分，某一级用不完的份额（达到自身上限，或者瓶颈在别处、实际速率低于分配）再分给同级的其他各方。
+ 流的建立和结束、限速的改变都会立即重新分配，传输期间约每秒根据各流实际的速率重新分配一次
+ */
+public class BandwidthScheduler {
+    // 不限速
+    private static final double UNLIMITED = Double.POSITIVE_INFINITY;
+    // 重新分配的间隔（纳秒）
+    private static final long REBALANCE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // 实际速率低于分配的该比例时，认为流的瓶颈在别处
+    private static final double SATURATED = 0.8;
+    // 瓶颈在别处的流保留实际速率的倍数，留出加速的余地
+    private static final double HEADROOM = 1.5;
+    // 令牌桶容量对应的时间（秒），也是每次读写的上限
+    private static final double BURST_SECONDS = 0.1;
+    // 令牌桶的最小容量（字节）
+    private static final long MIN_BURST = 16 * 1024;
+    // 每次等待的最长时间（纳秒），等待期间速率改变或者连接关闭时尽快响应
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // 所有会话共享的调度器
+    private static final BandwidthScheduler SHARED = new BandwidthScheduler();
+
+    // 正在传输的流
+    private final Set<Flow> flows = ConcurrentHashMap.newKeySet();
+    // 下一次按实际速率重新分配的时间（纳秒）
+    private final AtomicLong nextRebalance = new AtomicLong(System.nanoTime());
+    // 全局限速（字节/秒）
+    private double globalRate = UNLIMITED;
+    // 每个用户的默认限速（字节/秒）
+    private double userRate = UNLIMITED;
+    // 按用户名单独设置的限速（字节/秒）
+    private Map<String, Long> userRates = Map.of();
+    // 每个会话的默认限速（字节/秒）
+    private double sessionRate = UNLIMITED;
+
+    /**
+     一个会话在调度器中的登记，会话可以在配置的限速之下自行设置更低的限速
+     */
+    public class Session {
+        // 会话的用户名
+        private final String username;
+        // 会话自行设置的限速（字节/秒）
+        private volatile double limit = UNLIMITED;
+
+        /**
+         构造函数
+         @param username 会话的用户名
+         */
+        private Session(String username) {
+            this.username = username;
+        }
+
+        /**
+         设置会话自己的限速，不能超过配置的会话和用户限速
+         @param bytesPerSecond 每秒字节数，0表示不另外限速
+         */
+        public void setLimit(long bytesPerSecond) {
+            limit = rate(bytesPerSecond);
+            rebalance();
+        }
+
+        /**
+         开始在连接上传输数据，传输期间按分配的速率限速
+         @param channel 传输数据的连接
+         @return 传输结束时关闭的流
+         */
+        public Flow open(SocketChannel channel) {
+            Flow flow = new Flow(this, channel);
+            flows.add(flow);
+            TransferProgress.watch(channel, flow);
+            rebalance();
+            return flow;
+        }
+    }
+
+    /**
+     一个正在传输的连接，用令牌桶限制收发的速率
+     */
+    public class Flow implements TransferProgress.Listener, AutoCloseable {
+        // 流所属的会话
+        private final Session session;
+        // 传输数据的连接
+        private final SocketChannel channel;
+        // 开始统计以来收发的字节数
+        private final AtomicLong moved = new AtomicLong();
+        // 分配的速率（字节/秒）
+        private volatile double rate = UNLIMITED;
+        // 估计的需要的速率（字节/秒）
+        private double demand = UNLIMITED;
+        // 开始统计moved的时间（纳秒）
+        private long measuredAt = System.nanoTime();
+        // 令牌桶中的令牌（字节），可以为负，表示需要等待
+        private double tokens;
+        // 上次补充令牌的时间（纳秒）
+        private long refilledAt = System.nanoTime();
+
+        /**
+         构造函数
+         @param session 流所属的会话
+         @param channel 传输数据的连接
+         */
+        private Flow(Session session, SocketChannel channel) {
+            this.session = session;
+            this.channel = channel;
+        }
+
+        @Override
+        public void advanced(long bytes) throws IOException {
+            moved.addAndGet(bytes);
+            if (rate != UNLIMITED) {
+                consume(bytes);
+            }
+            long now = System.nanoTime();
+            long next = nextRebalance.get();
+            if (now - next >= 0 && nextRebalance.compareAndSet(next, now + REBALANCE_NANOS)) {
+                rebalance();
+            }
+        }
+
+        @Override
+        public long limit(long requested) {
+            double current = rate;
+            return current == UNLIMITED ? requested : Math.max(1, Math.min(requested, burst(current)));
+        }
+
+        /**
+         从令牌桶中取出收发的字节数，令牌不足时等待补足
+         @param bytes 收发的字节数
+         @throws IOException 如果等待时连接被关闭或者线程被中断，则抛出该异常
+         */
+        private synchronized void consume(long bytes) throws IOException {
+            refill();
+            tokens -= bytes;
+            while (tokens < 0) {
+                double current = rate;
+                if (current == UNLIMITED) {
+                    tokens = 0;
+                    return;
+                }
+                if (!channel.isOpen()) {
+                    throw new ClosedChannelException();
+                }
+                long wait = Math.min(MAX_WAIT_NANOS, (long) Math.ceil(-tokens / current * 1e9));
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttling transfer.");
+                }
+                refill();
+            }
+        }
+
+        /**
+         按经过的时间和当前速率补充令牌，令牌不超过桶的容量
+         */
+        private void refill() {
+            long now = System.nanoTime();
+            double current = rate;
+            if (current != UNLIMITED) {
+                tokens = Math.min(burst(current), tokens + (now - refilledAt) * current / 1e9);
+            }
+            refilledAt = now;
+        }
+
+        /**
+         传输结束，取消登记并把带宽分给其他流
+         */
+        @Override
+        public void close() {
+            TransferProgress.unwatch(channel, this);
+            if (flows.remove(this)) {
+                rebalance();
+            }
+        }
+
+        /**
+         根据实际速率估计流需要的速率。统计时间太短时（流刚建立，或者其他流的变化引起了重新分配）沿用上一次的估计
+         @param now 当前时间（纳秒）
+         @return 流需要的速率，瓶颈在限速本身时不设上限
+         */
+        private double demand(long now) {
+            long elapsed = now - measuredAt;
+            if (elapsed < REBALANCE_NANOS / 2) {
+                return demand;
+            }
+            double measured = moved.getAndSet(0) * 1e9 / elapsed;
+            measuredAt = now;
+            double current = rate;
+            demand = current == UNLIMITED || measured >= SATURATED * current ? UNLIMITED : Math.max(MIN_BURST, measured * HEADROOM);
+            return demand;
+        }
+    }
+
+    private BandwidthScheduler() {
+    }
+
+    /**
+     获取所有会话共享的调度器
+     @return 共享的带宽调度器
+     */
+    public static BandwidthScheduler shared() {
+        return SHARED;
+    }
+
+    /**
+     按配置设置共享调度器的限速，在服务器启动和配置重新加载时调用，正在进行的传输立即按新的限速分配
+     @param globalBytesPerSecond 全局限速（字节/秒），0表示不限速
+     @param userBytesPerSecond 每个用户的默认限速（字节/秒），0表示不限速
+     @param userOverrides 按用户名单独设置的限速（字节/秒），0表示该用户不限速
+     @param sessionBytesPerSecond 每个会话的默认限速（字节/秒），0表示不限速
+     */
+    public static void configure(long globalBytesPerSecond, long userBytesPerSecond, Map<String, Long> userOverrides,
+                                 long sessionBytesPerSecond) {
+        synchronized (SHARED) {
+            SHARED.globalRate = rate(globalBytesPerSecond);
+            SHARED.userRate = rate(userBytesPerSecond);
+            SHARED.userRates = Map.copyOf(userOverrides);
+            SHARED.sessionRate = rate(sessionBytesPerSecond);
+        }
+        SHARED.rebalance();
+    }
+
+    /**
+     为会话创建登记
+     @param username 会话的用户名
+     @return 会话的登记
+     */
+    public Session session(String username) {
+        return new Session(username);
+    }
+
+    /**
+     重新分配所有流的速率：先按实际速率估计各流需要的速率，再自上而下逐级分配
+     */
+    private synchronized void rebalance() {
+        long now = System.nanoTime();
+        // 按用户和会话分组，每一级的需求是下一级需求之和，不超过本级的限速
+        Map<String, Map<Session, List<Flow>>> users = new LinkedHashMap<>();
+        Map<Flow, Double> demands = new LinkedHashMap<>();
+        for (Flow flow : flows) {
+            users.computeIfAbsent(flow.session.username, username -> new LinkedHashMap<>())
+                    .computeIfAbsent(flow.session, session -> new ArrayList<>()).add(flow);
+            demands.put(flow, flow.demand(now));
+        }
+        List<String> usernames = new ArrayList<>(users.keySet());
+        List<Map<Session, List<Flow>>> groups = new ArrayList<>(users.values());
+        double[] userDemands = new double[groups.size()];
+        int u = 0;
+        for (Map.Entry<String, Map<Session, List<Flow>>> user : users.entrySet()) {
+            double sum = 0;
+            for (Map.Entry<Session, List<Flow>> session : user.getValue().entrySet()) {
+                sum += sessionDemand(session.getKey(), session.getValue(), demands);
+            }
+            userDemands[u++] = Math.min(sum, userLimit(user.getKey()));
+        }
+        double[] userShares = share(globalRate, userDemands);
+        for (int i = 0; i < groups.size(); i++) {
+            List<Map.Entry<Session, List<Flow>>> sessions = new ArrayList<>(groups.get(i).entrySet());
+            double[] sessionDemands = new double[sessions.size()];
+            for (int j = 0; j < sessions.size(); j++) {
+                sessionDemands[j] = sessionDemand(sessions.get(j).getKey(), sessions.get(j).getValue(), demands);
+            }
+            double[] sessionShares = share(userShares[i], sessionDemands);
+            for (int j = 0; j < sessions.size(); j++) {
+                List<Flow> sessionFlows = sessions.get(j).getValue();
+                // 路径上没有任何一级限速时流不限速，也不再按上一次的实际速率估计需求
+                if (Math.min(globalRate, Math.min(userLimit(usernames.get(i)), sessionLimit(sessions.get(j).getKey()))) == UNLIMITED) {
+                    for (Flow flow : sessionFlows) {
+                        flow.rate = UNLIMITED;
+                        flow.demand = UNLIMITED;
+                    }
+                    continue;
+                }
+                double[] flowDemands = new double[sessionFlows.size()];
+                for (int k = 0; k < sessionFlows.size(); k++) {
+                    flowDemands[k] = demands.get(sessionFlows.get(k));
+                }
+                double[] flowShares = share(sessionShares[j], flowDemands);
+                for (int k = 0; k < sessionFlows.size(); k++) {
+                    sessionFlows.get(k).rate = Math.max(1, flowShares[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     @param session 会话
+     @param sessionFlows 会话的流
+     @param demands 各流需要的速率
+     @return 会话需要的速率，不超过会话的限速
+     */
+    private double sessionDemand(Session session, List<Flow> sessionFlows, Map<Flow, Double> demands) {
+        double sum = 0;
+        for (Flow flow : sessionFlows) {
+            sum += demands.get(flow);
+        }
+        return Math.min(sum, sessionLimit(session));
+    }
+
+    /**
+     @param session 会话
+     @return 会话的限速（字节/秒），取配置的会话限速和会话自己设置的限速中较低的
+     */
+    private double sessionLimit(Session session) {
+        return Math.min(sessionRate, session.limit);
+    }
+
+    /**
+     @param username 用户名
+     @return 用户的限速（字节/秒）
+     */
+    private double userLimit(String username) {
+        Long override = userRates.get(username);
+        return override != null ? rate(override) : userRate;
+    }
+
+    /**
+     按最大最小公平在各方之间分配带宽：各方平分，需求低于平均份额的一方只分到其需求，剩下的再由其余各方平分
+     @param capacity 可分配的带宽，可以是不限速
+     @param demands 各方需要的速率，可以是不限速
+     @return 各方分到的速率
+     */
+    private static double[] share(double capacity, double[] demands) {
+        if (capacity == UNLIMITED) {
+            return demands;
+        }
+        double[] shares = new double[demands.length];
+        boolean[] done = new boolean[demands.length];
+        int remaining = demands.length;
+        while (remaining > 0) {
+            double fair = Math.max(0, capacity) / remaining;
+            boolean capped = false;
+            for (int i = 0; i < demands.length; i++) {
+                if (!done[i] && demands[i] <= fair) {
+                    shares[i] = demands[i];
+                    capacity -= demands[i];
+                    done[i] = true;
+                    remaining--;
+                    capped = true;
+                }
+            }
+            if (!capped) {
+                for (int i = 0; i < demands.length; i++) {
+                    if (!done[i]) {
+                        shares[i] = fair;
+                    }
+                }
+                break;
+            }
+        }
+        return shares;
+    }
+
+    /**
+     @param bytesPerSecond 配置中的每秒字节数，0或负数表示不限速
+     @return 速率
+     */
+    private static double rate(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? bytesPerSecond : UNLIMITED;
+    }
+
+    /**
+     @param rate 速率（字节/秒）
+     @return 令牌桶的容量，也是每次读写的上限
+     */
+    private static long burst(double rate) {
+        return Math.max(MIN_BURST, (long) (rate * BURST_SECONDS));
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32C;
+
+/**
+ 校验传输类，在开启校验模式时代替FileTransfer收发文件，传输结束后交换校验和，不需要额外读一遍文件。
+ 格式为1字节标志、与FileTransfer相同的“8字节长度 + 原始字节”，以及发送方计算的4字节CRC32C，
+ 标志中带有SHA-256时后面再跟32字节的SHA-256。
+ 发送方和接收方都在数据经过堆外缓冲区时增量计算校验和，接收方比较两边的结果，不一致时传输失败。
+ 校验和覆盖本次传输的字节，断点续传时只覆盖offset之后的部分
+ */
+public class ChecksumTransfer {
+    // 标志：带有SHA-256
+    private static final byte SHA256 = 1;
+    // 读写数据的缓冲区大小
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // SHA-256的长度
+    private static final int SHA256_SIZE = 32;
+    // 可重复使用的堆外缓冲区
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+
+    /**
+     一次传输的校验和
+     @param crc32c CRC32C校验和
+     @param sha256 SHA-256摘要，没有计算时为null
+     */
+    public record Digest(int crc32c, byte[] sha256) {
+        /**
+         比较两个校验和，只有一方带有SHA-256时只比较CRC32C
+         @param other 另一个校验和
+         @return 是否一致
+         */
+        public boolean matches(Digest other) {
+            return crc32c == other.crc32c
+                    && (sha256 == null || other.sha256 == null || Arrays.equals(sha256, other.sha256));
+        }
+
+        @Override
+        public String toString() {
+            return "CRC32C " + HexFormat.of().toHexDigits(crc32c)
+                    + (sha256 == null ? "" : ", SHA-256 " + HexFormat.of().formatHex(sha256));
+        }
+    }
+
+    /**
+     接收方的校验结果
+     @param expected 发送方计算的校验和
+     @param actual 接收方计算的校验和
+     */
+    public record Result(Digest expected, Digest actual) {
+        /**
+         @return 两边的校验和是否一致
+         */
+        public boolean verified() {
+            return actual.matches(expected);
+        }
+    }
+
+    /**
+     以FileTransfer的格式发送文件内容的方法
+     */
+    public interface Body {
+        void send(SocketChannel channel) throws IOException;
+    }
+
+    private ChecksumTransfer() {
+    }
+
+    /**
+     发送文件，边读边计算校验和，最后发送校验和
+     @param filePath 要发送的文件路径
+     @param offset 开始发送的位置
+     @param channel 连接到对端的Socket通道
+     @param sha256 是否同时计算SHA-256
+     @return 发送的数据的校验和
+     @throws IOException 如果offset超出文件长度，或者读取文件、写入通道时发生IO异常，则抛出该异常
+     */
+    public static Digest send(Path filePath, long offset, SocketChannel channel, boolean sha256) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            if (offset < 0 || offset > size) {
+                throw new IOException("Restart offset beyond end of file.");
+            }
+            ByteBuffer header = ByteBuffer.allocate(1 + Long.BYTES).put(sha256 ? SHA256 : 0).putLong(size - offset).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            CRC32C crc = new CRC32C();
+            MessageDigest sha = sha256 ? sha256() : null;
+            ByteBuffer buffer = acquire();
+            try {
+                long position = offset;
+                while (position < size) {
+                    buffer.clear().limit((int) TransferProgress.limit(channel, Math.min(buffer.capacity(), size - position)));
+                    int n = fileChannel.read(buffer, position);
+                    if (n <= 0) {
+                        throw new EOFException("File truncated during transfer.");
+                    }
+                    position += n;
+                    update(buffer.flip(), crc, sha);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    TransferProgress.advanced(channel, n);
+                }
+            } finally {
+                POOL.offer(buffer);
+            }
+            Digest digest = new Digest((int) crc.getValue(), sha == null ? null : sha.digest());
+            writeTrailer(channel, digest);
+            return digest;
+        }
+    }
+
+    /**
+     发送已经知道校验和的内容，不再计算校验和，内容可以用零拷贝或者从缓存中发送
+     @param body 以FileTransfer的格式发送内容的方法
+     @param digest 内容的校验和
+     @param channel 连接到对端的Socket通道
+     @throws IOException 如果写入通道时发生IO异常，则抛出该异常
+     */
+    public static void send(Body body, Digest digest, SocketChannel channel) throws IOException {
+        ByteBuffer flags = ByteBuffer.allocate(1).put(digest.sha256() != null ? SHA256 : 0).flip();
+        while (flags.hasRemaining()) {
+            channel.write(flags);
+        }
+        body.send(channel);
+        writeTrailer(channel, digest);
+    }
+
+    /**
+     接收文件，边收边计算校验和并写入文件的offset处，最后与发送方的校验和比较。
+     文件在offset之后的原有内容会被截掉。校验和不一致时丢弃本次写入的内容：从头接收的文件被删除，
+     断点续传的文件截回offset，不会留下损坏的数据；连接中断时保留已经收到的部分以便续传
+     @param channel 连接到对端的Socket通道
+     @param filePath 保存文件的路径
+     @param offset 开始写入的位置，为0时覆盖整个文件
+     @return 校验结果
+     @throws IOException 如果数据格式不正确，或者读取通道、写入文件时发生IO异常，则抛出该异常
+     */
+    public static Result receive(SocketChannel channel, Path filePath, long offset) throws IOException {
+        ByteBuffer header = readFully(channel, ByteBuffer.allocate(1 + Long.BYTES));
+        boolean sha256 = (header.get() & SHA256) != 0;
+        long length = header.getLong();
+        if (length < 0) {
+            throw new IOException("Invalid file length: " + length);
+        }
+        CRC32C crc = new CRC32C();
+        MessageDigest sha = sha256 ? sha256() : null;
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            fileChannel.truncate(offset);
+            ByteBuffer buffer = acquire();
+            try {
+                long position = offset;
+                long end = offset + length;
+                while (position < end) {
+                    // 只读到数据的末尾，后面的校验和留在通道中
+                    buffer.clear().limit((int) TransferProgress.limit(channel, Math.min(buffer.capacity(), end - position)));
+                    int n = channel.read(buffer);
+                    if (n < 0) {
+                        throw new EOFException("Connection closed during transfer.");
+                    }
+                    TransferProgress.advanced(channel, n);
+                    update(buffer.flip(), crc, sha);
+                    while (buffer.hasRemaining()) {
+                        position += fileChannel.write(buffer, position);
+                    }
+                }
+            } finally {
+                POOL.offer(buffer);
+            }
+        }
+        ByteBuffer trailer = readFully(channel, ByteBuffer.allocate(Integer.BYTES + (sha256 ? SHA256_SIZE : 0)));
+        int expectedCrc = trailer.getInt();
+        byte[] expectedSha = null;
+        if (sha256) {
+            expectedSha = new byte[SHA256_SIZE];
+            trailer.get(expectedSha);
+        }
+        Result result = new Result(new Digest(expectedCrc, expectedSha), new Digest((int) crc.getValue(), sha == null ? null : sha.digest()));
+        if (!result.verified()) {
+            discard(filePath, offset);
+        }
+        return result;
+    }
+
+    /**
+     丢弃校验失败的内容
+     @param filePath 文件路径
+     @param offset 本次写入的开始位置
+     @throws IOException 如果删除或截断文件失败，则抛出该异常
+     */
+    private static void discard(Path filePath, long offset) throws IOException {
+        if (offset == 0) {
+            Files.deleteIfExists(filePath);
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.WRITE)) {
+            fileChannel.truncate(offset);
+        }
+    }
+
+    /**
+     用缓冲区中的数据更新校验和，不改变缓冲区的位置
+     @param buffer 处于可读状态的缓冲区
+     @param crc CRC32C校验和
+     @param sha SHA-256摘要，可以为null
+     */
+    private static void update(ByteBuffer buffer, CRC32C crc, MessageDigest sha) {
+        crc.update(buffer.duplicate());
+        if (sha != null) {
+            sha.update(buffer.duplicate());
+        }
+    }
+
+    /**
+     写出校验和
+     @param channel Socket通道
+     @param digest 校验和
+     @throws IOException 如果写入通道时发生IO异常，则抛出该异常
+     */
+    private static void writeTrailer(SocketChannel channel, Digest digest) throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(Integer.BYTES + (digest.sha256() != null ? SHA256_SIZE : 0));
+        trailer.putInt(digest.crc32c());
+        if (digest.sha256() != null) {
+            trailer.put(digest.sha256());
+        }
+        trailer.flip();
+        while (trailer.hasRemaining()) {
+            channel.write(trailer);
+        }
+    }
+
+    /**
+     从通道读满缓冲区的剩余空间，读取完成后缓冲区处于可读状态
+     @param channel Socket通道
+     @param buffer 缓冲区
+     @return 读满的缓冲区
+     @throws IOException 如果连接提前关闭，则抛出该异常
+     */
+    private static ByteBuffer readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed during transfer.");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     从池中取出堆外缓冲区，池为空时新建
+     @return 堆外缓冲区
+     */
+    private static ByteBuffer acquire() {
+        ByteBuffer buffer = POOL.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     @return 新的SHA-256摘要对象
+     */
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,631 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ 内容寻址的去重存储。开启后上传的文件按内容切分成块，每块以SHA-256命名保存在存储目录中，相同内容的块只保存一份。
+ 块的清单保存在存储目录的refs子目录中，以服务器生成的随机标识命名，第一行是引用文件的绝对路径（UTF-8编码的十六进制），
+ 第二行是文件长度，之后每行是一个块的哈希和长度。
+ 用户可见的目录树中只保存引用文件，内容为“#chunks v1”和清单的标识。只有清单确实存在时才把文件当作引用，
+ 用户上传的普通文件即使以同样的内容开头，也无法猜到其他文件的标识，不能借此读取别人的块。
+ 存储目录的owners子目录按用户记录每个用户自己上传过的块。去重上传只省去上传者自己已有的块，
+ 其他块即使已经保存也要求重新发送（收到后只校验不重复保存），缺块的回复不会透露其他用户是否存有某个内容。
+ 下载时直接从块文件发送；需要普通文件的传输方式（压缩、增量同步、并行传输、断点续传上传）先把引用还原为普通文件。
+ 后台线程定期标记清除：记录的路径已经不再指向的清单被删除，任何清单都不用的块及其归属记录被删除。
+ 正在上传或下载的块被钉住，清除期间不能开始新的传输；刚写入的清单和块有一段宽限期，不会在写完引用文件之前被清除
+ */
+public class ChunkStore {
+    // 引用文件的第一行
+    private static final String MAGIC = "#chunks v1";
+    private static final byte[] MAGIC_BYTES = (MAGIC + " ").getBytes(StandardCharsets.UTF_8);
+    // 清单标识的字节数，十六进制表示后为32个字符
+    private static final int TOKEN_BYTES = 16;
+    // 生成清单标识的随机数发生器
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // 清除的宽限期，比它新的清单、块和临时文件不清除
+    private static final long GRACE_MILLIS = 60 * 60 * 1000L;
+    // 所有会话共享的存储，未开启时为null
+    private static volatile ChunkStore shared;
+
+    /**
+     引用文件的内容
+     @param size 文件长度
+     @param chunks 按顺序排列的块
+     */
+    public record Reference(long size, List<DedupTransfer.Chunk> chunks) {
+    }
+
+    // 存储目录
+    private final Path directory;
+    // 清单目录
+    private final Path references;
+    // 按用户记录块归属的目录
+    private final Path owners;
+    // 正在传输的块及其引用计数，清除期间对其加锁
+    private final Map<String, Integer> pins = new HashMap<>();
+
+    /**
+     构造函数
+     @param directory 存储目录，应位于服务器根目录之外
+     @throws IOException 如果创建存储目录失败，则抛出该异常
+     */
+    public ChunkStore(Path directory) throws IOException {
+        this.directory = directory;
+        this.references = directory.resolve("refs");
+        this.owners = directory.resolve("owners");
+        Files.createDirectories(references);
+        Files.createDirectories(owners);
+    }
+
+    /**
+     开启所有会话共享的去重存储，在服务器启动时调用
+     @param directory 存储目录，为null时不开启
+     @param sweepMinutes 标记清除的间隔（分钟），为0时不清除
+     @throws IOException 如果创建存储目录失败，则抛出该异常
+     */
+    public static void configure(String directory, int sweepMinutes) throws IOException {
+        shared = directory == null ? null : new ChunkStore(Paths.get(directory));
+        if (shared != null && sweepMinutes > 0) {
+            ChunkStore store = shared;
+            Thread thread = new Thread(() -> store.sweepEvery(sweepMinutes * 60_000L), "chunk-sweeper");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     获取所有会话共享的去重存储
+     @return 去重存储，未开启时返回null
+     */
+    public static ChunkStore shared() {
+        return shared;
+    }
+
+    /**
+     判断文件是否是引用文件
+     @param filePath 文件路径
+     @return 是否是引用文件
+     */
+    public boolean isReference(Path filePath) {
+        return manifestPath(filePath) != null;
+    }
+
+    /**
+     获取引用文件对应的清单路径
+     @param filePath 文件路径
+     @return 清单的路径，不是引用文件或者清单不存在时返回null
+     */
+    private Path manifestPath(Path filePath) {
+        if (!Files.isRegularFile(filePath)) {
+            return null;
+        }
+        byte[] content;
+        try (InputStream in = Files.newInputStream(filePath)) {
+            content = in.readNBytes(MAGIC_BYTES.length + 2 * TOKEN_BYTES + 2);
+        } catch (IOException e) {
+            return null;
+        }
+        if (content.length != MAGIC_BYTES.length + 2 * TOKEN_BYTES + 1
+                || !Arrays.equals(content, 0, MAGIC_BYTES.length, MAGIC_BYTES, 0, MAGIC_BYTES.length)
+                || content[content.length - 1] != '\n') {
+            return null;
+        }
+        String token = new String(content, MAGIC_BYTES.length, 2 * TOKEN_BYTES, StandardCharsets.US_ASCII);
+        if (!token.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+            return null;
+        }
+        Path manifest = references.resolve(token);
+        return Files.isRegularFile(manifest) ? manifest : null;
+    }
+
+    /**
+     获取引用文件当前使用的清单，上传覆盖引用文件之前调用，上传结束后交给release
+     @param filePath 文件路径
+     @return 清单的路径，不是引用文件时返回null
+     */
+    public Path manifestOf(Path filePath) {
+        return manifestPath(filePath);
+    }
+
+    /**
+     释放被覆盖的引用文件的清单，文件已经不再指向该清单时删除清单，其中的块由之后的清除回收
+     @param filePath 文件路径
+     @param manifest 覆盖之前manifestOf返回的清单，可以为null
+     @throws IOException 如果删除清单失败，则抛出该异常
+     */
+    public void release(Path filePath, Path manifest) throws IOException {
+        if (manifest != null && !manifest.equals(manifestPath(filePath))) {
+            Files.deleteIfExists(manifest);
+        }
+    }
+
+    /**
+     读取引用文件
+     @param filePath 引用文件的路径
+     @return 引用文件的内容
+     @throws IOException 如果读取失败或者格式不正确，则抛出该异常
+     */
+    public Reference read(Path filePath) throws IOException {
+        Path manifest = manifestPath(filePath);
+        if (manifest == null) {
+            throw new IOException("Not a chunk reference: " + filePath);
+        }
+        try (BufferedReader in = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            // 第一行是引用文件的路径，只在清除时使用
+            in.readLine();
+            long size = Long.parseLong(in.readLine());
+            List<DedupTransfer.Chunk> chunks = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                chunks.add(new DedupTransfer.Chunk(HexFormat.of().parseHex(parts[0]), Integer.parseInt(parts[1])));
+            }
+            return new Reference(size, chunks);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid chunk reference: " + filePath);
+        }
+    }
+
+    /**
+     获取文件的实际长度，引用文件返回其引用的内容的长度
+     @param filePath 文件路径
+     @return 文件长度
+     @throws IOException 如果读取失败，则抛出该异常
+     */
+    public long size(Path filePath) throws IOException {
+        return isReference(filePath) ? read(filePath).size() : Files.size(filePath);
+    }
+
+    /**
+     接收去重上传：根据发送方的清单回复上传者还没有的块，接收并校验这些块，最后写入引用文件
+     @param channel 连接到发送方的Socket通道
+     @param filePath 保存文件的路径
+     @param owner 上传的用户名
+     @return 实际接收的块数据字节数
+     @throws IOException 如果块的哈希不一致，或者读写通道、文件时发生IO异常，则抛出该异常
+     */
+    public long receive(SocketChannel channel, Path filePath, String owner) throws IOException {
+        DedupTransfer.Manifest manifest = DedupTransfer.readManifest(channel);
+        List<DedupTransfer.Chunk> chunks = manifest.chunks();
+        pin(chunks);
+        try {
+            return receive(channel, filePath, owner, manifest);
+        } finally {
+            unpin(chunks);
+        }
+    }
+
+    /**
+     接收清单之后的部分，清单中的块已被钉住
+     */
+    private long receive(SocketChannel channel, Path filePath, String owner, DedupTransfer.Manifest manifest) throws IOException {
+        List<DedupTransfer.Chunk> chunks = manifest.chunks();
+        // 同一个块在文件中出现多次时只请求一次
+        Set<String> requested = new HashSet<>();
+        byte[] missing = new byte[(chunks.size() + 7) / 8];
+        for (int i = 0; i < chunks.size(); i++) {
+            String id = chunks.get(i).id();
+            if (!owns(owner, id) && requested.add(id)) {
+                missing[i / 8] |= (byte) (1 << (i % 8));
+            }
+        }
+        ByteBuffer bitmap = ByteBuffer.wrap(missing);
+        while (bitmap.hasRemaining()) {
+            channel.write(bitmap);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(DedupTransfer.MAX_CHUNK_SIZE);
+        MessageDigest sha256 = DedupTransfer.sha256();
+        long received = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            if ((missing[i / 8] & (1 << (i % 8))) == 0) {
+                continue;
+            }
+            DedupTransfer.Chunk chunk = chunks.get(i);
+            buffer.clear().limit(chunk.length());
+            DedupTransfer.readFully(channel, buffer);
+            sha256.update(buffer.array(), 0, chunk.length());
+            if (!Arrays.equals(sha256.digest(), chunk.hash())) {
+                throw new IOException("Chunk hash mismatch.");
+            }
+            store(chunk.id(), buffer);
+            claim(owner, chunk.id());
+            received += chunk.length();
+        }
+        writeReference(filePath, new Reference(manifest.size(), chunks));
+        return received;
+    }
+
+    /**
+     把普通文件转换为引用文件：切分文件，保存存储中还没有的块，再用引用文件替换原文件。上传者随后拥有文件中的所有块
+     @param filePath 文件路径
+     @param owner 上传的用户名
+     @throws IOException 如果读写文件时发生IO异常，则抛出该异常
+     */
+    public void ingest(Path filePath, String owner) throws IOException {
+        if (!Files.isRegularFile(filePath) || isReference(filePath)) {
+            return;
+        }
+        List<DedupTransfer.Chunk> chunks;
+        long size;
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            chunks = DedupTransfer.chunk(fileChannel);
+            size = fileChannel.size();
+            pin(chunks);
+        }
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(DedupTransfer.MAX_CHUNK_SIZE);
+            long position = 0;
+            for (DedupTransfer.Chunk chunk : chunks) {
+                if (!Files.exists(chunkPath(chunk.id()))) {
+                    buffer.clear().limit(chunk.length());
+                    while (buffer.hasRemaining()) {
+                        if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("File changed during ingest: " + filePath);
+                        }
+                    }
+                    store(chunk.id(), buffer.flip());
+                }
+                claim(owner, chunk.id());
+                position += chunk.length();
+            }
+            writeReference(filePath, new Reference(size, chunks));
+        } finally {
+            unpin(chunks);
+        }
+    }
+
+    /**
+     以FileTransfer的格式从块文件发送引用的内容
+     @param filePath 引用文件的路径
+     @param offset 开始发送的位置
+     @param channel 连接到对端的Socket通道
+     @return 发送的字节数
+     @throws IOException 如果offset超出文件长度，或者读取块文件、写入通道时发生IO异常，则抛出该异常
+     */
+    public long send(Path filePath, long offset, SocketChannel channel) throws IOException {
+        Reference reference = read(filePath);
+        if (offset < 0 || offset > reference.size()) {
+            throw new IOException("Restart offset beyond end of file.");
+        }
+        FileTransfer.writeLong(channel, reference.size() - offset);
+        pin(reference.chunks());
+        try {
+            long position = 0;
+            for (DedupTransfer.Chunk chunk : reference.chunks()) {
+                long end = position + chunk.length();
+                if (end > offset) {
+                    long start = Math.max(position, offset) - position;
+                    try (FileChannel chunkChannel = FileChannel.open(chunkPath(chunk.id()), StandardOpenOption.READ)) {
+                        FileTransfer.sendRange(chunkChannel, start, chunk.length() - start, channel);
+                    }
+                }
+                position = end;
+            }
+        } finally {
+            unpin(reference.chunks());
+        }
+        return reference.size() - offset;
+    }
+
+    /**
+     把引用还原为普通文件
+     @param filePath 引用文件的路径
+     @param target 还原的文件路径，可以与引用文件相同
+     @throws IOException 如果读写文件时发生IO异常，则抛出该异常
+     */
+    public void materialize(Path filePath, Path target) throws IOException {
+        Path manifest = manifestPath(filePath);
+        Reference reference = read(filePath);
+        Path temp = createTemp(target);
+        pin(reference.chunks());
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            for (DedupTransfer.Chunk chunk : reference.chunks()) {
+                try (FileChannel chunkChannel = FileChannel.open(chunkPath(chunk.id()), StandardOpenOption.READ)) {
+                    long position = 0;
+                    while (position < chunk.length()) {
+                        position += chunkChannel.transferTo(position, chunk.length() - position, out);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        } finally {
+            unpin(reference.chunks());
+        }
+        replace(temp, target);
+        // 原地还原后引用文件已经不存在，清单不再需要
+        if (manifest != null && target.equals(filePath)) {
+            Files.deleteIfExists(manifest);
+        }
+    }
+
+    /**
+     还原到存储目录中的临时文件，用于需要普通文件的下载，使用后由调用者删除
+     @param filePath 引用文件的路径
+     @return 临时文件的路径
+     @throws IOException 如果读写文件时发生IO异常，则抛出该异常
+     */
+    public Path materializeTemporary(Path filePath) throws IOException {
+        Path temp = Files.createTempFile(directory, "download", ".tmp");
+        materialize(filePath, temp);
+        return temp;
+    }
+
+    /**
+     块文件的路径，按哈希的前两位分目录保存
+     @param id 十六进制表示的哈希
+     @return 块文件的路径
+     */
+    private Path chunkPath(String id) {
+        return directory.resolve(id.substring(0, 2)).resolve(id);
+    }
+
+    /**
+     用户的块归属记录的路径，用户名按UTF-8编码为十六进制作为目录名
+     @param owner 用户名
+     @param id 十六进制表示的哈希
+     @return 归属记录的路径
+     */
+    private Path ownerPath(String owner, String id) {
+        String name = HexFormat.of().formatHex(owner.getBytes(StandardCharsets.UTF_8));
+        return owners.resolve(name).resolve(id.substring(0, 2)).resolve(id);
+    }
+
+    /**
+     @param owner 用户名
+     @param id 十六进制表示的哈希
+     @return 用户是否上传过该块，并且块仍在存储中
+     */
+    private boolean owns(String owner, String id) {
+        return Files.exists(ownerPath(owner, id)) && Files.exists(chunkPath(id));
+    }
+
+    /**
+     记录用户拥有一个块
+     @param owner 用户名
+     @param id 十六进制表示的哈希
+     @throws IOException 如果创建记录失败，则抛出该异常
+     */
+    private void claim(String owner, String id) throws IOException {
+        Path path = ownerPath(owner, id);
+        Files.createDirectories(path.getParent());
+        try {
+            Files.createFile(path);
+        } catch (FileAlreadyExistsException e) {
+            // 已经记录过
+        }
+    }
+
+    /**
+     保存一个块，先写入临时文件再移动到最终位置，其他会话不会读到不完整的块
+     @param id 十六进制表示的哈希
+     @param data 块的内容
+     @throws IOException 如果写入文件时发生IO异常，则抛出该异常
+     */
+    private void store(String id, ByteBuffer data) throws IOException {
+        Path path = chunkPath(id);
+        if (Files.exists(path)) {
+            return;
+        }
+        Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(path.getParent(), id, ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            while (data.hasRemaining()) {
+                out.write(data);
+            }
+        }
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // 其他会话同时保存了相同的块
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     在清单目录中写入新的清单，再写入引用文件替换可见目录树中的原文件
+     @param filePath 文件路径
+     @param reference 引用文件的内容
+     @throws IOException 如果写入文件时发生IO异常，则抛出该异常
+     */
+    private void writeReference(Path filePath, Reference reference) throws IOException {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        String token = HexFormat.of().formatHex(bytes);
+        Path manifest = references.resolve(token);
+        try (BufferedWriter out = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            out.write(HexFormat.of().formatHex(filePath.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8)) + "\n");
+            out.write(reference.size() + "\n");
+            for (DedupTransfer.Chunk chunk : reference.chunks()) {
+                out.write(chunk.id() + " " + chunk.length() + "\n");
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(manifest);
+            throw e;
+        }
+        Path previous = manifestPath(filePath);
+        Path temp;
+        try {
+            temp = createTemp(filePath);
+        } catch (IOException e) {
+            Files.deleteIfExists(manifest);
+            throw e;
+        }
+        try {
+            Files.writeString(temp, MAGIC + " " + token + "\n", StandardCharsets.UTF_8);
+            replace(temp, filePath);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            Files.deleteIfExists(manifest);
+            throw e;
+        }
+        if (previous != null) {
+            Files.deleteIfExists(previous);
+        }
+    }
+
+    /**
+     钉住一组块，清除时不删除它们。清除期间等待清除结束
+     @param chunks 块
+     */
+    private void pin(List<DedupTransfer.Chunk> chunks) {
+        synchronized (pins) {
+            for (DedupTransfer.Chunk chunk : chunks) {
+                pins.merge(chunk.id(), 1, Integer::sum);
+            }
+        }
+    }
+
+    /**
+     解除pin钉住的一组块
+     @param chunks 块
+     */
+    private void unpin(List<DedupTransfer.Chunk> chunks) {
+        synchronized (pins) {
+            for (DedupTransfer.Chunk chunk : chunks) {
+                pins.computeIfPresent(chunk.id(), (id, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+    }
+
+    /**
+     后台清除线程，按间隔反复执行标记清除
+     @param intervalMillis 清除的间隔（毫秒）
+     */
+    private void sweepEvery(long intervalMillis) {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                int removed = sweep();
+                if (removed > 0) {
+                    System.out.println("Chunk store sweep removed " + removed + " files.");
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Chunk store sweep failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     标记清除：删除引用文件已经不再指向的清单，再删除任何清单和正在进行的传输都不用的块，以及已删除的块的归属记录。
+     宽限期内的清单、块和临时文件保留，清除期间不能开始新的传输
+     @return 删除的文件数
+     @throws IOException 如果遍历存储目录或删除文件失败，则抛出该异常
+     */
+    public int sweep() throws IOException {
+        long cutoff = System.currentTimeMillis() - GRACE_MILLIS;
+        int removed = 0;
+        synchronized (pins) {
+            Set<String> live = new HashSet<>(pins.keySet());
+            try (DirectoryStream<Path> manifests = Files.newDirectoryStream(references)) {
+                for (Path manifest : manifests) {
+                    boolean recent = Files.getLastModifiedTime(manifest).toMillis() > cutoff;
+                    if (!recent && !inUse(manifest)) {
+                        Files.deleteIfExists(manifest);
+                        removed++;
+                        continue;
+                    }
+                    try (Stream<String> lines = Files.lines(manifest, StandardCharsets.UTF_8)) {
+                        lines.skip(2).forEach(line -> live.add(line.substring(0, Math.max(line.indexOf(' '), 0))));
+                    }
+                }
+            }
+            // 块文件在两位十六进制的子目录中，存储目录下还有下载时还原的临时文件
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (Files.isDirectory(entry) && name.length() == 2) {
+                        try (DirectoryStream<Path> chunks = Files.newDirectoryStream(entry)) {
+                            for (Path chunk : chunks) {
+                                if (!live.contains(chunk.getFileName().toString())
+                                        && Files.getLastModifiedTime(chunk).toMillis() <= cutoff) {
+                                    Files.deleteIfExists(chunk);
+                                    removed++;
+                                }
+                            }
+                        }
+                    } else if (name.endsWith(".tmp") && Files.getLastModifiedTime(entry).toMillis() <= cutoff) {
+                        Files.deleteIfExists(entry);
+                        removed++;
+                    }
+                }
+            }
+            try (Stream<Path> records = Files.walk(owners)) {
+                for (Path record : (Iterable<Path>) records.filter(Files::isRegularFile)::iterator) {
+                    if (!Files.exists(chunkPath(record.getFileName().toString()))) {
+                        Files.deleteIfExists(record);
+                        removed++;
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     判断清单是否仍被引用文件使用：清单中记录的路径仍然是指向该清单的引用文件
+     @param manifest 清单的路径
+     @return 是否仍被使用，清单格式不正确时返回false
+     */
+    private boolean inUse(Path manifest) {
+        try (BufferedReader in = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line = in.readLine();
+            Path filePath = Paths.get(new String(HexFormat.of().parseHex(line), StandardCharsets.UTF_8));
+            return manifest.equals(manifestPath(filePath));
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     在目标文件所在的目录中创建名字唯一的临时文件，同时写入同一个文件的会话不会互相覆盖
+     @param target 目标文件
+     @return 临时文件的路径
+     @throws IOException 如果创建文件失败，则抛出该异常
+     */
+    private static Path createTemp(Path target) throws IOException {
+        Path absolute = target.toAbsolutePath();
+        return Files.createTempFile(absolute.getParent(), "." + absolute.getFileName() + ".", ".chunks");
+    }
+
+    /**
+     用临时文件替换目标文件
+     */
+    private static void replace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -1,69 +1,88 @@
 import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.List;
 
 /**
- 客户端线程类，用于处理客户端的请求
+ 客户端线程类，用于处理客户端的请求，由服务器在平台线程或虚拟线程中执行
  */
-public class ClientThread extends Thread {
+public class ClientThread implements Runnable {
     // 客户端的Socket连接
     private final Socket socket;
-    // 用户列表
-    private final List<User> users;
-    // 根目录路径
-    private final String rootDir;
+    // 配置，登录时使用其中最新的用户和根目录
+    private final ConfigWatcher config;
 
     /**
      构造函数，初始化相关属性
      @param socket 客户端的Socket连接
-     @param users 用户列表
-     @param rootDir 根目录路径
+     @param config 配置
      */
-    public ClientThread(Socket socket, List<User> users, String rootDir) {
+    public ClientThread(Socket socket, ConfigWatcher config) {
         this.socket = socket;
-        this.users = users;
-        this.rootDir = rootDir;
+        this.config = config;
     }
 
     /**
-     程序的入口点，执行客户端请求处理逻辑
+     程序的入口点，执行客户端请求处理逻辑。会话在回收器中登记租约，每收到一行输入刷新一次，
+     空闲或者传输停滞超时后回收器关闭Socket，阻塞的读写随即结束
      */
     @Override
     public void run() {
+        //获取用户的IP地址
+        String ip = socket.getInetAddress().getHostAddress();
+        //在服务器端输出提示信息
+        System.out.println("Client " + ip + " connected.");
+        SessionReaper.Lease lease = SessionReaper.shared().open(ip, this::closeSocket);
         try (
-                // 获取输入输出流
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                lease;
+                // 获取输入输出流，每读到一行输入刷新租约
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)) {
+                    @Override
+                    public String readLine() throws IOException {
+                        String line = super.readLine();
+                        lease.touch();
+                        return line;
+                    }
+                };
                 BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))
         ) {
-            //获取用户的IP地址
-            String ip = socket.getInetAddress().getHostAddress();
-            //在服务器端输出提示信息
-            System.out.println("Client " + ip + " connected.");
-            //创建日志
-            Logger log = new Logger(System.getProperty("user.dir") + "\\src");
-            // 用户登录验证过程
-            Authenticator authenticator = new Authenticator(users, in, out, ip, log, socket);
-            User user = authenticator.run();
-            if (user == null) {
-                return;
-            }
-            // 进入命令提示符状态
-            Path currPath = Paths.get(rootDir);
-            out.write(user.getUsername() + "@" + socket.getInetAddress().getHostAddress() + ":" + currPath + "$ \n");
-            out.flush();
+            //所有会话共享的日志
+            Logger log = Logger.shared();
+            // 用户登录验证过程，会话无论以何种方式结束都释放登记的名额
+            try (Authenticator authenticator = new Authenticator(config, out, ip, log)) {
+                User user = authenticator.run(in);
+                if (user != null) {
+                    lease.setUsername(user.getUsername());
+                    // 进入命令提示符状态，会话一直使用登录时的根目录，恢复的会话回到原来的当前目录
+                    ResumeTokens.Ticket ticket = authenticator.getTicket();
+                    CommandProcessor processor = new CommandProcessor(out, socket.getOutputStream(), ticket.getCurrentPath(), ip,
+                            log, user, ticket.getRootDir(), socket, ticket, lease);
+                    processor.prompt();
 
-            // 读取并处理用户输入的命令
-            CommandProcessor processor = new CommandProcessor(in, out, currPath, ip, log, user, rootDir, socket);
-            processor.process();
+                    // 读取并处理用户输入的命令
+                    processor.process(in);
+                }
+            }
+        } catch (IOException e) {
+            // 被回收的会话的连接已经关闭，读写失败是预期的
+            if (!lease.isExpired()) {
+                System.err.println("Error handling client request: " + e.getMessage());
+            }
+        } finally {
             // 关闭连接
-            socket.close();
+            closeSocket();
             //在服务器端输出提示信息
             System.out.println("Client " + ip + " disconnected.");
+        }
+    }
+
+    /**
+     关闭客户端连接，会话结束时或者被回收器回收时调用
+     */
+    private void closeSocket() {
+        try {
+            socket.close();
         } catch (IOException e) {
-            System.err.println("Error handling client request: " + e.getMessage());
+            System.err.println("Error closing client connection: " + e.getMessage());
         }
     }
 }
\ No newline at end of file
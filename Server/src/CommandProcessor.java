@@ -1,10 +1,12 @@
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Map;
 import java.util.Objects;
 import java.net.Socket;
 
@@ -12,9 +14,22 @@ import java.net.Socket;
  命令处理器类，用于解析并处理用户输入的命令
  */
 public class CommandProcessor {
-    //输入输出流
-    private final BufferedReader in;
-    private final BufferedWriter out;
+    //并行传输的最大数据连接数
+    private static final int MAX_STREAMS = 16;
+    //统计传输字节数的监听器，所有会话共用
+    private static final TransferProgress.Listener TRANSFERRED = bytes -> Metrics.shared().transferred(bytes);
+    //流水线模式下带标签的命令以该字符开头，格式为“#标签 命令”
+    private static final String TAG_PREFIX = "#";
+    //输出流，处理带标签的命令时临时替换为加标签的输出流，切换到分帧模式后替换为帧输出流
+    private BufferedWriter out;
+    //控制连接的字节输出流，分帧模式下发送帧，为null时会话不支持分帧模式
+    private final OutputStream frameOut;
+    //分帧模式下的帧输出流，文本模式下为null
+    private FrameWriter framer;
+    //是否在本条命令的提示符之后切换到分帧模式
+    private boolean framing = false;
+    //分帧模式下上一次发送的提示符对应的目录，目录没有变化时提示符帧不再带上提示符
+    private Path promptedPath;
     //当前路径
     private Path currentPath;
     //用户ip
@@ -27,10 +42,51 @@ public class CommandProcessor {
     private final String rootDir;
     //socket
     private final Socket socket;
+    //会话恢复令牌，切换目录时更新其中记录的当前目录
+    private final ResumeTokens.Ticket ticket;
+    //会话在回收器中的租约，传输期间登记传输的连接，按停滞时限检查
+    private final SessionReaper.Lease lease;
+    //会话在带宽调度器中的登记，传输期间按分配的速率限速
+    private final BandwidthScheduler.Session bandwidth;
+    //是否使用被动模式，通过独立的数据连接传输文件
+    private boolean passive = false;
+    //是否开启压缩模式，get和put的文件数据经过Deflate压缩后传输
+    private boolean compress = false;
+    //是否开启增量同步模式，对方已有旧版本的文件时只传输变化的部分
+    private boolean delta = false;
+    //是否开启去重上传模式，服务器已有的块不再传输
+    private boolean dedup = false;
+    //是否开启校验模式，get和put传输结束后比较两边边传边算的CRC32C
+    private boolean verify = false;
+    //校验模式下是否同时比较SHA-256
+    private boolean sha256 = false;
+    //断点续传的位置，由rest命令设置，只对下一次get或put有效
+    private long restartOffset = 0;
+    //被动模式下每次传输使用的数据连接数，大于1时分段并行传输
+    private int streams = 1;
+    //等待客户端应答时，下一行输入的处理步骤
+    private Reply pending;
+    //正在处理的命令，所有步骤完成后记录耗时
+    private Metrics.Operation operation;
+    //正在处理的命令已经耗费的时间（纳秒），不包括等待客户端应答的时间
+    private long elapsed;
+
+    /**
+     等待客户端后续应答的处理步骤
+     */
+    private interface Reply {
+        void handle(String response) throws IOException;
+    }
+
+    /**
+     后台传输结束后执行的收尾步骤
+     */
+    private interface Completion {
+        void run() throws IOException;
+    }
 
     /**
      构造函数，初始化相关属性
-     @param in 从客户端读取数据的缓冲字符输入流
      @param out 向客户端发送数据的缓冲字符输出流
      @param currentPath 当前工作目录的路径
      @param ip 客户端IP地址
@@ -38,24 +94,48 @@ public class CommandProcessor {
      @param user 当前登录的用户
      @param rootDir FTP服务器根目录的路径
      @param socket 连接到客户端的Socket
+     @param ticket 登录时签发的会话恢复令牌
+     @param lease 会话在回收器中的租约
      */
-    public CommandProcessor(BufferedReader in, BufferedWriter out, Path currentPath, String ip, Logger log, User user, String rootDir, Socket socket) {
-        this.in = in;
+    public CommandProcessor(BufferedWriter out, Path currentPath, String ip, Logger log, User user, String rootDir, Socket socket,
+                            ResumeTokens.Ticket ticket, SessionReaper.Lease lease) {
+        this(out, null, currentPath, ip, log, user, rootDir, socket, ticket, lease);
+    }
+
+    /**
+     构造函数，会话支持切换到分帧模式
+     @param out 向客户端发送数据的缓冲字符输出流
+     @param frameOut 控制连接的字节输出流，分帧模式下发送帧，为null时不支持分帧模式
+     @param currentPath 当前工作目录的路径
+     @param ip 客户端IP地址
+     @param log 日志记录器
+     @param user 当前登录的用户
+     @param rootDir FTP服务器根目录的路径
+     @param socket 连接到客户端的Socket
+     @param ticket 登录时签发的会话恢复令牌
+     @param lease 会话在回收器中的租约
+     */
+    public CommandProcessor(BufferedWriter out, OutputStream frameOut, Path currentPath, String ip, Logger log, User user,
+                            String rootDir, Socket socket, ResumeTokens.Ticket ticket, SessionReaper.Lease lease) {
         this.out = out;
+        this.frameOut = frameOut;
         this.currentPath = currentPath;
         this.ip = ip;
         this.log = log;
         this.user = user;
         this.rootDir = rootDir;
         this.socket = socket;
+        this.ticket = ticket;
+        this.lease = lease;
+        this.bandwidth = BandwidthScheduler.shared().session(user.getUsername());
     }
 
     /**
-     解析命令
+     解析命令，包内可见以便基准测试直接调用
      @param input 用户输入的命令字符串
      @return 解析得到的Command对象
      */
-    private Command parseCommand(String input) {
+    Command parseCommand(String input) {
         String[] tokens = input.split("\\s+");
         String command = tokens[0];
         String arg = tokens.length > 1 ? tokens[1] : null;
@@ -67,23 +147,8 @@ public class CommandProcessor {
      @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
      */
     private void dir() throws IOException {
-        //列出当前目录下的文件和文件夹，用不同的颜色区分，一行显示6个
-        File[] files = this.currentPath.toFile().listFiles();
-        int count = 0;
-        assert files != null;
-        for (File file : files) {
-            if (file.isDirectory()) {
-                out.write("\033[34m" + file.getName() + "\033[0m\t");
-            } else {
-                out.write(file.getName() + "\t");
-            }
-            count++;
-            //假如count为6的倍数并且不是最后一个文件，换行
-            if (count % 6 == 0 && count != files.length) {
-                out.write("\n");
-            }
-        }
-        out.write("\n");
+        //列出当前目录下的文件和文件夹，用不同的颜色区分，一行显示6个，重复列出时从共享的缓存中读取
+        out.write(DirectoryCache.shared().list(this.currentPath));
         out.flush();
         //日志记录用户操作
         this.log.log(ip, user.getUsername() + " list files in " + this.currentPath + "\n");
@@ -106,13 +171,14 @@ public class CommandProcessor {
 
         //判断目录是否存在，是否是目录，是否在根目录下
         if (newPath == null || !newPath.startsWith(this.rootDir)) {
-            out.write("Access denied.\n");
+            fail(Frame.DENIED, "Access denied.\n");
             out.flush();
         } else if (!Files.exists(newPath) || !Files.isDirectory(newPath)) {
-            out.write("Directory not exists.\n");
+            fail(Frame.NOT_FOUND, "Directory not exists.\n");
             out.flush();
         } else {
             this.currentPath = newPath;
+            ticket.moveTo(newPath);
         }
         //日志记录用户操作
         log.log(ip, user.getUsername() + " change directory to " + this.currentPath + "\n");
@@ -124,9 +190,14 @@ public class CommandProcessor {
      * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
      */
     private void put(String arg) throws IOException {
+        long offset = takeRestartOffset();
         //假如用户为匿名用户，提示用户无权限
         if (Objects.equals(user.getUsername(), "anonymous")) {
-            out.write("Access denied.\n");
+            fail(Frame.DENIED, "Access denied.\n");
+            out.flush();
+            return;
+        } else if (!passive && !inBandTransferSupported()) {
+            fail(Frame.FAILED, "Passive mode required. Use pasv first.\n");
             out.flush();
             return;
         } else {
@@ -134,48 +205,116 @@ public class CommandProcessor {
             out.flush();
         }
         //假如客户端响应为目录，返回
-        String response = in.readLine();
-        if (Objects.equals(response, "Cannot upload directory.")) {
-            return;
-        }
-        //假如客户端响应文件不存在，返回
-        response = in.readLine();
-        if (Objects.equals(response, "File not exists.")) {
-            return;
-        }
-        //判断文件是否存在，假如存在提示用户是否覆盖
-        Path filePath = this.currentPath.resolve(arg);
-        if (Files.exists(filePath)) {
-            out.write("File exists. Overwrite? (Y/N) \n");
-            out.flush();
-            response = in.readLine();
-            if (Objects.equals(response, "N")) {
+        expect(response -> {
+            if (Objects.equals(response, "Cannot upload directory.")) {
                 return;
             }
-        } else {
-            out.write("File not exists.\n");
-            out.flush();
-        }
-        //创建新文件或者覆盖原有的文件
-        Files.write(filePath, new byte[0]);
-        //接收文件，根据是否成功输出不同的信息
-        try (BufferedWriter fileWriter = Files.newBufferedWriter(filePath)) {
-            String line;
-            boolean success = false;
-            while ((line = in.readLine()) != null) {
-                if (Objects.equals(line, "EOF")) {
-                    out.write("File uploaded.\n");
+            //假如客户端响应文件不存在，返回
+            expect(next -> {
+                if (Objects.equals(next, "File not exists.")) {
+                    return;
+                }
+                //断点续传时从offset处继续写入已有的文件，不再询问是否覆盖
+                Path filePath = this.currentPath.resolve(arg);
+                if (offset > 0) {
+                    if (!Files.exists(filePath) || offset > size(filePath)) {
+                        fail(Frame.FAILED, "Restart offset beyond end of file.\n");
+                        out.flush();
+                        return;
+                    }
+                    out.write("Resuming upload at byte " + offset + ".\n");
                     out.flush();
-                    success = true;
-                    break;
+                    receiveFile(filePath, offset);
+                    return;
                 }
-                fileWriter.write(line + "\n");
-            }
-            if (!success) {
-                out.write("File upload failed.\n");
-                out.flush();
-            }
+                //判断文件是否存在，假如存在提示用户是否覆盖
+                if (Files.exists(filePath)) {
+                    out.write("File exists. Overwrite? (Y/N) \n");
+                    out.flush();
+                    expect(answer -> {
+                        if (Objects.equals(answer, "N")) {
+                            return;
+                        }
+                        //确认覆盖后再通知客户端开始发送，保证文件数据不会被输入流提前读入缓冲区
+                        out.write("OK\n");
+                        out.flush();
+                        receiveFile(filePath, 0);
+                    });
+                } else {
+                    out.write("File not exists.\n");
+                    out.flush();
+                    receiveFile(filePath, 0);
+                }
+            });
+        });
+    }
+
+    /**
+     * 接收客户端上传的文件
+     * @param filePath 保存文件的路径
+     * @param offset 开始写入的位置
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void receiveFile(Path filePath, long offset) throws IOException {
+        //断点续传和增量同步需要在已有的文件内容上写入，先把去重存储中的引用还原为普通文件
+        ChunkStore store = ChunkStore.shared();
+        if (store != null && (offset > 0 || delta) && store.isReference(filePath)) {
+            store.materialize(filePath, filePath);
         }
+        //覆盖引用文件时记下原来的清单，上传完成后释放；上传失败留下的清单由去重存储的清除回收
+        Path replaced = store != null ? store.manifestOf(filePath) : null;
+        //被动模式下在数据连接上后台接收文件，每条连接接收完成后回送确认
+        if (passive && streams > 1) {
+            ParallelTransfer transfer = new ParallelTransfer(filePath, offset, streams);
+            transferInBackground(streams, channel -> {
+                transfer.receiveRange(channel);
+                FileCache.shared().invalidate(filePath);
+                DataConnection.sendAck(channel);
+            }, "upload file " + filePath, () -> {
+                //所有连接结束后，只有各段恰好覆盖整个文件时才算上传成功，否则丢弃预分配的不完整文件
+                if (transfer.complete()) {
+                    stored(filePath, replaced);
+                    return;
+                }
+                transfer.discard();
+                FileCache.shared().invalidate(filePath);
+                throw new IOException("Upload incomplete, file discarded.");
+            });
+            return;
+        } else if (passive) {
+            transferInBackground(1, channel -> {
+                ChecksumTransfer.Result result = receive(channel, filePath, offset);
+                //校验和不一致时不回送确认，客户端的传输失败，收到的内容已被丢弃
+                if (result != null && !result.verified()) {
+                    FileCache.shared().invalidate(filePath);
+                    throw new IOException("Checksum mismatch (expected " + result.expected() + ", got " + result.actual() + ")");
+                }
+                stored(filePath, replaced);
+                verified(filePath, offset, result);
+                DataConnection.sendAck(channel);
+            }, "upload file " + filePath, null);
+            return;
+        }
+        //以原始字节接收文件，写入位置之后的原有内容会被覆盖
+        ChecksumTransfer.Result result;
+        SessionReaper.Transfer transfer = startTransfer(socket.getChannel());
+        try {
+            result = receive(socket.getChannel(), filePath, offset);
+        } finally {
+            transfer.close();
+        }
+        if (result != null && !result.verified()) {
+            //收到的内容已被丢弃
+            FileCache.shared().invalidate(filePath);
+            fail(Frame.FAILED, "Checksum mismatch (expected " + result.expected() + ", got " + result.actual() + ").\n");
+            out.flush();
+            log.log(ip, user.getUsername() + " failed to upload file " + filePath + ": checksum mismatch\n");
+            return;
+        }
+        stored(filePath, replaced);
+        verified(filePath, offset, result);
+        out.write(result != null ? "File uploaded. Checksum verified (" + result.actual() + ").\n" : "File uploaded.\n");
+        out.flush();
         //日志记录用户操作
         log.log(ip, user.getUsername() + " upload file " + filePath + "\n");
     }
@@ -186,11 +325,16 @@ public class CommandProcessor {
      * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
      */
     private void get(String arg) throws IOException {
+        long offset = takeRestartOffset();
         //判断是文件还是目录
         Path filePath = this.currentPath.resolve(arg);
         if (Files.isDirectory(filePath)) {
             // 提示用户不能下载目录
-            out.write("Cannot download directory.\n");
+            fail(Frame.FAILED, "Cannot download directory.\n");
+            out.flush();
+            return;
+        } else if (!passive && !inBandTransferSupported()) {
+            fail(Frame.FAILED, "Passive mode required. Use pasv first.\n");
             out.flush();
             return;
         } else {
@@ -199,79 +343,969 @@ public class CommandProcessor {
         }
         //判断文件是否存在
         if (!Files.exists(filePath)) {
-            out.write("File not exists.\n");
+            fail(Frame.NOT_FOUND, "File not exists.\n");
+            out.flush();
+            return;
+        } else if (offset > size(filePath)) {
+            fail(Frame.FAILED, "Restart offset beyond end of file.\n");
             out.flush();
             return;
         } else {
             out.write("File exists.\n");
             out.flush();
         }
-        String response = in.readLine();
-        if (response.startsWith("File already exists")) {
-            String answer = in.readLine();
-            //假如回应是N或者n，返回
-            if (Objects.equals(answer, "N") || Objects.equals(answer, "n")) {
+        expect(response -> {
+            if (response.startsWith("File already exists")) {
+                expect(answer -> {
+                    //假如回应是N或者n，返回
+                    if (Objects.equals(answer, "N") || Objects.equals(answer, "n")) {
+                        return;
+                    }
+                    sendFile(filePath, offset);
+                });
                 return;
             }
+            sendFile(filePath, offset);
+        });
+    }
+
+    /**
+     * 向客户端发送文件
+     * @param filePath 要发送的文件路径
+     * @param offset 开始发送的位置
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void sendFile(Path filePath, long offset) throws IOException {
+        //压缩、增量同步和并行传输需要普通文件，去重存储中的引用先还原到临时文件，传输结束后删除
+        ChunkStore store = ChunkStore.shared();
+        Path source = filePath;
+        if (store != null && (compress || delta || (passive && streams > 1)) && store.isReference(filePath)) {
+            source = store.materializeTemporary(filePath);
         }
-        //发送文件
-        try (BufferedReader fileReader = Files.newBufferedReader(filePath)) {
-            String line;
-            while ((line = fileReader.readLine()) != null) {
-                out.write(line + "\n");
+        Path temporary = source == filePath ? null : source;
+        Completion cleanup = () -> {
+            if (temporary != null) {
+                Files.deleteIfExists(temporary);
             }
+        };
+        //被动模式下在数据连接上后台发送文件
+        if (passive && streams > 1) {
+            ParallelTransfer transfer = new ParallelTransfer(source, offset, streams);
+            transferInBackground(streams, transfer::sendNextRange, "download file " + filePath, cleanup);
+            return;
+        } else if (passive) {
+            Path path = source;
+            transferInBackground(1, channel -> send(filePath, path, offset, channel), "download file " + filePath, cleanup);
+            return;
+        }
+        //以原始字节发送文件
+        SessionReaper.Transfer transfer = startTransfer(socket.getChannel());
+        try {
+            send(filePath, source, offset, socket.getChannel());
+        } finally {
+            transfer.close();
+            cleanup.run();
         }
-        out.write("EOF\n");
-        out.flush();
         //日志记录用户操作
         log.log(ip, user.getUsername() + " download file " + filePath + "\n");
     }
 
+    /**
+     * 上传完成后的处理：使内容缓存失效，开启去重存储时把文件转换为引用，并释放被覆盖的引用文件原来的清单
+     * @param filePath 上传的文件路径
+     * @param replaced 上传之前文件是引用时的清单，否则为null
+     * @throws IOException 如果转换文件时发生IO异常，则抛出该异常
+     */
+    private void stored(Path filePath, Path replaced) throws IOException {
+        //文件内容已经改变，下载时重新读入缓存
+        FileCache.shared().invalidate(filePath);
+        ChunkStore store = ChunkStore.shared();
+        if (store != null) {
+            store.ingest(filePath, user.getUsername());
+            store.release(filePath, replaced);
+        }
+    }
+
+    /**
+     * 校验通过的完整上传，把校验和记入共享的索引，之后下载该文件时不必重新计算
+     * @param filePath 上传的文件路径
+     * @param offset 开始写入的位置
+     * @param result 校验结果，没有开启校验模式时为null
+     * @throws IOException 如果读取文件属性时发生IO异常，则抛出该异常
+     */
+    private void verified(Path filePath, long offset, ChecksumTransfer.Result result) throws IOException {
+        if (result != null && offset == 0) {
+            DigestIndex.shared().record(filePath, DigestIndex.stamp(filePath), result.actual());
+        }
+    }
+
+    /**
+     * 获取文件的长度，去重存储中的引用返回其内容的长度
+     * @param filePath 文件路径
+     * @return 文件长度
+     * @throws IOException 如果读取文件时发生IO异常，则抛出该异常
+     */
+    private long size(Path filePath) throws IOException {
+        ChunkStore store = ChunkStore.shared();
+        return store != null ? store.size(filePath) : Files.size(filePath);
+    }
+
+    /**
+     * 在通道上发送文件，增量同步模式下只发送客户端旧版本中没有的部分，压缩模式下经过压缩发送，
+     * 校验模式下附带校验和发送，否则以原始字节发送。断点续传时不使用增量同步
+     * @param filePath 要发送的文件路径
+     * @param source 文件内容所在的路径，去重存储中的引用可能已经还原到临时文件
+     * @param offset 开始发送的位置
+     * @param channel 控制连接或数据连接的通道
+     * @throws IOException 如果读取文件或写入通道时发生IO异常，则抛出该异常
+     */
+    private void send(Path filePath, Path source, long offset, SocketChannel channel) throws IOException {
+        if (delta && offset == 0) {
+            DeltaTransfer.send(source, channel);
+        } else if (compress) {
+            CompressedTransfer.send(source, offset, channel);
+        } else if (verify) {
+            sendVerified(filePath, source, offset, channel);
+        } else {
+            sendPlain(source, offset, channel);
+        }
+    }
+
+    /**
+     * 以原始字节发送文件，去重存储中的引用从块文件发送，热点小文件从共享的内容缓存中发送
+     * @param filePath 要发送的文件路径
+     * @param offset 开始发送的位置
+     * @param channel 控制连接或数据连接的通道
+     * @throws IOException 如果读取文件或写入通道时发生IO异常，则抛出该异常
+     */
+    private void sendPlain(Path filePath, long offset, SocketChannel channel) throws IOException {
+        if (ChunkStore.shared() != null && ChunkStore.shared().isReference(filePath)) {
+            ChunkStore.shared().send(filePath, offset, channel);
+        } else {
+            FileCache.shared().send(filePath, offset, channel);
+        }
+    }
+
+    /**
+     * 校验模式下发送文件。索引中有该版本文件的校验和时直接附带记录的校验和，内容仍以零拷贝或从缓存中发送；
+     * 否则边读边计算校验和，完整发送后记入索引
+     * @param filePath 要发送的文件路径
+     * @param source 文件内容所在的路径
+     * @param offset 开始发送的位置
+     * @param channel 控制连接或数据连接的通道
+     * @throws IOException 如果读取文件或写入通道时发生IO异常，则抛出该异常
+     */
+    private void sendVerified(Path filePath, Path source, long offset, SocketChannel channel) throws IOException {
+        DigestIndex index = DigestIndex.shared();
+        ChecksumTransfer.Digest known = offset == 0 ? index.lookup(filePath, sha256) : null;
+        if (known != null) {
+            ChecksumTransfer.send(body -> sendPlain(source, 0, body), known, channel);
+            return;
+        }
+        //计算校验和需要读取文件内容，去重存储中的引用先还原到临时文件
+        DigestIndex.Stamp stamp = DigestIndex.stamp(filePath);
+        ChunkStore store = ChunkStore.shared();
+        Path temporary = store != null && store.isReference(source) ? store.materializeTemporary(source) : null;
+        try {
+            ChecksumTransfer.Digest digest = ChecksumTransfer.send(temporary != null ? temporary : source, offset, channel, sha256);
+            if (offset == 0) {
+                index.record(filePath, stamp, digest);
+            }
+        } finally {
+            if (temporary != null) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    /**
+     * 从通道接收文件，去重上传模式下只接收去重存储中没有的块，
+     * 增量同步模式下以服务器上已有的文件为旧版本重建新文件，压缩模式下接收压缩的数据，
+     * 校验模式下边收边计算校验和并与客户端的比较
+     * @param channel 控制连接或数据连接的通道
+     * @param filePath 保存文件的路径
+     * @param offset 开始写入的位置
+     * @return 校验模式下的校验结果，其他模式返回null
+     * @throws IOException 如果读取通道或写入文件时发生IO异常，则抛出该异常
+     */
+    private ChecksumTransfer.Result receive(SocketChannel channel, Path filePath, long offset) throws IOException {
+        if (dedup && offset == 0) {
+            ChunkStore.shared().receive(channel, filePath, user.getUsername());
+        } else if (delta && offset == 0) {
+            DeltaTransfer.receive(channel, filePath);
+        } else if (compress) {
+            CompressedTransfer.receive(channel, filePath, offset);
+        } else if (verify) {
+            return ChecksumTransfer.receive(channel, filePath, offset);
+        } else {
+            FileTransfer.receive(channel, filePath, offset);
+        }
+        return null;
+    }
+
+    /**
+     * 处理mget命令，把服务器上的整个目录作为一个归档流下载到客户端，所有文件在一次传输中发送
+     * @param arg 下载目录的名称
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void mget(String arg) throws IOException {
+        Path dirPath = arg == null ? null : this.currentPath.resolve(arg).normalize();
+        if (dirPath == null || !dirPath.startsWith(this.rootDir)) {
+            fail(Frame.DENIED, "Access denied.\n");
+            out.flush();
+            return;
+        } else if (!Files.isDirectory(dirPath)) {
+            fail(Frame.NOT_FOUND, "Directory not exists.\n");
+            out.flush();
+            return;
+        } else if (!passive && !inBandTransferSupported()) {
+            fail(Frame.FAILED, "Passive mode required. Use pasv first.\n");
+            out.flush();
+            return;
+        } else {
+            out.write("OK\n");
+            out.flush();
+        }
+        //客户端已有同名目录时由用户确认是否合并，收到应答后再开始发送，保证归档数据不会被输入流提前读入缓冲区
+        expect(response -> {
+            if (response.startsWith("Directory already exists")) {
+                expect(answer -> {
+                    if (Objects.equals(answer, "N") || Objects.equals(answer, "n")) {
+                        return;
+                    }
+                    sendDirectory(dirPath);
+                });
+                return;
+            }
+            sendDirectory(dirPath);
+        });
+    }
+
+    /**
+     * 向客户端发送目录归档
+     * @param dirPath 要发送的目录路径
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void sendDirectory(Path dirPath) throws IOException {
+        //归档只能按顺序在一个连接上发送，不分段并行传输
+        if (passive) {
+            transferInBackground(1, channel -> ArchiveTransfer.send(dirPath, channel, this::sendEntry),
+                    "download directory " + dirPath, null);
+            return;
+        }
+        ArchiveTransfer.Summary summary;
+        SessionReaper.Transfer transfer = startTransfer(socket.getChannel());
+        try {
+            summary = ArchiveTransfer.send(dirPath, socket.getChannel(), this::sendEntry);
+        } finally {
+            transfer.close();
+        }
+        //日志记录用户操作
+        log.log(ip, user.getUsername() + " download directory " + dirPath + " (" + summary.files() + " files)\n");
+    }
+
+    /**
+     * 发送归档中一个文件的内容，压缩模式下经过压缩发送。批量下载不经过内容缓存，避免挤出热点文件
+     * @param filePath 要发送的文件路径
+     * @param channel 控制连接或数据连接的通道
+     * @throws IOException 如果读取文件或写入通道时发生IO异常，则抛出该异常
+     */
+    private void sendEntry(Path filePath, SocketChannel channel) throws IOException {
+        ChunkStore store = ChunkStore.shared();
+        if (store != null && store.isReference(filePath)) {
+            if (!compress) {
+                store.send(filePath, 0, channel);
+                return;
+            }
+            Path temporary = store.materializeTemporary(filePath);
+            try {
+                CompressedTransfer.send(temporary, 0, channel);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } else if (compress) {
+            CompressedTransfer.send(filePath, 0, channel);
+        } else {
+            FileTransfer.send(filePath, 0, channel);
+        }
+    }
+
+    /**
+     * 处理mput命令，把客户端的整个目录作为一个归档流上传到服务器，所有文件在一次传输中接收
+     * @param arg 上传目录的名称
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void mput(String arg) throws IOException {
+        Path dirPath = arg == null ? null : this.currentPath.resolve(arg).normalize();
+        if (Objects.equals(user.getUsername(), "anonymous") || dirPath == null || !dirPath.startsWith(this.rootDir)) {
+            fail(Frame.DENIED, "Access denied.\n");
+            out.flush();
+            return;
+        } else if (!passive && !inBandTransferSupported()) {
+            fail(Frame.FAILED, "Passive mode required. Use pasv first.\n");
+            out.flush();
+            return;
+        } else {
+            out.write("OK\n");
+            out.flush();
+        }
+        //假如客户端响应不是目录，返回
+        expect(response -> {
+            if (Objects.equals(response, "Not a directory.")) {
+                return;
+            }
+            //服务器上已有同名文件时不能上传，已有同名目录时由用户确认是否合并
+            if (Files.exists(dirPath) && !Files.isDirectory(dirPath)) {
+                fail(Frame.FAILED, "Cannot upload directory over a file.\n");
+                out.flush();
+            } else if (Files.isDirectory(dirPath)) {
+                out.write("Directory exists. Merge? (Y/N) \n");
+                out.flush();
+                expect(answer -> {
+                    if (Objects.equals(answer, "N")) {
+                        return;
+                    }
+                    //确认合并后再通知客户端开始发送
+                    out.write("OK\n");
+                    out.flush();
+                    receiveDirectory(dirPath);
+                });
+            } else {
+                out.write("Directory not exists.\n");
+                out.flush();
+                receiveDirectory(dirPath);
+            }
+        });
+    }
+
+    /**
+     * 接收客户端上传的目录归档
+     * @param dirPath 保存目录的路径
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void receiveDirectory(Path dirPath) throws IOException {
+        if (passive) {
+            transferInBackground(1, channel -> {
+                ArchiveTransfer.receive(channel, dirPath, this::receiveEntry);
+                DataConnection.sendAck(channel);
+            }, "upload directory " + dirPath, null);
+            return;
+        }
+        ArchiveTransfer.Summary summary;
+        SessionReaper.Transfer transfer = startTransfer(socket.getChannel());
+        try {
+            summary = ArchiveTransfer.receive(socket.getChannel(), dirPath, this::receiveEntry);
+        } finally {
+            transfer.close();
+        }
+        out.write("Directory uploaded: " + summary.files() + " files.\n");
+        out.flush();
+        //日志记录用户操作
+        log.log(ip, user.getUsername() + " upload directory " + dirPath + " (" + summary.files() + " files)\n");
+    }
+
+    /**
+     * 接收归档中一个文件的内容，压缩模式下接收压缩的数据，接收完成后与普通上传一样处理
+     * @param channel 控制连接或数据连接的通道
+     * @param filePath 保存文件的路径
+     * @throws IOException 如果读取通道或写入文件时发生IO异常，则抛出该异常
+     */
+    private void receiveEntry(SocketChannel channel, Path filePath) throws IOException {
+        ChunkStore store = ChunkStore.shared();
+        Path replaced = store != null ? store.manifestOf(filePath) : null;
+        if (compress) {
+            CompressedTransfer.receive(channel, filePath, 0);
+        } else {
+            FileTransfer.receive(channel, filePath, 0);
+        }
+        stored(filePath, replaced);
+    }
+
+    /**
+     * 处理who命令，列出当前的会话总数和每个在线用户的会话数。匿名用户只能看到会话总数，不能枚举用户名
+     * @throws IOException 如果写入数据时发生IO异常，则抛出该异常
+     */
+    private void who() throws IOException {
+        SessionRegistry registry = SessionRegistry.shared();
+        out.write("Sessions: " + registry.total() + "\n");
+        //假如用户为匿名用户，不列出在线的用户名
+        if (!Objects.equals(user.getUsername(), "anonymous")) {
+            for (Map.Entry<String, Integer> entry : registry.snapshot().entrySet()) {
+                out.write(entry.getKey() + ": " + entry.getValue() + "\n");
+            }
+        }
+        out.flush();
+        //日志记录用户操作
+        log.log(ip, user.getUsername() + " list sessions\n");
+    }
+
+    /**
+     * 处理rest命令，设置下一次get或put的断点续传位置
+     * @param arg 开始传输的字节位置
+     * @throws IOException 如果写入数据时发生IO异常，则抛出该异常
+     */
+    private void rest(String arg) throws IOException {
+        long offset;
+        try {
+            offset = Long.parseLong(Objects.requireNonNullElse(arg, ""));
+        } catch (NumberFormatException e) {
+            offset = -1;
+        }
+        if (offset < 0) {
+            fail(Frame.INVALID, "Invalid restart offset.\n");
+            out.flush();
+            return;
+        }
+        this.restartOffset = offset;
+        out.write("Restarting at " + offset + ".\n");
+        out.flush();
+        //日志记录用户操作
+        log.log(ip, user.getUsername() + " set restart offset " + offset + "\n");
+    }
+
+    /**
+     * 取出断点续传位置并清除，使其只对一次传输有效
+     * @return 断点续传位置
+     */
+    private long takeRestartOffset() {
+        long offset = this.restartOffset;
+        this.restartOffset = 0;
+        return offset;
+    }
+
+    /**
+     * 处理size命令，返回服务器上文件的大小，客户端据此确定续传上传的位置
+     * @param arg 文件名称
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void size(String arg) throws IOException {
+        Path filePath = arg == null ? null : this.currentPath.resolve(arg).normalize();
+        //与cd一样，不能查询根目录之外的文件
+        if (filePath != null && !filePath.startsWith(this.rootDir)) {
+            fail(Frame.DENIED, "Access denied.\n");
+        } else if (filePath == null || !Files.isRegularFile(filePath)) {
+            fail(Frame.NOT_FOUND, "File not exists.\n");
+        } else {
+            out.write("Size: " + size(filePath) + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * 处理pasv命令，切换被动模式
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void pasv() throws IOException {
+        passive = !passive;
+        out.write(passive ? "Passive mode on.\n" : "Passive mode off.\n");
+        out.flush();
+        //日志记录用户操作
+        log.log(ip, user.getUsername() + " set passive mode " + (passive ? "on" : "off") + "\n");
+    }
+
+    /**
+     * 处理compress命令，切换压缩模式。已经压缩过的文件即使在压缩模式下也以原始字节传输，
+     * 多连接并行传输不压缩
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void compress() throws IOException {
+        compress = !compress;
+        out.write(compress ? "Compression on.\n" : "Compression off.\n");
+        out.flush();
+        //日志记录用户操作
+        log.log(ip, user.getUsername() + " set compression " + (compress ? "on" : "off") + "\n");
+    }
+
+    /**
+     * 处理delta命令，切换增量同步模式，多连接并行传输和断点续传不使用增量同步
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void delta() throws IOException {
+        delta = !delta;
+        out.write(delta ? "Delta sync on.\n" : "Delta sync off.\n");
+        out.flush();
+        //日志记录用户操作
+        log.log(ip, user.getUsername() + " set delta sync " + (delta ? "on" : "off") + "\n");
+    }
+
+    /**
+     * 处理dedup命令，切换去重上传模式，需要服务器开启去重存储
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void dedup() throws IOException {
+        if (ChunkStore.shared() == null) {
+            fail(Frame.FAILED, "Dedup storage not enabled.\n");
+            out.flush();
+            return;
+        }
+        dedup = !dedup;
+        out.write(dedup ? "Dedup upload on.\n" : "Dedup upload off.\n");
+        out.flush();
+        //日志记录用户操作
+        log.log(ip, user.getUsername() + " set dedup upload " + (dedup ? "on" : "off") + "\n");
+    }
+
+    /**
+     * 处理verify命令，切换校验模式，带sha256参数时开启校验模式并同时比较SHA-256。
+     * 去重上传逐块校验SHA-256，压缩数据自带Adler-32校验，这两种模式和多连接并行传输不附带校验和
+     * @param arg 为sha256时同时比较SHA-256
+     * @throws IOException 如果写入数据时发生IO异常，则抛出该异常
+     */
+    private void verify(String arg) throws IOException {
+        if (Objects.equals(arg, "sha256")) {
+            verify = true;
+            sha256 = true;
+        } else {
+            verify = !verify;
+            sha256 = false;
+        }
+        out.write(!verify ? "Checksum verification off.\n"
+                : sha256 ? "Checksum verification on (CRC32C, SHA-256).\n" : "Checksum verification on (CRC32C).\n");
+        out.flush();
+        //日志记录用户操作
+        log.log(ip, user.getUsername() + " set checksum verification " + (verify ? "on" : "off") + "\n");
+    }
+
+    /**
+     * 处理parallel命令，设置被动模式下每次传输使用的数据连接数
+     * @param arg 数据连接数
+     * @throws IOException 如果写入数据时发生IO异常，则抛出该异常
+     */
+    private void parallel(String arg) throws IOException {
+        int count;
+        try {
+            count = Integer.parseInt(Objects.requireNonNullElse(arg, ""));
+        } catch (NumberFormatException e) {
+            count = 0;
+        }
+        if (count < 1 || count > MAX_STREAMS) {
+            fail(Frame.INVALID, "Invalid number of streams (1-" + MAX_STREAMS + ").\n");
+            out.flush();
+            return;
+        }
+        this.streams = count;
+        out.write("Parallel streams: " + count + ".\n");
+        out.flush();
+        //日志记录用户操作
+        log.log(ip, user.getUsername() + " set parallel streams " + count + "\n");
+    }
+
+    /**
+     * 处理rate命令，设置本会话的传输限速，不能超过服务器配置的用户和会话限速
+     * @param arg 每秒千字节数，省略或者为0时取消本会话另外设置的限速
+     * @throws IOException 如果写入数据时发生IO异常，则抛出该异常
+     */
+    private void rate(String arg) throws IOException {
+        long rate;
+        try {
+            rate = Long.parseLong(Objects.requireNonNullElse(arg, "0"));
+        } catch (NumberFormatException e) {
+            rate = -1;
+        }
+        if (rate < 0 || rate > Long.MAX_VALUE / 1024) {
+            fail(Frame.INVALID, "Invalid rate.\n");
+            out.flush();
+            return;
+        }
+        bandwidth.setLimit(rate * 1024);
+        out.write(rate > 0 ? "Rate limit: " + rate + " KB/s.\n" : "Rate limit off.\n");
+        out.flush();
+        //日志记录用户操作
+        log.log(ip, user.getUsername() + " set rate limit " + (rate > 0 ? rate + " KB/s" : "off") + "\n");
+    }
+
+    /**
+     * 打开被动模式的数据连接并把端口告知客户端，然后在后台线程中等待客户端建立count个连接，
+     * 在每个连接上并行执行传输，控制连接可以继续处理其他命令
+     * @param count 数据连接数
+     * @param task 在每个数据连接上执行的传输任务
+     * @param action 日志中记录的操作描述
+     * @param done 所有连接上的传输结束后（无论成功与否）执行的收尾步骤，可以为null
+     * @throws IOException 如果打开数据连接或写入数据时发生IO异常，则抛出该异常
+     */
+    private void transferInBackground(int count, DataConnection.Task task, String action, Completion done) throws IOException {
+        DataConnection dataConnection;
+        try {
+            dataConnection = new DataConnection(socket.getLocalAddress(), socket.getInetAddress());
+        } catch (IOException e) {
+            if (done != null) {
+                done.run();
+            }
+            throw e;
+        }
+        out.write("Entering passive mode (" + dataConnection.getPort() + ").\n");
+        out.flush();
+        new Thread(() -> {
+            try (dataConnection) {
+                try {
+                    //每条数据连接在传输期间登记到会话的租约和带宽调度器中，停滞超时后由回收器关闭
+                    dataConnection.acceptAll(count, channel -> {
+                        SessionReaper.Transfer transfer = startTransfer(channel);
+                        try {
+                            task.run(channel);
+                        } finally {
+                            transfer.close();
+                        }
+                    });
+                } finally {
+                    if (done != null) {
+                        done.run();
+                    }
+                }
+                //日志记录用户操作
+                log.log(ip, user.getUsername() + " " + action + "\n");
+            } catch (IOException e) {
+                log.log(ip, user.getUsername() + " failed to " + action + ": " + e.getMessage() + "\n");
+            }
+        }).start();
+    }
+
+    /**
+     * 开始在连接上传输数据：登记到会话的租约中按停滞时限检查，登记到带宽调度器中限速，并统计传输的字节数
+     * @param channel 传输数据的连接，可以是控制连接或者数据连接
+     * @return 传输结束时关闭的登记
+     */
+    private SessionReaper.Transfer startTransfer(SocketChannel channel) throws IOException {
+        //分帧模式下在控制连接上传输数据之前先写出暂存的应答帧
+        if (framer != null && channel == socket.getChannel()) {
+            framer.push();
+        }
+        SessionReaper.Transfer transfer = lease.transfer(channel);
+        BandwidthScheduler.Flow flow = bandwidth.open(channel);
+        TransferProgress.watch(channel, TRANSFERRED);
+        return () -> {
+            TransferProgress.unwatch(channel, TRANSFERRED);
+            flow.close();
+            transfer.close();
+        };
+    }
+
+    /**
+     * 在控制连接上直接传输文件需要阻塞模式的通道，NIO引擎的会话只能使用被动模式传输
+     * @return 是否可以在控制连接上传输文件
+     */
+    private boolean inBandTransferSupported() {
+        return socket.getChannel() != null && socket.getChannel().isBlocking();
+    }
+
+    /**
+     * 处理framed命令，本条命令的提示符发送后切换到分帧模式，之后控制连接上的命令和应答都以帧的形式收发，不能再切换回文本模式
+     * @throws IOException 如果写入数据时发生IO异常，则抛出该异常
+     */
+    private void framed() throws IOException {
+        if (frameOut == null) {
+            fail(Frame.FAILED, "Framed mode not supported.\n");
+            out.flush();
+            return;
+        }
+        framing = true;
+        out.write("Framed mode on.\n");
+        out.flush();
+        //日志记录用户操作
+        log.log(ip, user.getUsername() + " switch to framed mode\n");
+    }
+
+    /**
+     * 写出命令失败的原因，分帧模式下同时设置应答帧的状态码
+     * @param status 分帧模式下应答帧的状态码
+     * @param message 失败的原因
+     * @throws IOException 如果写入数据时发生IO异常，则抛出该异常
+     */
+    private void fail(int status, String message) throws IOException {
+        if (framer != null) {
+            framer.setStatus(status);
+        }
+        out.write(message);
+    }
+
+    /**
+     * 等待客户端的下一行应答，收到后交给指定的处理步骤
+     * @param next 处理应答的步骤
+     */
+    private void expect(Reply next) {
+        this.pending = next;
+    }
+
     /**
      * 处理exit命令，退出服务器
+     * @throws IOException 如果写入数据时发生IO异常，则抛出该异常
      */
-    private void exit() {
-        user.setLoggedIn(false);
+    private void exit() throws IOException {
         //日志记录用户退出
         log.log(ip, user.getUsername() + " exit.\n");
         //在服务器端输出提示信息
         System.out.println(user.getUsername() + " exit.");
-        //关闭日志
-        log.close();
+        // 关闭连接
+        out.write("Goodbye.\n");
+        out.flush();
+    }
+
+    /**
+     * 提示用户当前所在目录
+     * @throws IOException 如果写入数据时发生IO异常，则抛出该异常
+     */
+    public void prompt() throws IOException {
+        //分帧模式下先发出本条命令剩余的应答，再以提示符帧结束，目录没有变化时提示符帧不带提示符
+        if (framer != null) {
+            out.flush();
+            framer.frame(Frame.PROMPT, Frame.OK, this.currentPath.equals(this.promptedPath) ? "" : promptText());
+            this.promptedPath = this.currentPath;
+            return;
+        }
+        out.write(promptText() + "\n");
+        out.flush();
+    }
+
+    /**
+     * @return 提示符，包括用户名、客户端地址和当前所在目录
+     */
+    private String promptText() {
+        return user.getUsername() + "@" + socket.getInetAddress().getHostAddress() + ":" + this.currentPath + "$ ";
     }
 
     /**
-     * 处理用户输入的命令，根据命令调用相应的处理方法
+     * @return 会话是否已经切换到分帧模式
+     */
+    public boolean isFramed() {
+        return framer != null;
+    }
+
+    /**
+     * 处理客户端发来的一行输入：假如正在等待某个命令的应答，则交给该命令继续处理，否则解析为新的命令。
+     * 阻塞式的ClientThread和NIO引擎的会话都通过这个方法驱动命令处理
+     * @param line 客户端发来的一行输入
+     * @return 会话是否继续，用户执行exit后返回false
      * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
      */
-    public void process() throws IOException {
-        while (true) {
-            String input = in.readLine().trim();
-            Command command = parseCommand(input);
-
-            if (Objects.equals(command.type(), "dir")) {
-                dir();
-            } else if (Objects.equals(command.type(), "cd")) {
-                cd(command.arg());
-            } else if (Objects.equals(command.type(), "put")) {
-                put(command.arg());
-            } else if (Objects.equals(command.type(), "get")) {
-                get(command.arg());
-            } else if (Objects.equals(command.type(), "exit")) {
-                exit();
-                break;
-            } else {
-                out.write("Invalid command.\n");
-                out.flush();
-                log.log(ip, user.getUsername() + " input invalid command.\n");
+    public boolean handle(String line) throws IOException {
+        long start = System.nanoTime();
+        Reply reply = this.pending;
+        if (reply != null) {
+            this.pending = null;
+            reply.handle(line);
+        } else if (line.startsWith(TAG_PREFIX)) {
+            handleTagged(line);
+            return true;
+        } else if (!begin(parseCommand(line.trim()))) {
+            return false;
+        }
+        finish(start);
+        return true;
+    }
+
+    /**
+     * 处理分帧模式下客户端发来的一帧：命令帧直接按操作码执行命令，不需要再解析命令行；
+     * 回答帧中的每一行与文本模式下的一行输入相同，交给等待应答的命令继续处理
+     * @param frame 刚读到一帧的帧读取器
+     * @return 会话是否继续，用户执行exit后返回false
+     * @throws IOException 如果客户端在服务器等待应答时发来命令帧，或者读取或写入数据时发生IO异常，则抛出该异常
+     */
+    public boolean handle(FrameReader frame) throws IOException {
+        //处理一帧期间产生的应答帧先暂存，处理完后与提示符帧一起写出
+        framer.setHolding(true);
+        boolean open = dispatch(frame);
+        framer.setHolding(false);
+        return open;
+    }
+
+    /**
+     * 按帧的类型处理分帧模式下的一帧
+     * @param frame 刚读到一帧的帧读取器
+     * @return 会话是否继续，用户执行exit后返回false
+     * @throws IOException 如果客户端在服务器等待应答时发来命令帧，或者读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private boolean dispatch(FrameReader frame) throws IOException {
+        String payload = frame.payload();
+        if (frame.opcode() == Frame.ANSWER) {
+            int from = 0;
+            while (from < payload.length()) {
+                int end = payload.indexOf('\n', from);
+                if (end < 0) {
+                    end = payload.length();
+                }
+                if (!handle(payload.substring(from, end))) {
+                    return false;
+                }
+                from = end + 1;
+            }
+            return true;
+        }
+        if (this.pending != null) {
+            throw new IOException("Unexpected command frame.");
+        }
+        long start = System.nanoTime();
+        String type = Frame.command(frame.opcode());
+        if (!begin(new Command(type == null ? "" : type, payload.isEmpty() ? null : payload))) {
+            return false;
+        }
+        finish(start);
+        return true;
+    }
+
+    /**
+     * 开始执行一条新的命令
+     * @param command 命令
+     * @return 会话是否继续，用户执行exit后返回false
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private boolean begin(Command command) throws IOException {
+        if (framer != null) {
+            framer.setOpcode(Frame.opcode(command.type()));
+        }
+        if (!execute(command)) {
+            return false;
+        }
+        this.operation = Metrics.Operation.of(command.type());
+        this.elapsed = 0;
+        return true;
+    }
+
+    /**
+     * 命令的一个步骤处理完成：命令不再等待应答时提示用户当前所在目录，需要时切换到分帧模式，并记录命令各步骤的总耗时
+     * @param start 这个步骤开始的时间（System.nanoTime）
+     * @throws IOException 如果写入数据时发生IO异常，则抛出该异常
+     */
+    private void finish(long start) throws IOException {
+        if (this.pending == null) {
+            prompt();
+            if (framing) {
+                framing = false;
+                framer = new FrameWriter(frameOut, Frame.UNKNOWN);
+                out = new BufferedWriter(framer);
+                promptedPath = currentPath;
             }
-            //提示用户当前所在目录
-            out.write(user.getUsername() + "@" + socket.getInetAddress().getHostAddress() + ":" + this.currentPath + "$ \n");
+        }
+        this.elapsed += System.nanoTime() - start;
+        if (this.pending == null && this.operation != null) {
+            Metrics.shared().latency(this.operation, this.elapsed);
+            this.operation = null;
+        }
+    }
+
+    /**
+     * 执行一条命令
+     * @param command 解析得到的命令
+     * @return 会话是否继续，用户执行exit后返回false
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private boolean execute(Command command) throws IOException {
+        if (Objects.equals(command.type(), "dir")) {
+            dir();
+        } else if (Objects.equals(command.type(), "cd")) {
+            cd(command.arg());
+        } else if (Objects.equals(command.type(), "put")) {
+            put(command.arg());
+        } else if (Objects.equals(command.type(), "get")) {
+            get(command.arg());
+        } else if (Objects.equals(command.type(), "mput")) {
+            mput(command.arg());
+        } else if (Objects.equals(command.type(), "mget")) {
+            mget(command.arg());
+        } else if (Objects.equals(command.type(), "who")) {
+            who();
+        } else if (Objects.equals(command.type(), "rest")) {
+            rest(command.arg());
+        } else if (Objects.equals(command.type(), "size")) {
+            size(command.arg());
+        } else if (Objects.equals(command.type(), "parallel")) {
+            parallel(command.arg());
+        } else if (Objects.equals(command.type(), "pasv")) {
+            pasv();
+        } else if (Objects.equals(command.type(), "compress")) {
+            compress();
+        } else if (Objects.equals(command.type(), "delta")) {
+            delta();
+        } else if (Objects.equals(command.type(), "dedup")) {
+            dedup();
+        } else if (Objects.equals(command.type(), "verify")) {
+            verify(command.arg());
+        } else if (Objects.equals(command.type(), "rate")) {
+            rate(command.arg());
+        } else if (Objects.equals(command.type(), "framed") && framer == null) {
+            framed();
+        } else if (Objects.equals(command.type(), "exit")) {
+            exit();
+            return false;
+        } else {
+            fail(Frame.INVALID, "Invalid command.\n");
             out.flush();
+            log.log(ip, user.getUsername() + " input invalid command.\n");
         }
+        return true;
+    }
 
-        // 关闭连接
-        out.write("Goodbye.\n");
+    /**
+     * 处理流水线模式下带标签的命令“#标签 命令”。应答的每一行（包括最后的提示符）都加上“#标签 ”前缀，
+     * 客户端可以连续发出多条命令，再按顺序读取各自的应答。
+     * 需要与客户端多次交互的get、put、mget、mput，以及exit和切换到分帧模式的framed不能在流水线中执行。
+     * 应答只写入输出流的缓冲区，由调用者在没有更多输入时统一发送
+     * @param line 带标签的一行输入
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void handleTagged(String line) throws IOException {
+        long start = System.nanoTime();
+        int space = line.indexOf(' ');
+        String tag = space < 0 ? line : line.substring(0, space);
+        Command command = parseCommand(space < 0 ? "" : line.substring(space + 1).trim());
+        BufferedWriter untagged = this.out;
+        this.out = new BufferedWriter(new TaggedWriter(tag, untagged));
+        try {
+            if (Objects.equals(command.type(), "get") || Objects.equals(command.type(), "put")
+                    || Objects.equals(command.type(), "mget") || Objects.equals(command.type(), "mput")
+                    || Objects.equals(command.type(), "exit") || Objects.equals(command.type(), "framed")) {
+                out.write("Command cannot be pipelined.\n");
+            } else {
+                execute(command);
+            }
+            prompt();
+            Metrics.shared().latency(Metrics.Operation.of(command.type()), System.nanoTime() - start);
+        } finally {
+            this.out = untagged;
+        }
+    }
+
+    /**
+     * 发送输出流中缓冲的应答，流水线模式下在一批输入处理完后调用
+     * @throws IOException 如果写入数据时发生IO异常，则抛出该异常
+     */
+    public void flush() throws IOException {
         out.flush();
     }
+
+    /**
+     * 阻塞地读取并处理用户输入的命令，直到用户退出或者连接断开
+     * @param in 从客户端读取数据的缓冲字符输入流
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    public void process(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (!handle(line)) {
+                break;
+            }
+            //流水线模式下一批命令的应答在没有更多输入时一起发送
+            if (!in.ready()) {
+                flush();
+            }
+            //切换到分帧模式后直接从通道读取帧，客户端在收到framed命令的应答之前不会发送新的数据，输入流的缓冲区中没有剩余的内容
+            if (framer != null) {
+                processFrames();
+                break;
+            }
+        }
+    }
+
+    /**
+     * 阻塞地读取并处理分帧模式下的帧，直到用户退出或者连接断开。每次恰好读取一帧，上传的文件数据不会被提前读入缓冲区
+     * @throws IOException 如果读取或写入数据时发生IO异常，则抛出该异常
+     */
+    private void processFrames() throws IOException {
+        FrameReader frames = new FrameReader(Frame.MAX_COMMAND_LENGTH);
+        while (frames.read(socket.getChannel())) {
+            lease.touch();
+            if (!handle(frames)) {
+                break;
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ 配置快照，由ConfigReader一次解析配置文件得到，创建后不再改变。
+ 配置文件修改后ConfigWatcher解析出新的快照并整体替换，正在进行的会话继续使用登录时的根目录
+ @param users 按用户名索引的用户存储
+ @param rootDir 根目录路径
+ @param settings 根目录之后的设置项
+ */
+public record Config(UserStore users, String rootDir, Map<String, String> settings) {
+    /**
+     读取设置项
+     @param name 设置项名称
+     @param defaultValue 配置文件中没有该设置项时使用的默认值
+     @return 设置项的值
+     */
+    public String getSetting(String name, String defaultValue) {
+        return settings.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     读取整数设置项
+     @param name 设置项名称
+     @param defaultValue 配置文件中没有该设置项时使用的默认值
+     @return 设置项的整数值
+     @throws IOException 如果设置项的值不是整数则抛出IOException异常
+     */
+    public int getIntSetting(String name, int defaultValue) throws IOException {
+        String value = settings.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid value for " + name + ": " + value);
+        }
+    }
+}
@@ -1,9 +1,12 @@
 import java.io.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- ConfigReader类用于从文件中读取配置信息，包括用户信息和根目录路径。
+ ConfigReader类用于从文件中读取配置信息，包括用户信息、根目录路径和设置项。
+ 配置文件只读一遍，解析为不可变的Config快照
  */
 public class ConfigReader {
     //文件路径
@@ -18,40 +21,39 @@ public class ConfigReader {
     }
 
     /**
-     读取用户信息并存储到List中
-     @return 包含用户信息的List
-     @throws IOException 如果读取文件失败则抛出IOException异常
+     读取配置文件：分隔符“----”之前每行为“用户名 密码”，分隔符之后的第一行为根目录，其余每行为“名称 值”的设置项。
+     密码字段可以是UserStore.hash计算的哈希，也可以是明文
+     @param previousUsers 上一次读取的用户存储，配置没有变化的用户直接沿用，不重新计算哈希；第一次读取时为null
+     @return 配置快照
+     @throws IOException 如果读取文件失败或者文件格式不正确则抛出IOException异常
      */
-    public List<User> getUsers() throws IOException {
-        List<User> users = new ArrayList<>();
-        try {
-            BufferedReader in = new BufferedReader(new FileReader(path));
+    public Config read(UserStore previousUsers) throws IOException {
+        List<String[]> accounts = new ArrayList<>();
+        Map<String, String> settings = new LinkedHashMap<>();
+        String rootDir;
+        try (BufferedReader in = new BufferedReader(new FileReader(path))) {
             //读取文件的每一行，判断是否为分隔符，如果不是则将用户名和密码存入List中，如果是就退出循环
             String line = in.readLine();
-            while (!line.equals("----")) {
+            while (line != null && !line.equals("----")) {
                 String[] parts = line.split(" ");
-                users.add(new User(parts[0], parts[1]));
+                if (parts.length >= 2) {
+                    accounts.add(parts);
+                }
                 line = in.readLine();
             }
-        } catch (FileNotFoundException e) {
-            System.err.println("错误发生在这里。");
-            e.printStackTrace();
+            //分隔符的下一行为根目录
+            rootDir = line == null ? null : in.readLine();
+            //根目录之后的可选设置项
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 2) {
+                    settings.putIfAbsent(parts[0], parts[1]);
+                }
+            }
         }
-        return users;
-    }
-
-    /**
-     读取根目录路径
-     @return 根目录的绝对路径
-     @throws IOException 如果读取文件失败则抛出IOException异常
-     */
-    public String getRootDir() throws IOException {
-        BufferedReader in = new BufferedReader(new FileReader(path));
-        //读取文件的每一行，判断是否为分隔符，如果是则返回下一行的内容
-        String line = in.readLine();
-        while (!line.equals("----")) {
-            line = in.readLine();
+        if (rootDir == null || rootDir.isBlank()) {
+            throw new IOException("Missing root directory in " + path);
         }
-        return in.readLine();
+        return new Config(UserStore.load(accounts, previousUsers), rootDir.trim(), Map.copyOf(settings));
     }
 }
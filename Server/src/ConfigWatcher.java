@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ 配置监视类，持有当前的配置快照，并由后台线程监视配置文件。
+ 文件修改后重新解析，成功时原子地替换快照，之后的登录立即使用新的用户和根目录，正在进行的会话不受影响；
+ 解析失败时保留原来的快照。会话数和连接数上限等可以在运行时调整的设置通过监听器应用
+ */
+public class ConfigWatcher {
+    // 文件修改后等待写入完成的时间（毫秒），编辑器保存时通常会连续产生多个事件
+    private static final long SETTLE_MILLIS = 200;
+
+    /**
+     配置快照替换后执行的监听器
+     */
+    public interface Listener {
+        void changed(Config config) throws IOException;
+    }
+
+    // 配置文件的解析器
+    private final ConfigReader reader;
+    // 配置文件的绝对路径
+    private final Path file;
+    // 当前的配置快照
+    private volatile Config current;
+    // 快照替换后执行的监听器
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     构造函数，读取配置文件得到第一个快照
+     @param path 配置文件的路径
+     @throws IOException 如果读取配置文件失败，则抛出该异常
+     */
+    public ConfigWatcher(String path) throws IOException {
+        this.reader = new ConfigReader(path);
+        this.file = Paths.get(path).toAbsolutePath();
+        this.current = reader.read(null);
+    }
+
+    /**
+     获取当前的配置快照
+     @return 配置快照
+     */
+    public Config current() {
+        return current;
+    }
+
+    /**
+     添加快照替换后执行的监听器
+     @param listener 监听器
+     */
+    public void onChange(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     启动监视配置文件的后台线程，文件系统不支持监视时只使用启动时的配置
+     */
+    public void start() {
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Configuration reloading disabled: " + e.getMessage());
+            return;
+        }
+        Thread thread = new Thread(() -> watch(watcher), "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     后台线程的执行逻辑，配置文件被修改或者替换时重新读取
+     @param watcher 监视配置文件所在目录的WatchService
+     */
+    private void watch(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= file.getFileName().equals(event.context());
+                }
+                if (changed) {
+                    // 等待写入完成，期间的其他事件一并丢弃
+                    Thread.sleep(SETTLE_MILLIS);
+                    key.pollEvents();
+                    reload();
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // 监视结束
+        }
+    }
+
+    /**
+     重新读取配置文件，成功后替换快照并执行监听器，失败时保留原来的快照
+     */
+    public synchronized void reload() {
+        Config next;
+        try {
+            next = reader.read(current.users());
+        } catch (IOException e) {
+            System.err.println("Failed to reload configuration, keeping the previous one: " + e.getMessage());
+            return;
+        }
+        current = next;
+        for (Listener listener : listeners) {
+            try {
+                listener.changed(next);
+            } catch (IOException e) {
+                System.err.println("Failed to apply configuration: " + e.getMessage());
+            }
+        }
+        System.out.println("Configuration reloaded (" + next.users().size() + " users).");
+    }
+}
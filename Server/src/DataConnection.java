@@ -0,0 +1,160 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ 被动模式数据连接类，每次传输时在临时端口上监听，客户端连接后文件数据通过这条独立的连接收发，
+ 控制连接只用于传输命令和应答
+ */
+public class DataConnection implements Closeable {
+    // 等待客户端连接的超时时间（毫秒）
+    private static final int ACCEPT_TIMEOUT = 30000;
+    // 数据连接的Socket缓冲区大小
+    public static final int BUFFER_SIZE = 1024 * 1024;
+    // 传输成功时接收方回送的确认字节
+    private static final byte ACK = 1;
+
+    /**
+     在数据连接上执行的传输任务
+     */
+    public interface Task {
+        void run(SocketChannel channel) throws IOException;
+    }
+
+    // 监听临时端口的通道
+    private final ServerSocketChannel listener;
+    // 控制连接对端的地址，只接受来自该地址的数据连接
+    private final InetAddress peer;
+
+    /**
+     构造函数，在控制连接的本地地址上打开一个临时端口等待客户端连接
+     @param localAddress 控制连接的本地地址
+     @param peer 控制连接对端（客户端）的地址
+     @throws IOException 如果打开监听端口失败，则抛出该异常
+     */
+    public DataConnection(InetAddress localAddress, InetAddress peer) throws IOException {
+        this.peer = peer;
+        this.listener = ServerSocketChannel.open();
+        // 接收缓冲区需要在监听前设置，才能对接受的连接生效
+        listener.setOption(StandardSocketOptions.SO_RCVBUF, BUFFER_SIZE);
+        listener.bind(new InetSocketAddress(localAddress, 0));
+        listener.socket().setSoTimeout(ACCEPT_TIMEOUT);
+    }
+
+    /**
+     获取监听的端口号
+     @return 端口号
+     */
+    public int getPort() {
+        return listener.socket().getLocalPort();
+    }
+
+    /**
+     等待客户端连接，来自其他地址的连接会被直接关闭
+     @return 建立的数据连接通道
+     @throws IOException 如果等待超时或者接受连接失败，则抛出该异常
+     */
+    public SocketChannel accept() throws IOException {
+        while (true) {
+            Socket socket = listener.socket().accept();
+            if (socket.getInetAddress().equals(peer)) {
+                SocketChannel channel = socket.getChannel();
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, BUFFER_SIZE);
+                return channel;
+            }
+            socket.close();
+        }
+    }
+
+    /**
+     等待count个数据连接，在每条连接上并行执行传输任务，全部完成后关闭这些连接
+     @param count 数据连接数
+     @param task 传输任务
+     @throws IOException 如果等待连接超时，或者任意一条连接上的任务失败，则抛出该异常
+     */
+    public void acceptAll(int count, Task task) throws IOException {
+        List<SocketChannel> channels = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                channels.add(accept());
+            }
+            runAll(channels, task);
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     在每条数据连接上并行执行传输任务，全部完成后返回，只有一条连接时直接在当前线程中执行
+     @param channels 数据连接通道
+     @param task 传输任务
+     @throws IOException 如果任意一条连接上的任务失败，则抛出第一个失败的异常
+     */
+    private static void runAll(List<SocketChannel> channels, Task task) throws IOException {
+        if (channels.size() == 1) {
+            task.run(channels.get(0));
+            return;
+        }
+        List<Thread> threads = new ArrayList<>();
+        IOException[] failure = new IOException[1];
+        for (SocketChannel channel : channels) {
+            Thread thread = new Thread(() -> {
+                try {
+                    task.run(channel);
+                } catch (IOException e) {
+                    synchronized (failure) {
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted.");
+        }
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
+    /**
+     接收方在文件保存完成后回送确认字节
+     @param channel 数据连接通道
+     @throws IOException 如果写入通道时发生IO异常，则抛出该异常
+     */
+    public static void sendAck(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{ACK});
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     关闭监听端口
+     */
+    @Override
+    public void close() throws IOException {
+        listener.close();
+    }
+}
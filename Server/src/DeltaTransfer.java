@@ -0,0 +1,450 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ 增量同步类，接收方已经有旧版本的文件时只传输变化的部分，算法与rsync相同：
+ 1. 发送方先发送新文件的长度（8字节）；
+ 2. 接收方把旧文件分成固定大小的块，发送块大小、块数和每块的弱校验和（可滚动计算）与强校验和（MD5）；
+ 3. 发送方在新文件上逐字节滚动计算弱校验和，弱校验和与强校验和都相同的位置用“复制第i块”的指令代替，
+    其余字节作为字面数据发送，指令打包成“4字节长度 + 指令”的数据帧，长度为0的帧表示结束；
+ 4. 接收方用旧文件中的块和字面数据在临时文件中重建新文件，完成后替换旧文件。
+ 双方都只读取确定长度的数据，不会读走控制连接上随后的应答
+ */
+public class DeltaTransfer {
+    // 块大小的下限和上限，实际块大小约为旧文件长度的平方根
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    // 块数的上限，防止对端发送不合理的签名；旧文件的块数超过上限时接收方增大块大小
+    private static final int MAX_BLOCKS = 1 << 20;
+    // 发送方每批读取的签名数，签名表随实际收到的签名增长
+    private static final int SIGNATURE_BATCH = 4096;
+    // 每块签名的长度：4字节弱校验和 + 16字节MD5
+    private static final int SIGNATURE_SIZE = Integer.BYTES + 16;
+    // 一段字面数据的最大长度
+    private static final int MAX_LITERAL = 64 * 1024;
+    // 数据帧的最大长度
+    private static final int MAX_FRAME = 256 * 1024;
+    // 指令：复制旧文件中从第index块开始的count块
+    private static final byte COPY = 1;
+    // 指令：写入一段字面数据
+    private static final byte LITERAL = 2;
+
+    private DeltaTransfer() {
+    }
+
+    /**
+     发送方：读取接收方的块签名，发送把旧文件变成新文件的指令
+     @param filePath 新文件的路径
+     @param channel 连接到接收方的Socket通道
+     @return 作为字面数据发送的字节数
+     @throws IOException 如果签名不合法，或者读取文件、读写通道时发生IO异常，则抛出该异常
+     */
+    public static long send(Path filePath, SocketChannel channel) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            FileTransfer.writeLong(channel, size);
+            // 读取接收方的块签名
+            ByteBuffer header = readFully(channel, ByteBuffer.allocate(2 * Integer.BYTES));
+            int blockSize = header.getInt();
+            int count = header.getInt();
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || count < 0 || count > MAX_BLOCKS) {
+                throw new IOException("Invalid block signatures.");
+            }
+            // 分批读取签名：index按弱校验和排序，每项的高32位是弱校验和、低32位是块号；strong依次保存每块的MD5
+            long[] index = new long[Math.min(count, SIGNATURE_BATCH)];
+            byte[] strong = new byte[index.length * 16];
+            ByteBuffer batch = ByteBuffer.allocate(Math.min(count, SIGNATURE_BATCH) * SIGNATURE_SIZE);
+            for (int i = 0; i < count; ) {
+                int n = Math.min(SIGNATURE_BATCH, count - i);
+                readFully(channel, batch.clear().limit(n * SIGNATURE_SIZE));
+                if (i + n > index.length) {
+                    index = Arrays.copyOf(index, Math.min(count, Math.max(2 * index.length, i + n)));
+                    strong = Arrays.copyOf(strong, index.length * 16);
+                }
+                for (int end = i + n; i < end; i++) {
+                    index[i] = ((long) batch.getInt() << 32) | i;
+                    batch.get(strong, i * 16, 16);
+                }
+            }
+            Arrays.sort(index, 0, count);
+            Encoder encoder = new Encoder(channel);
+            Window window = new Window(fileChannel, size, blockSize);
+            MessageDigest md5 = md5();
+            long position = 0;
+            int a = 0;
+            int b = 0;
+            boolean fresh = true;
+            while (count > 0 && position + blockSize <= size) {
+                window.ensure(position, blockSize + 1);
+                if (fresh) {
+                    // 重新计算当前窗口的弱校验和
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < blockSize; i++) {
+                        int x = window.at(position + i);
+                        a += x;
+                        b += (blockSize - i) * x;
+                    }
+                    a &= 0xffff;
+                    b &= 0xffff;
+                    fresh = false;
+                }
+                int match = find(index, count, a | (b << 16), strong, window, position, blockSize, md5);
+                if (match >= 0) {
+                    encoder.copy(match);
+                    position += blockSize;
+                    fresh = true;
+                    continue;
+                }
+                // 当前字节作为字面数据，窗口向后滚动一个字节
+                int out = window.at(position);
+                encoder.literal((byte) out);
+                if (position + blockSize < size) {
+                    int in = window.at(position + blockSize);
+                    a = (a - out + in) & 0xffff;
+                    b = (b - blockSize * out + a) & 0xffff;
+                }
+                position++;
+            }
+            // 剩余不足一块的数据作为字面数据
+            while (position < size) {
+                window.ensure(position, 1);
+                encoder.literal((byte) window.at(position));
+                position++;
+            }
+            encoder.finish();
+            return encoder.literalBytes;
+        }
+    }
+
+    /**
+     在弱校验和相同的块中查找强校验和也相同的块
+     @return 匹配的块号，没有匹配时返回-1
+     */
+    private static int find(long[] index, int count, int weak, byte[] strong, Window window, long position,
+                            int blockSize, MessageDigest md5) {
+        // 块号非负，弱校验和相同的项中块号为0的项最小，查找它的插入位置即为第一项
+        int i = Arrays.binarySearch(index, 0, count, (long) weak << 32);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        if (i >= count || (int) (index[i] >> 32) != weak) {
+            return -1;
+        }
+        md5.update(window.buffer, window.index(position), blockSize);
+        byte[] digest = md5.digest();
+        for (; i < count && (int) (index[i] >> 32) == weak; i++) {
+            int candidate = (int) index[i];
+            if (Arrays.equals(digest, 0, 16, strong, candidate * 16, candidate * 16 + 16)) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     接收方：发送本地旧文件的块签名，按发送方的指令重建新文件，完成后替换旧文件。本地没有旧文件时全部数据作为字面数据接收
+     @param channel 连接到发送方的Socket通道
+     @param filePath 保存文件的路径，已有的文件作为旧版本
+     @return 新文件的长度
+     @throws IOException 如果指令不合法，或者读写文件、读写通道时发生IO异常，则抛出该异常
+     */
+    public static long receive(SocketChannel channel, Path filePath) throws IOException {
+        long length = FileTransfer.readLong(channel);
+        if (length < 0) {
+            throw new IOException("Invalid file length: " + length);
+        }
+        // 临时文件使用唯一的名字，不会覆盖用户的同名文件，两个会话同时更新同一个文件也互不干扰
+        Path temp = Files.createTempFile(filePath.toAbsolutePath().getParent(), "." + filePath.getFileName() + ".", ".delta");
+        try (FileChannel basis = Files.isRegularFile(filePath) ? FileChannel.open(filePath, StandardOpenOption.READ) : null) {
+            long basisSize = basis == null ? 0 : basis.size();
+            // 块大小约为旧文件长度的平方根，块数超过上限时增大块大小
+            int blockSize = (int) Math.min(MAX_BLOCK_SIZE, Math.max(Math.max(MIN_BLOCK_SIZE, Math.sqrt(basisSize)),
+                    (basisSize + MAX_BLOCKS - 1) / MAX_BLOCKS));
+            int count = (int) Math.min(MAX_BLOCKS, basisSize / blockSize);
+            sendSignatures(basis, blockSize, count, channel);
+            try (FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer frame = ByteBuffer.allocate(MAX_FRAME);
+                while (true) {
+                    frame.clear().limit(Integer.BYTES);
+                    int frameLength = readFully(channel, frame).getInt();
+                    if (frameLength == 0) {
+                        break;
+                    }
+                    if (frameLength < 0 || frameLength > MAX_FRAME) {
+                        throw new IOException("Invalid delta frame length: " + frameLength);
+                    }
+                    frame.clear().limit(frameLength);
+                    apply(readFully(channel, frame), basis, blockSize, count, target);
+                    if (target.position() > length) {
+                        throw new IOException("Delta data longer than announced.");
+                    }
+                }
+                if (target.position() != length) {
+                    throw new EOFException("Delta data shorter than announced.");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        try {
+            Files.move(temp, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, filePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return length;
+    }
+
+    /**
+     计算并发送旧文件的块签名
+     */
+    private static void sendSignatures(FileChannel basis, int blockSize, int count, SocketChannel channel) throws IOException {
+        ByteBuffer signatures = ByteBuffer.allocate(2 * Integer.BYTES + count * SIGNATURE_SIZE);
+        signatures.putInt(blockSize).putInt(count);
+        MessageDigest md5 = md5();
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        for (int i = 0; i < count; i++) {
+            block.clear();
+            while (block.hasRemaining()) {
+                if (basis.read(block, (long) i * blockSize + block.position()) < 0) {
+                    throw new EOFException("File truncated during transfer.");
+                }
+            }
+            byte[] data = block.array();
+            int a = 0;
+            int b = 0;
+            for (int j = 0; j < blockSize; j++) {
+                int x = data[j] & 0xff;
+                a += x;
+                b += (blockSize - j) * x;
+            }
+            signatures.putInt((a & 0xffff) | ((b & 0xffff) << 16));
+            signatures.put(md5.digest(data));
+        }
+        write(signatures.flip(), channel);
+    }
+
+    /**
+     按TransferProgress的限速分段写出缓冲区中的全部数据，每段写出后报告进度
+     */
+    private static void write(ByteBuffer buffer, SocketChannel channel) throws IOException {
+        int end = buffer.limit();
+        while (buffer.position() < end) {
+            buffer.limit((int) (buffer.position() + TransferProgress.limit(channel, end - buffer.position())));
+            int n = 0;
+            while (buffer.hasRemaining()) {
+                n += channel.write(buffer);
+            }
+            buffer.limit(end);
+            TransferProgress.advanced(channel, n);
+        }
+    }
+
+    /**
+     执行一个数据帧中的指令，把数据追加到临时文件
+     */
+    private static void apply(ByteBuffer frame, FileChannel basis, int blockSize, int count, FileChannel target) throws IOException {
+        while (frame.hasRemaining()) {
+            byte op = frame.get();
+            if (op == COPY) {
+                int index = frame.getInt();
+                int blocks = frame.getInt();
+                if (index < 0 || blocks <= 0 || (long) index + blocks > count) {
+                    throw new IOException("Invalid block reference.");
+                }
+                long position = (long) index * blockSize;
+                long end = position + (long) blocks * blockSize;
+                while (position < end) {
+                    // 旧文件在同步过程中被截短时transferTo不再前进
+                    long n = basis.transferTo(position, end - position, target);
+                    if (n <= 0) {
+                        throw new EOFException("File truncated during transfer.");
+                    }
+                    position += n;
+                }
+            } else if (op == LITERAL) {
+                int length = frame.getInt();
+                if (length < 0 || length > frame.remaining()) {
+                    throw new IOException("Invalid literal length.");
+                }
+                ByteBuffer literal = frame.slice(frame.position(), length);
+                while (literal.hasRemaining()) {
+                    target.write(literal);
+                }
+                frame.position(frame.position() + length);
+            } else {
+                throw new IOException("Invalid delta instruction: " + op);
+            }
+        }
+    }
+
+    /**
+     按TransferProgress的限速从通道读满缓冲区的剩余空间，读取完成后缓冲区处于可读状态
+     */
+    private static ByteBuffer readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        int end = buffer.limit();
+        while (buffer.position() < end) {
+            buffer.limit((int) (buffer.position() + TransferProgress.limit(channel, end - buffer.position())));
+            int n = channel.read(buffer);
+            buffer.limit(end);
+            if (n < 0) {
+                throw new EOFException("Connection closed during transfer.");
+            }
+            TransferProgress.advanced(channel, n);
+        }
+        return buffer.flip();
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     发送方读取新文件的滑动窗口，缓冲区中始终包含当前位置之后至少一块加一个字节的数据
+     */
+    private static class Window {
+        private final FileChannel fileChannel;
+        private final long size;
+        private final byte[] buffer;
+        // 缓冲区开头对应的文件位置和缓冲区中的数据长度
+        private long start = 0;
+        private int length = 0;
+
+        private Window(FileChannel fileChannel, long size, int blockSize) {
+            this.fileChannel = fileChannel;
+            this.size = size;
+            this.buffer = new byte[Math.max(1024 * 1024, 4 * blockSize)];
+        }
+
+        /**
+         确保缓冲区中包含文件[position, position + count)的数据（到文件末尾为止）
+         */
+        private void ensure(long position, int count) throws IOException {
+            if (position + count <= start + length || start + length >= size) {
+                return;
+            }
+            // 丢弃position之前的数据，再读入后面的数据
+            int keep = (int) (start + length - position);
+            System.arraycopy(buffer, (int) (position - start), buffer, 0, keep);
+            start = position;
+            length = keep;
+            while (length < buffer.length && start + length < size) {
+                int n = fileChannel.read(ByteBuffer.wrap(buffer, length, buffer.length - length), start + length);
+                if (n < 0) {
+                    throw new EOFException("File truncated during transfer.");
+                }
+                length += n;
+            }
+        }
+
+        private int index(long position) {
+            return (int) (position - start);
+        }
+
+        private int at(long position) {
+            return buffer[index(position)] & 0xff;
+        }
+    }
+
+    /**
+     发送方的指令编码器，相邻的复制指令合并为一条，字面数据攒够一段后写入数据帧，数据帧满时发送
+     */
+    private static class Encoder {
+        private final SocketChannel channel;
+        private final ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + MAX_FRAME);
+        private final byte[] literal = new byte[MAX_LITERAL];
+        private int literalLength = 0;
+        // 待写入的复制指令，copyCount为0时没有
+        private int copyIndex = 0;
+        private int copyCount = 0;
+        // 作为字面数据发送的字节数
+        private long literalBytes = 0;
+
+        private Encoder(SocketChannel channel) {
+            this.channel = channel;
+            frame.position(Integer.BYTES);
+        }
+
+        private void copy(int index) throws IOException {
+            flushLiteral();
+            if (copyCount > 0 && copyIndex + copyCount == index) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyIndex = index;
+            copyCount = 1;
+        }
+
+        private void literal(byte b) throws IOException {
+            flushCopy();
+            literal[literalLength++] = b;
+            literalBytes++;
+            if (literalLength == MAX_LITERAL) {
+                flushLiteral();
+            }
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyCount == 0) {
+                return;
+            }
+            reserve(1 + 2 * Integer.BYTES);
+            frame.put(COPY).putInt(copyIndex).putInt(copyCount);
+            copyCount = 0;
+        }
+
+        private void flushLiteral() throws IOException {
+            if (literalLength == 0) {
+                return;
+            }
+            reserve(1 + Integer.BYTES + literalLength);
+            frame.put(LITERAL).putInt(literalLength).put(literal, 0, literalLength);
+            literalLength = 0;
+        }
+
+        /**
+         数据帧的剩余空间不足时先发送当前的数据帧
+         */
+        private void reserve(int bytes) throws IOException {
+            if (frame.remaining() < bytes) {
+                sendFrame();
+            }
+        }
+
+        private void sendFrame() throws IOException {
+            int frameLength = frame.position() - Integer.BYTES;
+            frame.putInt(0, frameLength).flip();
+            write(frame, channel);
+            frame.clear().position(Integer.BYTES);
+        }
+
+        /**
+         写出剩余的指令和表示结束的空数据帧
+         */
+        private void finish() throws IOException {
+            flushCopy();
+            flushLiteral();
+            if (frame.position() > Integer.BYTES) {
+                sendFrame();
+            }
+            sendFrame();
+        }
+    }
+}
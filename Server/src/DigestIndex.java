@@ -0,0 +1,204 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ 校验和索引类，所有会话共享。校验模式下完整传输过的文件，其校验和连同当时的文件长度和修改时间一起记录下来，
+ 之后的下载在文件没有变化时直接使用记录的校验和，不必再读一遍文件计算，文件内容仍然可以零拷贝发送。
+ 索引保存在日志文件旁边的digests.txt中，每行为“长度 修改时间 CRC32C SHA-256 路径”，新记录追加在末尾，
+ 读取时以最后一条为准，启动时记录过多则重写一次
+ */
+public class DigestIndex {
+    // 索引文件名
+    private static final String INDEX_FILE_NAME = "digests.txt";
+    // 没有SHA-256时索引文件中的占位符
+    private static final String NO_SHA256 = "-";
+    // 所有会话共享的索引，服务器启动时打开索引文件，之前只保存在内存中
+    private static volatile DigestIndex shared = new DigestIndex();
+
+    /**
+     文件的长度和修改时间，用于判断记录的校验和是否仍然有效
+     @param size 文件长度
+     @param modified 修改时间（毫秒）
+     */
+    public record Stamp(long size, long modified) {
+    }
+
+    /**
+     一条索引记录
+     @param stamp 计算校验和时文件的长度和修改时间
+     @param digest 校验和
+     */
+    private record Entry(Stamp stamp, ChecksumTransfer.Digest digest) {
+    }
+
+    // 按文件路径索引的记录
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // 索引文件，为null时不保存
+    private final Path indexFile;
+    // 追加新记录的写入流
+    private BufferedWriter writer;
+
+    /**
+     构造函数，读取已有的索引文件
+     @param indexFile 索引文件
+     @throws IOException 如果读写索引文件失败，则抛出该异常
+     */
+    private DigestIndex(Path indexFile) throws IOException {
+        this.indexFile = indexFile;
+        int lines = 0;
+        if (Files.exists(indexFile)) {
+            List<String> records = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+            lines = records.size();
+            for (String line : records) {
+                parse(line);
+            }
+        }
+        // 被覆盖的旧记录超过一半时重写索引文件
+        if (lines > 2 * entries.size()) {
+            rewrite();
+        }
+        this.writer = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     构造函数，创建只在内存中保存的索引
+     */
+    private DigestIndex() {
+        this.indexFile = null;
+    }
+
+    /**
+     打开日志文件所在目录中的索引文件，在服务器启动时调用一次
+     @param directory 索引文件所在的目录
+     @throws IOException 如果读写索引文件失败，则抛出该异常
+     */
+    public static synchronized void open(String directory) throws IOException {
+        shared = new DigestIndex(Path.of(directory, INDEX_FILE_NAME));
+    }
+
+    /**
+     获取所有会话共享的索引
+     @return 共享的校验和索引
+     */
+    public static DigestIndex shared() {
+        return shared;
+    }
+
+    /**
+     读取文件当前的长度和修改时间
+     @param filePath 文件路径
+     @return 长度和修改时间
+     @throws IOException 如果读取文件属性失败，则抛出该异常
+     */
+    public static Stamp stamp(Path filePath) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        return new Stamp(attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     查找文件的校验和，文件在记录之后发生过变化时视为没有记录
+     @param filePath 文件路径
+     @param sha256 是否需要SHA-256
+     @return 记录的校验和，没有有效的记录时返回null
+     @throws IOException 如果读取文件属性失败，则抛出该异常
+     */
+    public ChecksumTransfer.Digest lookup(Path filePath, boolean sha256) throws IOException {
+        Entry entry = entries.get(key(filePath));
+        if (entry == null || (sha256 && entry.digest().sha256() == null) || !entry.stamp().equals(stamp(filePath))) {
+            return null;
+        }
+        return entry.digest();
+    }
+
+    /**
+     记录文件的校验和。同一版本的文件已经有带SHA-256的记录时，不用只有CRC32C的记录替换它
+     @param filePath 文件路径
+     @param stamp 计算校验和之前文件的长度和修改时间
+     @param digest 校验和
+     */
+    public void record(Path filePath, Stamp stamp, ChecksumTransfer.Digest digest) {
+        String key = key(filePath);
+        Entry entry = new Entry(stamp, digest);
+        Entry previous = entries.get(key);
+        if (previous != null && previous.stamp().equals(stamp) && previous.digest().sha256() != null
+                && digest.sha256() == null) {
+            return;
+        }
+        entries.put(key, entry);
+        if (indexFile == null) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                writer.write(format(key, entry));
+                writer.flush();
+            } catch (IOException e) {
+                System.err.println("Failed to write to digest index:" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     解析索引文件中的一行，格式不正确的行被忽略
+     @param line 一行记录
+     */
+    private void parse(String line) {
+        String[] fields = line.split(" ", 5);
+        if (fields.length < 5) {
+            return;
+        }
+        try {
+            Stamp stamp = new Stamp(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+            byte[] sha256 = NO_SHA256.equals(fields[3]) ? null : HexFormat.of().parseHex(fields[3]);
+            int crc32c = (int) Long.parseLong(fields[2], 16);
+            entries.put(fields[4], new Entry(stamp, new ChecksumTransfer.Digest(crc32c, sha256)));
+        } catch (IllegalArgumentException e) {
+            // 忽略损坏的记录
+        }
+    }
+
+    /**
+     只保留每个文件的最新记录，写入临时文件后替换索引文件
+     @throws IOException 如果写入索引文件失败，则抛出该异常
+     */
+    private void rewrite() throws IOException {
+        Path temporary = indexFile.resolveSibling(INDEX_FILE_NAME + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.write(format(entry.getKey(), entry.getValue()));
+            }
+        }
+        Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     把一条记录格式化为索引文件中的一行
+     @param key 文件路径
+     @param entry 索引记录
+     @return 以换行结尾的一行
+     */
+    private static String format(String key, Entry entry) {
+        ChecksumTransfer.Digest digest = entry.digest();
+        return entry.stamp().size() + " " + entry.stamp().modified() + " " + HexFormat.of().toHexDigits(digest.crc32c()) + " "
+                + (digest.sha256() == null ? NO_SHA256 : HexFormat.of().formatHex(digest.sha256())) + " " + key + "\n";
+    }
+
+    /**
+     @param filePath 文件路径
+     @return 索引中使用的规范化的绝对路径
+     */
+    private static String key(Path filePath) {
+        return filePath.toAbsolutePath().normalize().toString();
+    }
+}
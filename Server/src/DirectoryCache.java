@@ -0,0 +1,196 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ 目录列表缓存类，所有会话共享，按目录路径缓存dir命令输出的列表文本，重复列出同一目录时不再访问文件系统。
+ 缓存按最近使用的顺序淘汰，缓存的总字符数不超过上限。
+ 目录内容变化时由WatchService的后台线程使缓存失效；网络文件系统上可能收不到事件，
+ 因此每次命中时还会比较目录的修改时间，不一致时重新列出
+ */
+public class DirectoryCache {
+    // 缓存的列表文本的最大总字符数
+    private static final long MAX_CHARS = 16L * 1024 * 1024;
+    // dir命令每行显示的文件数
+    private static final int NAMES_PER_LINE = 6;
+    // 所有会话共享的缓存
+    private static final DirectoryCache SHARED = new DirectoryCache(MAX_CHARS);
+
+    /**
+     一个目录的缓存项
+     @param text 列表文本
+     @param modified 列出时目录的修改时间
+     @param key 目录在WatchService上的注册，无法监听时为null
+     */
+    private record Listing(String text, FileTime modified, WatchKey key) {
+    }
+
+    // 缓存的最大总字符数
+    private final long maxChars;
+    // 按访问顺序排列的缓存项，最久未使用的在最前面
+    private final LinkedHashMap<Path, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+    // 缓存的总字符数
+    private long chars = 0;
+    // 监听目录变化的WatchService，文件系统不支持时为null
+    private final WatchService watcher;
+
+    /**
+     构造函数，创建WatchService并启动监听目录变化的后台线程
+     @param maxChars 缓存的最大总字符数
+     */
+    private DirectoryCache(long maxChars) {
+        this.maxChars = maxChars;
+        WatchService service;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            // 只依靠修改时间判断缓存是否有效
+            service = null;
+        }
+        this.watcher = service;
+        if (watcher != null) {
+            Thread thread = new Thread(this::watch, "directory-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     获取所有会话共享的缓存
+     @return 共享的目录列表缓存
+     */
+    public static DirectoryCache shared() {
+        return SHARED;
+    }
+
+    /**
+     获取目录的列表文本，目录名用蓝色显示，每行显示6个，缓存有效时直接返回缓存的文本
+     @param dir 目录路径
+     @return 列表文本，以换行符结尾
+     @throws IOException 如果读取目录失败，则抛出该异常
+     */
+    public String list(Path dir) throws IOException {
+        Path path = dir.toAbsolutePath().normalize();
+        // 修改时间在列出之前读取，列出过程中发生的变化会使下一次比较不一致
+        FileTime modified = Files.getLastModifiedTime(path);
+        synchronized (this) {
+            Listing listing = listings.get(path);
+            if (listing != null && listing.modified().equals(modified)) {
+                Metrics.shared().directoryCache(true);
+                return listing.text();
+            }
+        }
+        Metrics.shared().directoryCache(false);
+        WatchKey key = register(path);
+        String text = render(path);
+        put(path, new Listing(text, modified, key));
+        return text;
+    }
+
+    /**
+     列出目录下的文件和文件夹，生成列表文本
+     @param dir 目录路径
+     @return 列表文本
+     @throws IOException 如果读取目录失败，则抛出该异常
+     */
+    private static String render(Path dir) throws IOException {
+        File[] files = dir.toFile().listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list directory " + dir);
+        }
+        StringBuilder text = new StringBuilder();
+        int count = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                text.append("\033[34m").append(file.getName()).append("\033[0m\t");
+            } else {
+                text.append(file.getName()).append('\t');
+            }
+            count++;
+            //假如count为6的倍数并且不是最后一个文件，换行
+            if (count % NAMES_PER_LINE == 0 && count != files.length) {
+                text.append('\n');
+            }
+        }
+        return text.append('\n').toString();
+    }
+
+    /**
+     把目录注册到WatchService上，监听文件的创建和删除
+     @param dir 目录路径
+     @return 注册得到的WatchKey，无法监听时返回null
+     */
+    private WatchKey register(Path dir) {
+        if (watcher == null) {
+            return null;
+        }
+        try {
+            return dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     放入缓存项，并按最近使用的顺序淘汰缓存项，直到总字符数不超过上限
+     @param path 目录路径
+     @param listing 缓存项
+     */
+    private synchronized void put(Path path, Listing listing) {
+        if (listing.text().length() > maxChars) {
+            return;
+        }
+        Listing old = listings.put(path, listing);
+        if (old != null) {
+            chars -= old.text().length();
+        }
+        chars += listing.text().length();
+        Iterator<Map.Entry<Path, Listing>> iterator = listings.entrySet().iterator();
+        while (chars > maxChars && iterator.hasNext()) {
+            Listing evicted = iterator.next().getValue();
+            iterator.remove();
+            chars -= evicted.text().length();
+            if (evicted.key() != null && evicted.key() != listing.key()) {
+                evicted.key().cancel();
+            }
+        }
+    }
+
+    /**
+     使目录的缓存项失效
+     @param path 目录路径
+     */
+    public synchronized void invalidate(Path path) {
+        Listing listing = listings.remove(path.toAbsolutePath().normalize());
+        if (listing != null) {
+            chars -= listing.text().length();
+        }
+    }
+
+    /**
+     后台线程的执行逻辑，目录中有文件创建或删除时使该目录的缓存项失效
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            key.pollEvents();
+            invalidate((Path) key.watchable());
+            // 缓存项失效后不再需要监听，目录下次被列出时重新注册
+            key.cancel();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ 事件循环线程类，用一个Selector管理多个非阻塞的NIO会话，处理它们的读写事件
+ */
+public class EventLoop extends Thread {
+    // 读缓冲区大小，同一个事件循环中的会话共享一个读缓冲区
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    // 事件选择器
+    private final Selector selector;
+    // 等待注册到本事件循环的新会话
+    private final Queue<NioSession> newSessions = new ConcurrentLinkedQueue<>();
+    // 其他线程交给本事件循环执行的任务
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // 共享的读缓冲区
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    /**
+     构造函数，打开事件选择器
+     @param name 线程名
+     @throws IOException 如果打开Selector失败，则抛出该异常
+     */
+    public EventLoop(String name) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+    }
+
+    /**
+     把新会话交给本事件循环，会话会在事件循环线程中完成注册
+     @param session 新建立的会话
+     */
+    public void addSession(NioSession session) {
+        newSessions.add(session);
+        selector.wakeup();
+    }
+
+    /**
+     把任务交给本事件循环，任务会在事件循环线程中执行，用于从其他线程操作会话
+     @param task 任务
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     事件循环，等待并分发读写事件
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                registerNewSessions();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioSession session = (NioSession) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        session.onReadable(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.onWritable();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Event loop error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     执行其他线程交给本事件循环的任务
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     注册等待中的新会话
+     */
+    private void registerNewSessions() {
+        NioSession session;
+        while ((session = newSessions.poll()) != null) {
+            try {
+                session.register(this, selector);
+            } catch (IOException e) {
+                System.err.println("Failed to register client: " + e.getMessage());
+                session.close();
+            }
+        }
+    }
+}
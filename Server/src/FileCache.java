@@ -0,0 +1,172 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ 热点文件内容缓存类，所有会话共享。不超过单文件上限的文件在第一次下载时读入堆外内存，
+ 之后的下载直接从内存写入Socket通道，不再打开和读取文件；多个会话同时下载同一文件时共享同一份内存。
+ 缓存按最近使用的顺序淘汰，总字节数不超过预算。每次命中时比较文件的修改时间和长度，不一致则重新读取。
+ 超过单文件上限的大文件仍然用FileChannel.transferTo发送，由操作系统的页缓存在各个会话之间共享
+ */
+public class FileCache {
+    // 默认的缓存预算（字节）
+    private static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+    // 默认的可缓存单文件上限（字节）
+    private static final long DEFAULT_MAX_FILE_SIZE = 4L * 1024 * 1024;
+    // 所有会话共享的缓存，服务器启动时按配置文件重新创建
+    private static volatile FileCache shared = new FileCache(DEFAULT_BUDGET, DEFAULT_MAX_FILE_SIZE);
+
+    /**
+     一个文件的缓存项
+     @param content 文件内容，只读的堆外缓冲区
+     @param modified 读入时文件的修改时间
+     */
+    private record Entry(ByteBuffer content, FileTime modified) {
+    }
+
+    // 缓存预算（字节）
+    private final long budget;
+    // 可缓存的单文件上限（字节）
+    private final long maxFileSize;
+    // 按访问顺序排列的缓存项，最久未使用的在最前面
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // 缓存的总字节数
+    private long bytes = 0;
+
+    /**
+     构造函数
+     @param budget 缓存预算（字节）
+     @param maxFileSize 可缓存的单文件上限（字节）
+     */
+    public FileCache(long budget, long maxFileSize) {
+        this.budget = budget;
+        this.maxFileSize = Math.min(maxFileSize, budget);
+    }
+
+    /**
+     获取所有会话共享的缓存
+     @return 共享的文件内容缓存
+     */
+    public static FileCache shared() {
+        return shared;
+    }
+
+    /**
+     按配置重新创建共享的缓存，在服务器启动时调用
+     @param budget 缓存预算（字节），为0时不缓存
+     @param maxFileSize 可缓存的单文件上限（字节）
+     */
+    public static void configure(long budget, long maxFileSize) {
+        shared = new FileCache(budget, maxFileSize);
+    }
+
+    /**
+     发送文件，格式与FileTransfer.send相同。小文件从缓存中发送，大文件用transferTo发送
+     @param filePath 要发送的文件路径
+     @param offset 开始发送的位置
+     @param channel 连接到对端的Socket通道
+     @return 发送的字节数
+     @throws IOException 如果offset超出文件长度，或者读取文件、写入通道时发生IO异常，则抛出该异常
+     */
+    public long send(Path filePath, long offset, SocketChannel channel) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        if (attributes.size() > maxFileSize) {
+            return FileTransfer.send(filePath, offset, channel);
+        }
+        ByteBuffer content = get(filePath, attributes);
+        if (offset < 0 || offset > content.limit()) {
+            throw new IOException("Restart offset beyond end of file.");
+        }
+        FileTransfer.writeLong(channel, content.limit() - offset);
+        // 每次发送使用独立的视图，不影响其他会话的读取位置
+        ByteBuffer view = content.duplicate().position((int) offset);
+        // 限速的连接每次只写出允许的字节数
+        int end = view.limit();
+        while (view.position() < end) {
+            view.limit((int) Math.min(end, view.position() + TransferProgress.limit(channel, end - view.position())));
+            TransferProgress.advanced(channel, channel.write(view));
+        }
+        return content.limit() - offset;
+    }
+
+    /**
+     从缓存中获取文件内容，缓存中没有或者文件已经改变时重新读入
+     @param filePath 文件路径
+     @param attributes 文件的属性
+     @return 文件内容
+     @throws IOException 如果读取文件失败，则抛出该异常
+     */
+    private ByteBuffer get(Path filePath, BasicFileAttributes attributes) throws IOException {
+        Path path = filePath.toAbsolutePath().normalize();
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.modified().equals(attributes.lastModifiedTime())
+                    && entry.content().limit() == attributes.size()) {
+                Metrics.shared().fileCache(true);
+                return entry.content();
+            }
+        }
+        Metrics.shared().fileCache(false);
+        ByteBuffer content = load(path, attributes.size());
+        put(path, new Entry(content, attributes.lastModifiedTime()));
+        return content;
+    }
+
+    /**
+     把文件内容读入堆外缓冲区
+     @param path 文件路径
+     @param size 文件长度
+     @return 只读的文件内容
+     @throws IOException 如果读取文件失败，或者文件在读取过程中被截断，则抛出该异常
+     */
+    private static ByteBuffer load(Path path, long size) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (fileChannel.read(content) < 0) {
+                    throw new EOFException("File truncated during transfer.");
+                }
+            }
+        }
+        return content.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     放入缓存项，并按最近使用的顺序淘汰缓存项，直到总字节数不超过预算
+     @param path 文件路径
+     @param entry 缓存项
+     */
+    private synchronized void put(Path path, Entry entry) {
+        Entry old = entries.put(path, entry);
+        if (old != null) {
+            bytes -= old.content().limit();
+        }
+        bytes += entry.content().limit();
+        Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+        while (bytes > budget && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().content().limit();
+            iterator.remove();
+        }
+    }
+
+    /**
+     使文件的缓存项失效，服务器上的文件被上传覆盖时调用
+     @param filePath 文件路径
+     */
+    public synchronized void invalidate(Path filePath) {
+        Entry entry = entries.remove(filePath.toAbsolutePath().normalize());
+        if (entry != null) {
+            bytes -= entry.content().limit();
+        }
+    }
+}
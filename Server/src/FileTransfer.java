@@ -0,0 +1,132 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ 文件传输类，以“8字节长度前缀 + 原始字节”的格式在Socket通道上收发文件，
+ 发送使用FileChannel.transferTo，接收使用FileChannel.transferFrom，文件内容不经过字符编码。
+ 传输可以从文件中的任意位置开始，用于断点续传
+ */
+public class FileTransfer {
+    // 单次transferTo/transferFrom调用传输的最大字节数
+    private static final long CHUNK_SIZE = 8L * 1024 * 1024;
+
+    private FileTransfer() {
+    }
+
+    /**
+     发送文件，先写出要发送的长度，再把文件从offset开始的内容直接从FileChannel传输到Socket通道
+     @param filePath 要发送的文件路径
+     @param offset 开始发送的位置
+     @param channel 连接到对端的Socket通道
+     @return 发送的字节数
+     @throws IOException 如果offset超出文件长度，或者读取文件、写入通道时发生IO异常，则抛出该异常
+     */
+    public static long send(Path filePath, long offset, SocketChannel channel) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            if (offset < 0 || offset > size) {
+                throw new IOException("Restart offset beyond end of file.");
+            }
+            writeLong(channel, size - offset);
+            sendRange(fileChannel, offset, size - offset, channel);
+            return size - offset;
+        }
+    }
+
+    /**
+     接收文件，先读取数据长度，再把内容直接从Socket通道写入文件的offset处。
+     文件在offset之后的原有内容会被截掉，offset之前的内容保留；数据边收边写入文件，连接中断时已收到的部分不会丢失
+     @param channel 连接到对端的Socket通道
+     @param filePath 保存文件的路径
+     @param offset 开始写入的位置，为0时覆盖整个文件
+     @return 接收的字节数
+     @throws IOException 如果读取通道或写入文件时发生IO异常，或者连接提前关闭，则抛出该异常
+     */
+    public static long receive(SocketChannel channel, Path filePath, long offset) throws IOException {
+        long size = readLong(channel);
+        if (size < 0) {
+            throw new IOException("Invalid file length: " + size);
+        }
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            fileChannel.truncate(offset);
+            receiveRange(channel, fileChannel, offset, size);
+            return size;
+        }
+    }
+
+    /**
+     把文件中[position, position + count)区间的内容用transferTo写入Socket通道
+     @param fileChannel 文件通道
+     @param position 区间起始位置
+     @param count 区间长度
+     @param channel Socket通道
+     @throws IOException 如果读取文件或写入通道时发生IO异常，或者文件在传输过程中被截断，则抛出该异常
+     */
+    public static void sendRange(FileChannel fileChannel, long position, long count, SocketChannel channel) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long n = fileChannel.transferTo(position, TransferProgress.limit(channel, Math.min(CHUNK_SIZE, end - position)), channel);
+            //文件在传输过程中被截断
+            if (n <= 0) {
+                throw new EOFException("File truncated during transfer.");
+            }
+            position += n;
+            TransferProgress.advanced(channel, n);
+        }
+    }
+
+    /**
+     从Socket通道读取count个字节，用transferFrom写入文件的position处
+     @param channel Socket通道
+     @param fileChannel 文件通道
+     @param position 写入的起始位置
+     @param count 要接收的字节数
+     @throws IOException 如果读取通道或写入文件时发生IO异常，或者连接提前关闭，则抛出该异常
+     */
+    public static void receiveRange(SocketChannel channel, FileChannel fileChannel, long position, long count) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long n = fileChannel.transferFrom(channel, position, TransferProgress.limit(channel, Math.min(CHUNK_SIZE, end - position)));
+            //对端在传输完成前关闭了连接
+            if (n <= 0) {
+                throw new EOFException("Connection closed during transfer.");
+            }
+            position += n;
+            TransferProgress.advanced(channel, n);
+        }
+    }
+
+    /**
+     写出一个8字节的整数，用于长度前缀等头部字段
+     @param channel Socket通道
+     @param value 要写出的整数
+     @throws IOException 如果写入通道时发生IO异常，则抛出该异常
+     */
+    public static void writeLong(SocketChannel channel, long value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(value).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     读取一个8字节的整数
+     @param channel Socket通道
+     @return 读到的整数
+     @throws IOException 如果读取通道时发生IO异常，或者连接提前关闭，则抛出该异常
+     */
+    public static long readLong(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed during transfer.");
+            }
+        }
+        return buffer.flip().getLong();
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ 帧读取类，从一个重复使用的缓冲区中解析分帧模式的帧，帧头直接按下标读取，只有非空的负载才创建字符串。
+ 阻塞的连接用read每次恰好读取一帧，不会把帧之后的文件数据读入缓冲区；非阻塞的连接把读到的字节交给append，再用next逐帧取出
+ */
+public class FrameReader {
+    // 缓冲区的初始大小，足够容纳常见的命令帧
+    private static final int INITIAL_CAPACITY = 256;
+
+    // 负载的最大长度，服务器读取命令帧时使用较小的上限，缓冲区不会超过一帧的最大长度
+    private final int maxPayloadLength;
+    // 已读到但尚未取出的字节，处于写入模式，[0, position)是有效数据
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    // 最近取出的一帧
+    private int opcode;
+    private int status;
+    private String payload = "";
+
+    /**
+     构造函数
+     @param maxPayloadLength 负载的最大长度，超过时视为无效的帧
+     */
+    public FrameReader(int maxPayloadLength) {
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    /**
+     从阻塞的通道读取一帧，只读到该帧的结尾
+     @param channel 阻塞模式的通道
+     @return 是否读到一帧，连接在帧之间关闭时返回false
+     @throws IOException 如果读取失败、帧的长度无效或者连接在帧的中间关闭，则抛出该异常
+     */
+    public boolean read(ReadableByteChannel channel) throws IOException {
+        while (!next()) {
+            int wanted = buffer.position() < Frame.HEADER_LENGTH ? Frame.HEADER_LENGTH
+                    : Frame.HEADER_LENGTH + buffer.getInt(2);
+            ensureCapacity(wanted);
+            buffer.limit(wanted);
+            int n = channel.read(buffer);
+            buffer.limit(buffer.capacity());
+            if (n < 0) {
+                if (buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a frame.");
+            }
+        }
+        return true;
+    }
+
+    /**
+     追加从非阻塞的通道读到的字节，未取出的字节最多达到一帧的最大长度，其余的留在source中。
+     调用者用next取出帧后再继续追加，缓冲区满时其中一定有一个完整的帧
+     @param source 读到的字节
+     @throws IOException 如果扩大缓冲区失败，则抛出该异常
+     */
+    public void append(ByteBuffer source) throws IOException {
+        int room = Frame.HEADER_LENGTH + maxPayloadLength - buffer.position();
+        while (source.hasRemaining() && room > 0) {
+            if (!buffer.hasRemaining()) {
+                ensureCapacity(buffer.capacity() + 1);
+            }
+            int n = Math.min(Math.min(source.remaining(), buffer.remaining()), room);
+            room -= n;
+            buffer.put(buffer.position(), source, source.position(), n);
+            buffer.position(buffer.position() + n);
+            source.position(source.position() + n);
+        }
+    }
+
+    /**
+     从缓冲区取出下一帧
+     @return 缓冲区中是否有完整的一帧，有则之后可以用opcode、status和payload读取
+     @throws IOException 如果帧的长度无效，则抛出该异常
+     */
+    public boolean next() throws IOException {
+        if (buffer.position() < Frame.HEADER_LENGTH) {
+            return false;
+        }
+        int length = buffer.getInt(2);
+        if (length < 0 || length > maxPayloadLength) {
+            throw new IOException("Invalid frame length: " + length + ".");
+        }
+        int end = Frame.HEADER_LENGTH + length;
+        if (buffer.position() < end) {
+            return false;
+        }
+        opcode = buffer.get(0) & 0xFF;
+        status = buffer.get(1) & 0xFF;
+        payload = length == 0 ? "" : new String(buffer.array(), Frame.HEADER_LENGTH, length, StandardCharsets.UTF_8);
+        // 移走这一帧，之后的字节移到缓冲区开头
+        buffer.flip().position(end);
+        buffer.compact();
+        return true;
+    }
+
+    /**
+     @return 最近取出的一帧的操作码
+     */
+    public int opcode() {
+        return opcode;
+    }
+
+    /**
+     @return 最近取出的一帧的状态码
+     */
+    public int status() {
+        return status;
+    }
+
+    /**
+     @return 最近取出的一帧的负载，没有负载时为空字符串
+     */
+    public String payload() {
+        return payload;
+    }
+
+    /**
+     扩大缓冲区，保留已有的字节
+     @param capacity 需要的容量
+     @throws IOException 如果超过一帧的最大长度，则抛出该异常
+     */
+    private void ensureCapacity(int capacity) throws IOException {
+        if (capacity <= buffer.capacity()) {
+            return;
+        }
+        if (capacity > Frame.HEADER_LENGTH + maxPayloadLength) {
+            throw new IOException("Frame too large.");
+        }
+        ByteBuffer larger = ByteBuffer.allocate((int) Math.min(Math.max(capacity, 2L * buffer.capacity()),
+                Frame.HEADER_LENGTH + maxPayloadLength));
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ 帧输出流，用于分帧模式：写入的文本先放在重复使用的字符缓冲区中，flush时编码为一帧写入下层的字节输出流。
+ 帧的操作码和状态码由setOpcode和setStatus设置，状态码只对下一帧有效。也可以用frame直接发送一帧。
+ 暂存期间编码好的帧留在缓冲区中，结束暂存或者调用push时一次写出，一条命令的应答和提示符可以合并成一次网络写操作
+ */
+public class FrameWriter extends Writer {
+    // 缓冲区的初始大小
+    private static final int INITIAL_CAPACITY = 256;
+
+    // 控制连接的字节输出流
+    private final OutputStream out;
+    // 文本编码器，不能编码的字符与String.getBytes一样替换
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // 尚未发送的文本
+    private CharBuffer text = CharBuffer.allocate(INITIAL_CAPACITY);
+    // 编码后尚未写出的帧
+    private ByteBuffer frame = ByteBuffer.allocate(INITIAL_CAPACITY);
+    // 下一帧的操作码和状态码
+    private int opcode;
+    private int status = Frame.OK;
+    // 是否暂存编码好的帧
+    private boolean holding = false;
+
+    /**
+     构造函数
+     @param out 控制连接的字节输出流
+     @param opcode flush发送的帧的操作码
+     */
+    public FrameWriter(OutputStream out, int opcode) {
+        this.out = out;
+        this.opcode = opcode;
+    }
+
+    /**
+     @param opcode flush发送的帧的操作码
+     */
+    public void setOpcode(int opcode) {
+        this.opcode = opcode;
+    }
+
+    /**
+     @param status 下一帧的状态码
+     */
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     @param holding 是否暂存编码好的帧，结束暂存时写出已经暂存的帧
+     @throws IOException 如果写入连接失败，则抛出该异常
+     */
+    public void setHolding(boolean holding) throws IOException {
+        this.holding = holding;
+        if (!holding) {
+            push();
+        }
+    }
+
+    /**
+     写出暂存的帧
+     @throws IOException 如果写入连接失败，则抛出该异常
+     */
+    public void push() throws IOException {
+        if (frame.position() == 0) {
+            return;
+        }
+        out.write(frame.array(), 0, frame.position());
+        out.flush();
+        frame.clear();
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        if (text.remaining() < len) {
+            CharBuffer larger = CharBuffer.allocate(Math.max(text.position() + len, 2 * text.capacity()));
+            text.flip();
+            larger.put(text);
+            text = larger;
+        }
+        text.put(cbuf, off, len);
+    }
+
+    /**
+     把写入的文本作为一帧发送，没有文本时不发送
+     @throws IOException 如果写入连接失败，则抛出该异常
+     */
+    @Override
+    public void flush() throws IOException {
+        if (text.position() == 0) {
+            return;
+        }
+        text.flip();
+        send(opcode, status, text);
+        text.clear();
+        status = Frame.OK;
+    }
+
+    /**
+     发送一帧，之前写入的文本不受影响
+     @param opcode 操作码
+     @param status 状态码
+     @param payload 负载
+     @throws IOException 如果写入连接失败，则抛出该异常
+     */
+    public void frame(int opcode, int status, CharSequence payload) throws IOException {
+        send(opcode, status, CharBuffer.wrap(payload));
+    }
+
+    @Override
+    public void close() {
+        // 不关闭控制连接的输出流
+    }
+
+    /**
+     编码一帧，追加在暂存的帧之后，不在暂存期间时立即写出
+     @param opcode 操作码
+     @param status 状态码
+     @param payload 负载，读取到末尾
+     @throws IOException 如果负载过长或者写入连接失败，则抛出该异常
+     */
+    private void send(int opcode, int status, CharBuffer payload) throws IOException {
+        encoder.reset();
+        int start = frame.position();
+        if (frame.remaining() < Frame.HEADER_LENGTH) {
+            grow();
+        }
+        frame.position(start + Frame.HEADER_LENGTH);
+        CoderResult result = encoder.encode(payload, frame, true);
+        while (result.isOverflow()) {
+            grow();
+            result = encoder.encode(payload, frame, true);
+        }
+        while (encoder.flush(frame).isOverflow()) {
+            grow();
+        }
+        int length = frame.position() - start - Frame.HEADER_LENGTH;
+        if (length > Frame.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Frame too large.");
+        }
+        frame.put(start, (byte) opcode).put(start + 1, (byte) status).putInt(start + 2, length);
+        if (!holding) {
+            push();
+        }
+    }
+
+    /**
+     扩大帧的缓冲区，保留已经编码的字节
+     @throws IOException 如果超过暂存的上限，则抛出该异常
+     */
+    private void grow() throws IOException {
+        if (frame.capacity() >= 2 * (Frame.HEADER_LENGTH + Frame.MAX_PAYLOAD_LENGTH)) {
+            throw new IOException("Frame too large.");
+        }
+        ByteBuffer larger = ByteBuffer.allocate((int) Math.min(2L * frame.capacity(), 2 * (Frame.HEADER_LENGTH + Frame.MAX_PAYLOAD_LENGTH)));
+        frame.flip();
+        larger.put(frame);
+        frame = larger;
+    }
+}
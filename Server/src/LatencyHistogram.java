@@ -0,0 +1,104 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ 延迟直方图类，按HdrHistogram的方式把耗时（纳秒）分桶：每个2的幂区间再均分为64个子桶，相对误差不超过1/64，
+ 覆盖从1纳秒到1小时的范围。桶数固定，记录时只是计算下标并原子地加一，不分配对象，多个线程可以同时记录
+ */
+public class LatencyHistogram {
+    // 每个2的幂区间的子桶数为2的该次幂的一半
+    private static final int SUB_BUCKET_BITS = 7;
+    // 第一个区间的子桶数，覆盖0到127纳秒
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // 之后每个区间的子桶数
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    // 记录的最大耗时，超出的按最大值记录
+    private static final long MAX_VALUE = TimeUnit.HOURS.toNanos(1);
+
+    // 每个桶的记录数
+    private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+    // 记录总数
+    private final AtomicLong count = new AtomicLong();
+    // 耗时总和（纳秒）
+    private final AtomicLong sum = new AtomicLong();
+    // 最大耗时（纳秒）
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     记录一次耗时
+     @param nanos 耗时（纳秒）
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     @return 记录总数
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     @return 平均耗时（纳秒），没有记录时为0
+     */
+    public long mean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     @return 最大耗时（纳秒）
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     计算百分位数，返回所在桶的上界，不超过记录到的最大耗时
+     @param percentile 百分位，0到100之间，例如99.9
+     @return 百分位数（纳秒），没有记录时为0
+     */
+    public long percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     @param value 耗时（纳秒），不超过MAX_VALUE
+     @return 所在桶的下标
+     */
+    private static int index(long value) {
+        int bucket = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1));
+        return bucket * SUB_BUCKET_HALF + (int) (value >>> bucket);
+    }
+
+    /**
+     @param index 桶的下标
+     @return 桶中最大的耗时（纳秒）
+     */
+    private static long highestEquivalent(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int bucket = index / SUB_BUCKET_HALF - 1;
+        long lowest = (long) (index % SUB_BUCKET_HALF + SUB_BUCKET_HALF) << bucket;
+        return lowest + (1L << bucket) - 1;
+    }
+}
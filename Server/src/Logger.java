@@ -1,37 +1,170 @@
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  日志记录器，用于记录操作信息和时间戳到指定文件中。
+ 整个服务器进程共享一个日志记录器：调用者只把日志记录放入有界的无锁环形缓冲区，
+ 由后台线程按固定的间隔批量格式化并写入文件，命令处理的路径上没有文件IO，也不需要加锁
  */
 public class Logger {
     private static final String LOG_FILE_NAME = "log.txt"; // 日志文件名
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); // 时间格式
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault()); // 时间格式
+    private static final int CAPACITY = 1 << 16; // 环形缓冲区的容量，必须是2的幂
+    private static final int WRITER_BUFFER_SIZE = 64 * 1024; // 文件写入缓冲区的大小
+    private static volatile Logger shared; // 服务器进程共享的日志记录器
 
-    private final FileWriter fileWriter; // 文件写入流
+    /**
+     一条日志记录，时间在调用log时记录，格式化由后台线程完成
+     @param time 记录时间（毫秒）
+     @param ip 客户端IP地址
+     @param message 操作信息
+     */
+    private record Record(long time, String ip, String message) {
+    }
+
+    private final BufferedWriter fileWriter; // 文件写入流，只由后台线程使用
+    private final long flushIntervalNanos; // 批量写入文件的间隔（纳秒）
+    private final Record[] slots = new Record[CAPACITY]; // 环形缓冲区的槽位
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY); // 每个槽位的序号，表示槽位可写或可读
+    private final AtomicLong tail = new AtomicLong(); // 下一个写入位置，多个调用者竞争
+    private long head = 0; // 下一个读取位置，只由后台线程使用
+    private final AtomicLong dropped = new AtomicLong(); // 缓冲区满时丢弃的记录数
+    private final Thread writer; // 后台写入线程
+    private volatile boolean closed = false; // 是否已经关闭
 
     /**
-     构造函数，创建一个新的日志文件写入流
+     构造函数，打开日志文件并启动后台写入线程
      @param rootDirectory 根目录路径
+     @param flushIntervalMillis 批量写入文件的间隔（毫秒）
      @throws IOException 如果创建文件失败，则抛出IOException异常
      */
-    public Logger(String rootDirectory) throws IOException {
+    private Logger(String rootDirectory, long flushIntervalMillis) throws IOException {
         File logFile = new File(rootDirectory, LOG_FILE_NAME);
-        this.fileWriter = new FileWriter(logFile, true);
+        this.fileWriter = new BufferedWriter(new FileWriter(logFile, true), WRITER_BUFFER_SIZE);
+        this.flushIntervalNanos = Math.max(1, flushIntervalMillis) * 1_000_000L;
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        this.writer = new Thread(this::run, "log-writer");
+        writer.setDaemon(true);
     }
 
     /**
-     记录日志方法，包含IP地址、时间和操作信息，并将其写入日志文件中
+     创建服务器进程共享的日志记录器，在服务器启动时调用一次。进程退出时写出剩余的记录并关闭文件
+     @param rootDirectory 根目录路径
+     @param flushIntervalMillis 批量写入文件的间隔（毫秒）
+     @throws IOException 如果创建文件失败，则抛出IOException异常
+     */
+    public static synchronized void open(String rootDirectory, long flushIntervalMillis) throws IOException {
+        if (shared != null) {
+            shared.close();
+        }
+        Logger logger = new Logger(rootDirectory, flushIntervalMillis);
+        logger.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(logger::close));
+        shared = logger;
+    }
+
+    /**
+     获取服务器进程共享的日志记录器
+     @return 共享的日志记录器
+     */
+    public static Logger shared() {
+        return shared;
+    }
+
+    /**
+     记录日志方法，包含IP地址、时间和操作信息，放入环形缓冲区后立即返回。
+     缓冲区满时丢弃该记录，后台线程会在日志中记录丢弃的数量
      @param ip 客户端IP地址
      @param message 操作信息
      */
-    public synchronized void log(String ip, String message) {
+    public void log(String ip, String message) {
+        Record record = new Record(System.currentTimeMillis(), ip, message);
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & (CAPACITY - 1));
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                // 槽位可写，抢到该位置后写入记录，再发布序号使后台线程可以读取
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = record;
+                    sequences.set(index, position + 1);
+                    return;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // 后台线程还没有读走一圈之前的记录，缓冲区已满
+                dropped.incrementAndGet();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     从环形缓冲区中取出一条记录
+     @return 取出的记录，缓冲区为空时返回null
+     */
+    private Record poll() {
+        int index = (int) (head & (CAPACITY - 1));
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Record record = slots[index];
+        slots[index] = null;
+        // 槽位在下一圈重新可写
+        sequences.set(index, head + CAPACITY);
+        head++;
+        return record;
+    }
+
+    /**
+     后台线程的执行逻辑，每隔一段时间把缓冲区中的记录全部写入文件并刷新一次
+     */
+    private void run() {
+        while (!closed) {
+            LockSupport.parkNanos(this, flushIntervalNanos);
+            drain();
+        }
+        drain();
         try {
-            fileWriter.write("[" + DATE_FORMAT.format(new Date()) + "] " + ip + ": " + message + "\n");
-            fileWriter.flush();
+            fileWriter.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close the log file:" + e.getMessage());
+        }
+    }
+
+    /**
+     把缓冲区中的记录写入文件，有新记录时刷新一次
+     */
+    private void drain() {
+        try {
+            boolean written = false;
+            Record record;
+            while ((record = poll()) != null) {
+                fileWriter.write("[" + DATE_FORMAT.format(Instant.ofEpochMilli(record.time())) + "] "
+                        + record.ip() + ": " + record.message() + "\n");
+                written = true;
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                fileWriter.write("[" + DATE_FORMAT.format(Instant.now()) + "] " + lost + " log records dropped.\n");
+                written = true;
+            }
+            if (written) {
+                fileWriter.flush();
+            }
         } catch (IOException e) {
             // 输出英文错误信息
             System.err.println("Failed to write to log file:" + e.getMessage());
@@ -39,13 +172,18 @@ public class Logger {
     }
 
     /**
-     关闭日志记录器，关闭文件写入流
+     关闭日志记录器，等待后台线程写出剩余的记录并关闭文件写入流
      */
-    public synchronized void close() {
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
         try {
-            fileWriter.close();
-        } catch (IOException e) {
-            System.err.println("Failed to close the log file:" + e.getMessage());
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
-}
\ No newline at end of file
+}
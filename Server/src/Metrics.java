@@ -0,0 +1,373 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ 服务器指标类，所有会话共享。记录各命令的处理耗时（LatencyHistogram）、传输字节数和登录成功失败次数（计数和每秒速率）、
+ 文件内容缓存和目录列表缓存的命中次数，以及在线会话数等由各组件提供的当前值。
+ 记录只是对预先创建的计数器和直方图做原子加法，不分配对象；读取时才汇总。
+ 指标以只读属性的形式注册为JMX MBean（ftp:type=Metrics），配置了metricsPort时还在本机回环地址上提供
+ http://127.0.0.1:端口/metrics，每行为“指标名 值”的纯文本
+ */
+public class Metrics implements DynamicMBean {
+    // JMX中的对象名
+    private static final String OBJECT_NAME = "ftp:type=Metrics";
+    // HTTP端点的路径
+    private static final String HTTP_PATH = "/metrics";
+    // 报告的百分位
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    // 百分位在指标名中的写法
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+    // 所有会话共享的指标
+    private static final Metrics SHARED = new Metrics();
+
+    /**
+     分别统计耗时的操作，命令处理的耗时从收到命令到发出提示符，不包括等待客户端应答的时间
+     */
+    public enum Operation {
+        LOGIN, DIR, CD, GET, PUT, MGET, MPUT, OTHER;
+
+        // 指标名中的写法
+        private final String key = name().toLowerCase(Locale.ROOT);
+
+        /**
+         @param command 命令名
+         @return 命令对应的操作，没有单独统计的命令为OTHER
+         */
+        public static Operation of(String command) {
+            return switch (command) {
+                case "dir" -> DIR;
+                case "cd" -> CD;
+                case "get" -> GET;
+                case "put" -> PUT;
+                case "mget" -> MGET;
+                case "mput" -> MPUT;
+                default -> OTHER;
+            };
+        }
+    }
+
+    /**
+     计数器，同时按指数加权移动平均估计最近一分钟的每秒速率。速率每5秒在记录或者读取时顺便更新一次，不需要后台线程
+     */
+    private static class Meter {
+        // 更新速率的间隔（纳秒）
+        private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+        // 每个间隔的衰减系数，对应一分钟的平均
+        private static final double ALPHA = 1 - Math.exp(-5.0 / 60);
+
+        // 累计总数
+        private final LongAdder total = new LongAdder();
+        // 上次更新速率以来的数量
+        private final LongAdder uncounted = new LongAdder();
+        // 上次更新速率的时间（纳秒）
+        private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+        // 估计的每秒速率
+        private volatile double rate;
+
+        /**
+         @param n 新增的数量
+         */
+        void mark(long n) {
+            tickIfNecessary();
+            total.add(n);
+            uncounted.add(n);
+        }
+
+        /**
+         @return 累计总数
+         */
+        long total() {
+            return total.sum();
+        }
+
+        /**
+         @return 最近一分钟的每秒速率
+         */
+        double rate() {
+            tickIfNecessary();
+            return rate;
+        }
+
+        /**
+         距离上次更新超过一个间隔时更新速率，只有一个线程执行更新，经过多个间隔时按平均值一次衰减
+         */
+        private void tickIfNecessary() {
+            long last = lastTick.get();
+            long age = System.nanoTime() - last;
+            if (age < TICK_NANOS || !lastTick.compareAndSet(last, last + age / TICK_NANOS * TICK_NANOS)) {
+                return;
+            }
+            long ticks = age / TICK_NANOS;
+            double instant = uncounted.sumThenReset() / (ticks * TICK_NANOS / 1e9);
+            rate += (1 - Math.pow(1 - ALPHA, ticks)) * (instant - rate);
+        }
+    }
+
+    // 每种操作的耗时
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    // 传输的字节数
+    private final Meter transferred = new Meter();
+    // 登录成功次数，包括恢复会话
+    private final Meter logins = new Meter();
+    // 登录失败次数
+    private final Meter loginFailures = new Meter();
+    // 因为连接数已满被拒绝的连接数
+    private final LongAdder rejected = new LongAdder();
+    // 因为空闲或者传输停滞被回收的会话数
+    private final LongAdder reaped = new LongAdder();
+    // 文件内容缓存的命中和未命中次数
+    private final LongAdder fileCacheHits = new LongAdder();
+    private final LongAdder fileCacheMisses = new LongAdder();
+    // 目录列表缓存的命中和未命中次数
+    private final LongAdder directoryCacheHits = new LongAdder();
+    private final LongAdder directoryCacheMisses = new LongAdder();
+    // 由各组件提供的当前值，在启动时登记
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    private Metrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     获取所有会话共享的指标
+     @return 共享的指标
+     */
+    public static Metrics shared() {
+        return SHARED;
+    }
+
+    /**
+     把共享的指标注册为JMX MBean，端口大于0时同时在本机回环地址上启动HTTP端点，在服务器启动时调用一次
+     @param httpPort HTTP端点的端口，为0时不启动
+     @throws IOException 如果注册MBean或者启动HTTP端点失败，则抛出该异常
+     */
+    public static void start(int httpPort) throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(SHARED, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new IOException("Failed to register metrics MBean: " + e.getMessage(), e);
+        }
+        if (httpPort <= 0) {
+            return;
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+        server.createContext(HTTP_PATH, SHARED::serve);
+        server.start();
+        System.out.println("Metrics available at http://127.0.0.1:" + httpPort + HTTP_PATH);
+    }
+
+    /**
+     登记由组件提供的当前值，例如在线会话数，在服务器启动时调用
+     @param name 指标名
+     @param value 读取当前值的方法
+     */
+    public synchronized void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     记录一次操作的耗时
+     @param operation 操作
+     @param nanos 耗时（纳秒）
+     */
+    public void latency(Operation operation, long nanos) {
+        latencies[operation.ordinal()].record(nanos);
+    }
+
+    /**
+     记录传输的字节数
+     @param bytes 字节数
+     */
+    public void transferred(long bytes) {
+        transferred.mark(bytes);
+    }
+
+    /**
+     记录一次登录
+     @param success 是否成功
+     */
+    public void login(boolean success) {
+        (success ? logins : loginFailures).mark(1);
+    }
+
+    /**
+     记录一次被拒绝的连接
+     */
+    public void rejected() {
+        rejected.increment();
+    }
+
+    /**
+     记录一次被回收的会话
+     */
+    public void reaped() {
+        reaped.increment();
+    }
+
+    /**
+     记录一次文件内容缓存的查找
+     @param hit 是否命中
+     */
+    public void fileCache(boolean hit) {
+        (hit ? fileCacheHits : fileCacheMisses).increment();
+    }
+
+    /**
+     记录一次目录列表缓存的查找
+     @param hit 是否命中
+     */
+    public void directoryCache(boolean hit) {
+        (hit ? directoryCacheHits : directoryCacheMisses).increment();
+    }
+
+    /**
+     汇总所有指标的当前值，耗时以微秒为单位
+     @return 按固定顺序排列的指标名和值
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        synchronized (this) {
+            for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+                values.put(gauge.getKey(), gauge.getValue().getAsLong());
+            }
+        }
+        values.put("connections.rejected", rejected.sum());
+        values.put("sessions.reaped", reaped.sum());
+        values.put("login.successes", logins.total());
+        values.put("login.failures", loginFailures.total());
+        values.put("login.successesPerSecond", logins.rate());
+        values.put("login.failuresPerSecond", loginFailures.rate());
+        values.put("transfer.bytes", transferred.total());
+        values.put("transfer.bytesPerSecond", transferred.rate());
+        ratio(values, "fileCache", fileCacheHits.sum(), fileCacheMisses.sum());
+        ratio(values, "directoryCache", directoryCacheHits.sum(), directoryCacheMisses.sum());
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies[operation.ordinal()];
+            String prefix = "latency." + operation.key + ".";
+            values.put(prefix + "count", histogram.count());
+            values.put(prefix + "meanMicros", TimeUnit.NANOSECONDS.toMicros(histogram.mean()));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                values.put(prefix + PERCENTILE_NAMES[i] + "Micros", TimeUnit.NANOSECONDS.toMicros(histogram.percentile(PERCENTILES[i])));
+            }
+            values.put(prefix + "maxMicros", TimeUnit.NANOSECONDS.toMicros(histogram.max()));
+        }
+        return values;
+    }
+
+    /**
+     加入缓存的命中次数、未命中次数和命中率
+     @param values 指标
+     @param name 缓存名
+     @param hits 命中次数
+     @param misses 未命中次数
+     */
+    private static void ratio(Map<String, Number> values, String name, long hits, long misses) {
+        values.put(name + ".hits", hits);
+        values.put(name + ".misses", misses);
+        values.put(name + ".hitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+    }
+
+    /**
+     @return 每行为“指标名 值”的纯文本
+     */
+    public String render() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Number> entry : snapshot().entrySet()) {
+            Number value = entry.getValue();
+            text.append(entry.getKey()).append(' ')
+                    .append(value instanceof Double ? String.format(Locale.ROOT, "%.3f", value.doubleValue()) : value.toString())
+                    .append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     处理HTTP端点的请求
+     @param exchange HTTP请求
+     @throws IOException 如果发送应答失败，则抛出该异常
+     */
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> values = snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> entry : values.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    entry.getKey(), true, false, false);
+        }
+        return new MBeanInfo(Metrics.class.getName(), "FTP server metrics", attributes, null,
+                new MBeanOperationInfo[0], null);
+    }
+}
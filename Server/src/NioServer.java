@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ NIO服务器引擎，用少量事件循环线程处理所有非阻塞的控制连接，
+ 空闲连接不再各自占用一个线程
+ */
+public class NioServer {
+    // 配置
+    private final ConfigWatcher config;
+    // 监听端口
+    private final int port;
+    // 事件循环线程
+    private final EventLoop[] loops;
+
+    /**
+     构造函数，初始化相关属性并创建事件循环
+     @param config 配置
+     @param port 监听端口
+     @param loopCount 事件循环线程数
+     @throws IOException 如果创建事件循环失败，则抛出该异常
+     */
+    public NioServer(ConfigWatcher config, int port, int loopCount) throws IOException {
+        this.config = config;
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("event-loop-" + i);
+        }
+    }
+
+    /**
+     启动事件循环，在当前线程中接受连接并轮流分配给各个事件循环
+     @throws IOException 如果监听端口失败，则抛出该异常
+     */
+    public void start() throws IOException {
+        //所有会话共享一个日志记录器
+        Logger log = Logger.shared();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            for (EventLoop loop : loops) {
+                loop.setDaemon(true);
+                loop.start();
+            }
+            System.out.println("Server started on port " + port + " (nio, " + loops.length + " event loops)");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                loops[next].addSession(new NioSession(channel, config, log));
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ NIO会话类，保存一个非阻塞控制连接的读写状态。
+ 收到的字节按行切分后交给Authenticator或CommandProcessor处理，应答先放入待发送队列，由所属的事件循环写出
+ */
+public class NioSession {
+    // 一行输入的最大长度，超过则断开连接
+    private static final int MAX_LINE_LENGTH = 8192;
+    // 输出流的字符缓冲区大小，空闲会话只占用很少的内存
+    private static final int WRITER_BUFFER_SIZE = 256;
+    // 校验密码的工作线程池，所有事件循环共享。密码哈希很耗时，不能在事件循环中计算，否则会阻塞同一循环中的所有会话
+    private static final ExecutorService VERIFIER = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), task -> {
+                Thread thread = new Thread(task, "password-verifier");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // 客户端连接的通道
+    private final SocketChannel channel;
+    // 客户端IP地址
+    private final String ip;
+    // 日志记录器
+    private final Logger log;
+    // 向客户端发送数据的字节输出流，写入的数据进入待发送队列，分帧模式下直接写入帧
+    private final OutputStream raw;
+    // 向客户端发送数据的输出流，写入的数据经过编码后交给raw
+    private final BufferedWriter out;
+    // 待发送的数据
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    // 用户登录验证器
+    private final Authenticator authenticator;
+    // 登录成功后的命令处理器
+    private CommandProcessor processor;
+    // 尚未读到换行符的一行输入
+    private byte[] line = new byte[64];
+    private int lineLength = 0;
+    // 切换到分帧模式后解析输入的帧读取器
+    private FrameReader frames;
+    // 在通道上注册的SelectionKey
+    private SelectionKey key;
+    // 待发送的数据写完后关闭连接
+    private boolean closing = false;
+    // 在会话回收器中登记的租约
+    private SessionReaper.Lease lease;
+    // 会话所属的事件循环
+    private EventLoop loop;
+    // 正在工作线程中校验密码，期间不读取新的输入
+    private boolean verifying = false;
+    // 开始校验密码时已经读到、尚未处理的输入，校验完成后继续处理
+    private ByteBuffer deferred;
+
+    /**
+     构造函数，初始化会话的相关属性
+     @param channel 客户端连接的通道，必须已设置为非阻塞模式
+     @param config 配置
+     @param log 日志记录器
+     */
+    public NioSession(SocketChannel channel, ConfigWatcher config, Logger log) {
+        this.channel = channel;
+        this.ip = channel.socket().getInetAddress().getHostAddress();
+        this.log = log;
+        this.raw = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                pending.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+            }
+
+            @Override
+            public void flush() throws IOException {
+                flushPending();
+            }
+        };
+        this.out = new BufferedWriter(new OutputStreamWriter(raw, StandardCharsets.UTF_8), WRITER_BUFFER_SIZE);
+        this.authenticator = new Authenticator(config, out, ip, log);
+    }
+
+    /**
+     把会话注册到事件循环的Selector上，开始等待客户端输入。会话空闲或者传输停滞超时后，
+     回收器把关闭会话的任务交给所属的事件循环执行
+     @param loop 会话所属的事件循环
+     @param selector 事件循环的Selector
+     @throws IOException 如果注册失败，则抛出该异常
+     */
+    public void register(EventLoop loop, Selector selector) throws IOException {
+        this.loop = loop;
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        lease = SessionReaper.shared().open(ip, () -> loop.execute(this::close));
+        //在服务器端输出提示信息
+        System.out.println("Client " + ip + " connected.");
+    }
+
+    /**
+     通道可读时读取数据，并把读到的每一行交给登录验证器或命令处理器
+     @param buffer 事件循环共享的读缓冲区
+     */
+    public void onReadable(ByteBuffer buffer) {
+        try {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            consume(buffer.flip());
+        } catch (IOException e) {
+            System.err.println("Error handling client request: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     处理读到的字节。开始校验密码后剩余的字节暂存起来，校验完成后再处理
+     @param buffer 处于可读状态的缓冲区
+     @throws IOException 如果处理命令时发生IO异常，则抛出该异常
+     */
+    private void consume(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && !closing) {
+            if (verifying) {
+                deferred = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                break;
+            }
+            //切换到分帧模式后，剩余的字节都按帧解析
+            if (processor != null && processor.isFramed()) {
+                onFrames(buffer);
+                break;
+            }
+            byte b = buffer.get();
+            if (b == '\n') {
+                onLine(takeLine());
+            } else {
+                appendToLine(b);
+            }
+        }
+        //流水线模式下的应答只写入了缓冲区，读到的一批命令处理完后一起发送
+        if (processor != null && !closing) {
+            processor.flush();
+        }
+    }
+
+    /**
+     通道可写时继续写出待发送的数据
+     */
+    public void onWritable() {
+        try {
+            flushPending();
+        } catch (IOException e) {
+            System.err.println("Error handling client request: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     处理一行完整的输入
+     @param input 一行输入
+     @throws IOException 如果处理命令时发生IO异常，则抛出该异常
+     */
+    private void onLine(String input) throws IOException {
+        lease.touch();
+        if (processor == null && authenticator.expectsPassword()) {
+            verify(input);
+        } else if (processor == null) {
+            loggedIn(authenticator.handle(input));
+        } else if (!processor.handle(input)) {
+            closeWhenFlushed();
+        }
+    }
+
+    /**
+     在工作线程中校验密码，期间停止读取输入，校验结果交回事件循环完成登录，与回收器关闭会话的方式相同
+     @param input 密码行
+     */
+    private void verify(String input) {
+        verifying = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        VERIFIER.execute(() -> {
+            User verified = authenticator.checkPassword(input);
+            loop.execute(() -> onVerified(verified));
+        });
+    }
+
+    /**
+     在事件循环中处理密码的校验结果，然后恢复读取输入并处理暂存的输入
+     @param verified 校验结果，密码错误时为null
+     */
+    private void onVerified(User verified) {
+        verifying = false;
+        //校验期间会话已被关闭
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            loggedIn(authenticator.login(verified));
+            if (!closing) {
+                flushPending();
+            }
+            ByteBuffer rest = deferred;
+            deferred = null;
+            if (rest != null) {
+                consume(rest);
+            }
+        } catch (IOException e) {
+            System.err.println("Error handling client request: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     登录输入处理完后的步骤：尝试次数过多时关闭连接，登录成功时创建命令处理器
+     @param user 登录成功的用户对象，尚未登录成功时为null
+     @throws IOException 如果写入数据时发生IO异常，则抛出该异常
+     */
+    private void loggedIn(User user) throws IOException {
+        if (authenticator.isClosed()) {
+            closeWhenFlushed();
+        } else if (user != null) {
+            lease.setUsername(user.getUsername());
+            // 进入命令提示符状态，会话一直使用登录时的根目录，恢复的会话回到原来的当前目录
+            ResumeTokens.Ticket ticket = authenticator.getTicket();
+            processor = new CommandProcessor(out, raw, ticket.getCurrentPath(), ip, log, user, ticket.getRootDir(),
+                    channel.socket(), ticket, lease);
+            processor.prompt();
+        }
+    }
+
+    /**
+     处理分帧模式下读到的字节，不完整的帧留在帧读取器中等待后续的数据
+     @param buffer 读到的字节
+     @throws IOException 如果帧无效或者处理命令时发生IO异常，则抛出该异常
+     */
+    private void onFrames(ByteBuffer buffer) throws IOException {
+        if (frames == null) {
+            frames = new FrameReader(Frame.MAX_COMMAND_LENGTH);
+        }
+        //帧读取器最多暂存一帧的最大长度，取出帧后再追加剩余的字节
+        do {
+            frames.append(buffer);
+            while (!closing && frames.next()) {
+                lease.touch();
+                if (!processor.handle(frames)) {
+                    closeWhenFlushed();
+                }
+            }
+        } while (!closing && buffer.hasRemaining());
+    }
+
+    /**
+     追加一个字节到当前行
+     @param b 读到的字节
+     @throws IOException 如果一行的长度超过上限，则抛出该异常
+     */
+    private void appendToLine(byte b) throws IOException {
+        if (lineLength == line.length) {
+            if (lineLength >= MAX_LINE_LENGTH) {
+                throw new IOException("Line too long.");
+            }
+            line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+        }
+        line[lineLength++] = b;
+    }
+
+    /**
+     取出当前行并清空，与BufferedReader.readLine一样去掉行尾的回车符
+     @return 当前行的字符串
+     */
+    private String takeLine() {
+        int length = lineLength;
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        String result = new String(line, 0, length, StandardCharsets.UTF_8);
+        lineLength = 0;
+        return result;
+    }
+
+    /**
+     尽可能多地写出待发送的数据，写不完时关注可写事件，写完后恢复只关注可读事件
+     @throws IOException 如果写入通道时发生IO异常，则抛出该异常
+     */
+    private void flushPending() throws IOException {
+        while (!pending.isEmpty()) {
+            ByteBuffer buffer = pending.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            pending.poll();
+        }
+        if (closing) {
+            close();
+        } else if (key.isValid()) {
+            key.interestOps(verifying ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     待发送的数据全部写出后关闭连接
+     @throws IOException 如果写入通道时发生IO异常，则抛出该异常
+     */
+    private void closeWhenFlushed() throws IOException {
+        closing = true;
+        flushPending();
+    }
+
+    /**
+     关闭连接
+     */
+    public void close() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        //释放登录时登记的会话，取消回收器中的租约
+        authenticator.close();
+        if (lease != null) {
+            lease.close();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing client connection: " + e.getMessage());
+        }
+        //在服务器端输出提示信息
+        System.out.println("Client " + ip + " disconnected.");
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ 多连接并行传输类，把文件从offset到末尾的内容平均分成若干段，每条数据连接传输其中一段。
+ 每段以“文件总长度、段起始位置、段长度”三个8字节整数开头，后面是该段的原始字节。
+ 每条连接各自打开文件，用定位的transferTo/transferFrom读写，接收方在写入前把文件预分配为总长度。
+ 接收方以第一条连接给出的总长度为准，总长度不能超过磁盘的可用空间，各段不能重叠，也不能写到offset之前；
+ 只有各段全部收到、长度之和恰好等于offset之后的长度时传输才算完成
+ */
+public class ParallelTransfer {
+    // 要发送或接收的文件
+    private final Path filePath;
+    // 开始传输的位置
+    private final long offset;
+    // 分段数，即数据连接数
+    private final int streams;
+    // 发送方文件的总长度
+    private final long size;
+    // 下一条连接发送的段号
+    private final AtomicInteger nextRange = new AtomicInteger();
+    // 接收方：第一条连接给出的文件总长度，之前为-1，访问时对本对象加锁
+    private long total = -1;
+    // 接收方：已经接受的段，每个为{起始位置, 结束位置}
+    private final List<long[]> ranges = new ArrayList<>();
+    // 接收方：已经完整收到的字节数
+    private long received = 0;
+
+    /**
+     构造函数
+     @param filePath 要发送或接收的文件
+     @param offset 开始传输的位置，接收方会保留文件在此之前的内容
+     @param streams 分段数，即数据连接数
+     @throws IOException 如果读取文件长度失败，则抛出该异常
+     */
+    public ParallelTransfer(Path filePath, long offset, int streams) throws IOException {
+        this.filePath = filePath;
+        this.offset = offset;
+        this.streams = streams;
+        this.size = Files.exists(filePath) ? Files.size(filePath) : 0;
+    }
+
+    /**
+     在一条数据连接上发送下一段，每条连接调用一次
+     @param channel 数据连接通道
+     @throws IOException 如果读取文件或写入通道时发生IO异常，则抛出该异常
+     */
+    public void sendNextRange(SocketChannel channel) throws IOException {
+        int index = nextRange.getAndIncrement();
+        if (index >= streams) {
+            throw new IOException("Too many data connections.");
+        }
+        // 把[offset, size)平均分成streams段，第index段为[start, end)
+        long length = size - offset;
+        long start = offset + length * index / streams;
+        long end = offset + length * (index + 1) / streams;
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            FileTransfer.writeLong(channel, size);
+            FileTransfer.writeLong(channel, start);
+            FileTransfer.writeLong(channel, end - start);
+            FileTransfer.sendRange(fileChannel, start, end - start, channel);
+        }
+    }
+
+    /**
+     在一条数据连接上接收一段并写入文件的对应位置，每条连接调用一次
+     @param channel 数据连接通道
+     @throws IOException 如果段头部不合法，或者读取通道、写入文件时发生IO异常，则抛出该异常
+     */
+    public void receiveRange(SocketChannel channel) throws IOException {
+        long total = FileTransfer.readLong(channel);
+        long start = FileTransfer.readLong(channel);
+        long length = FileTransfer.readLong(channel);
+        long end;
+        try {
+            end = Math.addExact(start, length);
+        } catch (ArithmeticException e) {
+            end = -1;
+        }
+        if (start < offset || length < 0 || end < 0 || end > total) {
+            throw new IOException("Invalid range: " + start + "+" + length + " of " + total);
+        }
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            accept(fileChannel, total, start, end);
+            FileTransfer.receiveRange(channel, fileChannel, start, length);
+        }
+        synchronized (this) {
+            received += length;
+        }
+    }
+
+    /**
+     @return 接收方是否已经完整收到offset之后的全部内容
+     */
+    public synchronized boolean complete() {
+        return total >= 0 && received == total - offset;
+    }
+
+    /**
+     丢弃没有完成的接收：从头接收的文件被删除，断点续传的文件截回offset
+     @throws IOException 如果删除或截断文件失败，则抛出该异常
+     */
+    public void discard() throws IOException {
+        if (offset == 0) {
+            Files.deleteIfExists(filePath);
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.WRITE)) {
+            fileChannel.truncate(offset);
+        }
+    }
+
+    /**
+     检查并登记一段。第一段确定文件总长度并预分配文件，之后的段必须给出相同的总长度，且不能与已登记的段重叠
+     @param fileChannel 文件通道
+     @param total 该段给出的文件总长度
+     @param start 段起始位置
+     @param end 段结束位置
+     @throws IOException 如果总长度不一致、超过磁盘可用空间、段重叠，或者写入文件时发生IO异常，则抛出该异常
+     */
+    private synchronized void accept(FileChannel fileChannel, long total, long start, long end) throws IOException {
+        if (this.total < 0) {
+            long growth = total - fileChannel.size();
+            if (growth > 0 && growth > Files.getFileStore(filePath).getUsableSpace()) {
+                throw new IOException("Not enough disk space for " + total + " bytes.");
+            }
+            this.total = total;
+            if (fileChannel.size() > total) {
+                fileChannel.truncate(total);
+            } else if (fileChannel.size() < total) {
+                fileChannel.write(ByteBuffer.allocate(1), total - 1);
+            }
+        } else if (this.total != total) {
+            throw new IOException("Inconsistent file length: " + total + " (expected " + this.total + ")");
+        }
+        for (long[] range : ranges) {
+            if (start < range[1] && range[0] < end) {
+                throw new IOException("Overlapping range: " + start + "-" + end);
+            }
+        }
+        ranges.add(new long[]{start, end});
+    }
+}
@@ -0,0 +1,245 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ 会话恢复令牌类，所有会话共享。登录成功时为会话签发一个令牌，客户端重新连接时出示令牌即可恢复用户和当前目录，
+ 不必再经过用户名和密码的对话，服务器也不必再计算PBKDF2。
+ 令牌格式为“编号.过期时间.签名”，签名是用每个服务器进程随机生成的密钥计算的HMAC-SHA256，伪造或过期的令牌不查表即可拒绝。
+ 有效的令牌还必须在内存中的令牌表里：表按签发顺序排列，容量有上限，过期的令牌从最早签发的一端淘汰。
+ 令牌只能使用一次，恢复会话时换发新的令牌；会话切换目录时更新令牌记录的当前目录
+ */
+public class ResumeTokens {
+    // 签名算法
+    private static final String ALGORITHM = "HmacSHA256";
+    // 令牌编号的长度（字节）
+    private static final int ID_SIZE = 16;
+    // 默认的令牌有效期（分钟）
+    private static final int DEFAULT_TTL_MINUTES = 30;
+    // 默认的令牌表容量
+    private static final int DEFAULT_CAPACITY = 10000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    // 所有会话共享的令牌表
+    private static final ResumeTokens SHARED = new ResumeTokens(DEFAULT_TTL_MINUTES, DEFAULT_CAPACITY);
+
+    /**
+     一个已签发的令牌，记录会话的用户和当前目录
+     */
+    public static class Ticket {
+        // 完整的令牌字符串
+        private final String token;
+        // 过期时间（毫秒）
+        private final long expiresAt;
+        // 会话的用户
+        private final User user;
+        // 会话的根目录
+        private final String rootDir;
+        // 会话的当前目录，会话切换目录时更新
+        private volatile Path currentPath;
+
+        /**
+         构造函数
+         @param token 完整的令牌字符串
+         @param expiresAt 过期时间（毫秒）
+         @param user 会话的用户
+         @param rootDir 会话的根目录
+         @param currentPath 会话的当前目录
+         */
+        private Ticket(String token, long expiresAt, User user, String rootDir, Path currentPath) {
+            this.token = token;
+            this.expiresAt = expiresAt;
+            this.user = user;
+            this.rootDir = rootDir;
+            this.currentPath = currentPath;
+        }
+
+        /**
+         @return 发给客户端的令牌字符串
+         */
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         @return 会话的用户
+         */
+        public User getUser() {
+            return user;
+        }
+
+        /**
+         @return 会话的根目录
+         */
+        public String getRootDir() {
+            return rootDir;
+        }
+
+        /**
+         @return 会话的当前目录
+         */
+        public Path getCurrentPath() {
+            return currentPath;
+        }
+
+        /**
+         记录会话新的当前目录，恢复会话时回到该目录
+         @param path 新的当前目录
+         */
+        public void moveTo(Path path) {
+            this.currentPath = path;
+        }
+    }
+
+    // 签名密钥，每个服务器进程随机生成，服务器重启后原来的令牌全部失效
+    private final SecretKeySpec key;
+    // 按签发顺序排列的令牌，访问时对其加锁
+    private final LinkedHashMap<String, Ticket> tickets = new LinkedHashMap<>();
+    // 令牌有效期（毫秒），配置重新加载时可以改变，只影响之后签发的令牌
+    private volatile long ttlMillis;
+    // 令牌表容量，超出时淘汰最早签发的令牌
+    private volatile int capacity;
+
+    /**
+     构造函数
+     @param ttlMinutes 令牌有效期（分钟）
+     @param capacity 令牌表容量
+     */
+    public ResumeTokens(int ttlMinutes, int capacity) {
+        byte[] secret = new byte[32];
+        RANDOM.nextBytes(secret);
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.ttlMillis = ttlMinutes * 60_000L;
+        this.capacity = capacity;
+    }
+
+    /**
+     获取所有会话共享的令牌表
+     @return 共享的令牌表
+     */
+    public static ResumeTokens shared() {
+        return SHARED;
+    }
+
+    /**
+     按配置设置共享令牌表的有效期和容量，在服务器启动和配置重新加载时调用，已签发的令牌保留
+     @param ttlMinutes 令牌有效期（分钟）
+     @param capacity 令牌表容量
+     */
+    public static void configure(int ttlMinutes, int capacity) {
+        SHARED.ttlMillis = ttlMinutes * 60_000L;
+        SHARED.capacity = capacity;
+    }
+
+    /**
+     为会话签发新的令牌
+     @param user 会话的用户
+     @param rootDir 会话的根目录
+     @param currentPath 会话的当前目录
+     @return 签发的令牌
+     */
+    public Ticket issue(User user, String rootDir, Path currentPath) {
+        byte[] bytes = new byte[ID_SIZE];
+        RANDOM.nextBytes(bytes);
+        String id = ENCODER.encodeToString(bytes);
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        String payload = id + "." + Long.toString(expiresAt, 36);
+        Ticket ticket = new Ticket(payload + "." + sign(payload), expiresAt, user, rootDir, currentPath);
+        synchronized (tickets) {
+            tickets.put(id, ticket);
+            evict(System.currentTimeMillis());
+        }
+        return ticket;
+    }
+
+    /**
+     验证并收回令牌，令牌只能使用一次
+     @param token 客户端出示的令牌字符串
+     @return 令牌对应的记录，令牌格式或签名不正确、已经过期、已经使用或者已被淘汰时返回null
+     */
+    public Ticket redeem(String token) {
+        int dot = token.lastIndexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        String payload = token.substring(0, dot);
+        byte[] signature = token.substring(dot + 1).getBytes(StandardCharsets.US_ASCII);
+        if (!MessageDigest.isEqual(sign(payload).getBytes(StandardCharsets.US_ASCII), signature)) {
+            return null;
+        }
+        // 签名正确时格式一定是服务器生成的
+        String[] fields = payload.split("\\.");
+        long now = System.currentTimeMillis();
+        if (fields.length != 2 || Long.parseLong(fields[1], 36) <= now) {
+            return null;
+        }
+        synchronized (tickets) {
+            Ticket ticket = tickets.remove(fields[0]);
+            return ticket != null && ticket.expiresAt > now ? ticket : null;
+        }
+    }
+
+    /**
+     放回已经收回但没有用上的令牌，例如恢复会话时用户的会话数已满，客户端之后可以再次出示该令牌。
+     放回的令牌排在最后，可能比前面的令牌更早过期，收回时仍会检查过期时间
+     @param ticket redeem返回的令牌记录
+     */
+    public void restore(Ticket ticket) {
+        long now = System.currentTimeMillis();
+        if (ticket.expiresAt <= now) {
+            return;
+        }
+        String id = ticket.token.substring(0, ticket.token.indexOf('.'));
+        synchronized (tickets) {
+            tickets.putIfAbsent(id, ticket);
+            evict(now);
+        }
+    }
+
+    /**
+     @return 令牌表中的令牌数
+     */
+    public int size() {
+        synchronized (tickets) {
+            return tickets.size();
+        }
+    }
+
+    /**
+     从最早签发的一端淘汰过期的令牌，以及超出容量的令牌，调用者须持有令牌表的锁
+     @param now 当前时间（毫秒）
+     */
+    private void evict(long now) {
+        Iterator<Map.Entry<String, Ticket>> iterator = tickets.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Ticket eldest = iterator.next().getValue();
+            if (eldest.expiresAt > now && tickets.size() <= capacity) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     计算令牌内容的签名
+     @param payload 令牌的编号和过期时间
+     @return Base64编码的签名
+     */
+    private String sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return ENCODER.encodeToString(mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,6 +1,13 @@
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.util.List;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * 服务器类，用于启动服务器并监听客户端连接请求
@@ -8,51 +15,187 @@ import java.util.List;
 
 public class Server {
     private static final int DEFAULT_PORT = 8888; // 默认端口号
-    private static final int MAX_CLIENTS = 5; // 最大客户端连接数
+    private static final int MAX_CLIENTS = 5; // 默认的最大客户端连接数
+    private static final int MAX_QUEUED = 10; // 默认的最大等待连接数
+    private static final int FILE_CACHE_MB = 64; // 默认的文件内容缓存预算（MB）
+    private static final int FILE_CACHE_MAX_FILE_MB = 4; // 默认的可缓存单文件上限（MB）
+    private static final int LOG_FLUSH_MILLIS = 200; // 默认的日志批量写入间隔（毫秒）
+    private static final int MAX_SESSIONS_PER_USER = 1; // 默认的每个用户同时在线的会话数上限
+    private static final int RESUME_TOKEN_MINUTES = 30; // 默认的会话恢复令牌有效期（分钟）
+    private static final int RESUME_TOKEN_CAPACITY = 10000; // 默认的会话恢复令牌表容量
+    private static final int IDLE_TIMEOUT_SECONDS = 300; // 默认的空闲会话回收时限（秒）
+    private static final int TRANSFER_STALL_SECONDS = 120; // 默认的传输停滞回收时限（秒）
+    private static final int METRICS_PORT = 0; // 默认的指标HTTP端点端口，为0时不启动
+    private static final int CHUNK_SWEEP_MINUTES = 360; // 默认的去重存储标记清除间隔（分钟），为0时不清除
+    private static final String USER_RATE_PREFIX = "userRateKBps."; // 单独设置某个用户限速的设置项前缀
+    private static final String ENGINE_THREAD = "thread"; // 每个连接一个平台线程的服务器引擎
+    private static final String ENGINE_VIRTUAL = "virtual"; // 每个连接一个虚拟线程的服务器引擎
+    private static final String ENGINE_NIO = "nio"; // 基于Selector的NIO服务器引擎
 
-    private final List<User> users; // 用户列表
-    private final String rootDir; // 根目录路径
+    private final ConfigWatcher config; // 配置，文件修改后自动重新加载
+    private final String engine; // 服务器引擎
 
     /**
-     构造函数，从配置文件中读取用户列表和根目录路径，初始化相关属性
+     构造函数，从配置文件中读取用户列表、根目录路径和设置项，初始化相关属性。
+     用户、根目录、会话数和连接数上限、会话恢复令牌、回收时限和限速的设置在配置文件修改后立即生效，其余设置项只在启动时读取
      @param configPath 配置文件的路径
+     @param engine 服务器引擎，thread、virtual或nio
      @throws IOException 如果读取配置文件失败，则抛出该异常
      */
-    public Server(String configPath) throws IOException {
+    public Server(String configPath, String engine) throws IOException {
         // 读取配置文件，初始化用户列表和根目录路径
-        ConfigReader reader = new ConfigReader(configPath);
-        this.users = reader.getUsers();
-        this.rootDir = reader.getRootDir();
+        this.config = new ConfigWatcher(configPath);
+        this.engine = engine;
+        Config snapshot = config.current();
+        // 所有会话共享的异步日志记录器
+        Logger.open(System.getProperty("user.dir") + "\\src", snapshot.getIntSetting("logFlushMillis", LOG_FLUSH_MILLIS));
+        // 校验和索引保存在日志文件旁边
+        DigestIndex.open(System.getProperty("user.dir") + "\\src");
+        // 每个用户同时在线的会话数上限
+        SessionRegistry.configure(snapshot.getIntSetting("maxSessionsPerUser", MAX_SESSIONS_PER_USER));
+        config.onChange(next -> SessionRegistry.configure(next.getIntSetting("maxSessionsPerUser", MAX_SESSIONS_PER_USER)));
+        // 会话恢复令牌的有效期和令牌表容量
+        ResumeTokens.configure(snapshot.getIntSetting("resumeTokenMinutes", RESUME_TOKEN_MINUTES),
+                snapshot.getIntSetting("resumeTokenCapacity", RESUME_TOKEN_CAPACITY));
+        config.onChange(next -> ResumeTokens.configure(next.getIntSetting("resumeTokenMinutes", RESUME_TOKEN_MINUTES),
+                next.getIntSetting("resumeTokenCapacity", RESUME_TOKEN_CAPACITY)));
+        // 空闲会话和停滞传输的回收时限
+        SessionReaper.configure(snapshot.getIntSetting("idleTimeoutSeconds", IDLE_TIMEOUT_SECONDS),
+                snapshot.getIntSetting("transferStallSeconds", TRANSFER_STALL_SECONDS));
+        config.onChange(next -> SessionReaper.configure(next.getIntSetting("idleTimeoutSeconds", IDLE_TIMEOUT_SECONDS),
+                next.getIntSetting("transferStallSeconds", TRANSFER_STALL_SECONDS)));
+        // 全局、每个用户和每个会话的传输限速
+        configureBandwidth(snapshot);
+        config.onChange(Server::configureBandwidth);
+        // 去重存储的目录，配置文件中没有chunkStore设置项时不开启
+        ChunkStore.configure(snapshot.getSetting("chunkStore", null),
+                snapshot.getIntSetting("chunkSweepMinutes", CHUNK_SWEEP_MINUTES));
+        // 热点文件内容缓存的预算和单文件上限
+        FileCache.configure(snapshot.getIntSetting("fileCacheMB", FILE_CACHE_MB) * 1024L * 1024,
+                snapshot.getIntSetting("fileCacheMaxFileMB", FILE_CACHE_MAX_FILE_MB) * 1024L * 1024);
+        // 指标注册为JMX MBean，并在本机的metricsPort端口上提供纯文本的HTTP端点
+        Metrics.shared().gauge("sessions.loggedIn", SessionRegistry.shared()::total);
+        Metrics.shared().gauge("connections.open", SessionReaper.shared()::size);
+        Metrics.start(snapshot.getIntSetting("metricsPort", METRICS_PORT));
+    }
+
+    /**
+     按配置设置传输限速（KB/s，0表示不限速）：globalRateKBps为全局限速，userRateKBps为每个用户的默认限速，
+     userRateKBps.用户名为单独设置的用户限速，sessionRateKBps为每个会话的默认限速
+     @param config 配置
+     @throws IOException 如果设置项的值不是整数，则抛出该异常
+     */
+    private static void configureBandwidth(Config config) throws IOException {
+        Map<String, Long> userRates = new HashMap<>();
+        for (String name : config.settings().keySet()) {
+            if (name.startsWith(USER_RATE_PREFIX)) {
+                userRates.put(name.substring(USER_RATE_PREFIX.length()), config.getIntSetting(name, 0) * 1024L);
+            }
+        }
+        BandwidthScheduler.configure(config.getIntSetting("globalRateKBps", 0) * 1024L,
+                config.getIntSetting("userRateKBps", 0) * 1024L, userRates,
+                config.getIntSetting("sessionRateKBps", 0) * 1024L);
     }
 
     /**
      启动服务器并监听客户端连接请求
      */
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(DEFAULT_PORT)) {
-            System.out.println("Server started on port " + DEFAULT_PORT);
+        // 监视配置文件，修改后替换配置快照
+        config.start();
+        if (ENGINE_NIO.equals(engine)) {
+            startNio();
+            return;
+        }
+        // thread引擎为每个连接创建一个平台线程，virtual引擎为每个连接创建一个虚拟线程
+        ExecutorService executor = ENGINE_VIRTUAL.equals(engine) ? newVirtualExecutor() : Executors.newCachedThreadPool();
+        int maxClients;
+        AdmissionControl admission;
+        try {
+            maxClients = config.current().getIntSetting("maxClients", MAX_CLIENTS);
+            admission = new AdmissionControl(maxClients, config.current().getIntSetting("maxQueued", MAX_QUEUED));
+        } catch (IOException e) {
+            System.err.println("Failed to start server: " + e.getMessage());
+            return;
+        }
+        config.onChange(next -> admission.resize(next.getIntSetting("maxClients", MAX_CLIENTS),
+                next.getIntSetting("maxQueued", MAX_QUEUED)));
+        Metrics.shared().gauge("connections.active", admission::getActive);
+        Metrics.shared().gauge("connections.queued", admission::getQueued);
+        // 使用ServerSocketChannel监听，使接受的Socket带有通道，便于文件零拷贝传输
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(DEFAULT_PORT));
+            System.out.println("Server started on port " + DEFAULT_PORT + " (" + engine + ", max " + maxClients + " clients)");
 
             while (true) {
-                // 循环等待客户端连接请求，最多支持MAX_CLIENTS个客户端同时连接
-                if (Thread.activeCount() - 1 < MAX_CLIENTS) { // activeCount是包含主线程在内的线程数，因此要减去1
-                    ClientThread clientThread = new ClientThread(serverSocket.accept(), users, rootDir);
-                    clientThread.start();
-                } else {
-                    System.out.println("Maximum number of clients reached");
+                // 最多同时处理maxClients个客户端，超出的连接等待空闲的名额，等待的连接也满时拒绝新连接
+                SocketChannel channel = serverChannel.accept();
+                if (!admission.tryAdmit()) {
+                    reject(channel);
+                    continue;
                 }
+                ClientThread clientThread = new ClientThread(channel.socket(), config);
+                executor.execute(() -> admission.run(clientThread));
             }
         } catch (IOException e) {
             System.err.println("Failed to start server: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     创建每个任务一个虚拟线程的执行器。虚拟线程需要JDK 21，通过反射调用使服务器在更早的JDK上也能编译，
+     运行时不支持虚拟线程则退回平台线程
+     @return 执行器
+     */
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads require JDK 21, using platform threads instead.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     拒绝连接，通知客户端稍后重试并关闭连接
+     @param channel 被拒绝的连接
+     */
+    private void reject(SocketChannel channel) {
+        System.out.println("Maximum number of clients reached");
+        Metrics.shared().rejected();
+        try (channel) {
+            channel.write(ByteBuffer.wrap("Too many clients, please try again later.\n".getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            System.err.println("Failed to reject client: " + e.getMessage());
+        }
+    }
+
+    /**
+     使用NIO引擎启动服务器，事件循环线程数与CPU核数相同
+     */
+    private void startNio() {
+        try {
+            NioServer nioServer = new NioServer(config, DEFAULT_PORT, Runtime.getRuntime().availableProcessors());
+            nioServer.start();
+        } catch (IOException e) {
+            System.err.println("Failed to start server: " + e.getMessage());
         }
     }
 
     /**
      服务器的入口方法，创建服务器对象并启动FTP服务器
-     @param args 命令行参数
+     @param args 命令行参数，第一个参数可选，指定服务器引擎thread（默认）、virtual或nio
      */
     public static void main(String[] args) {
+        String engine = args.length > 0 ? args[0] : ENGINE_THREAD;
+        if (!ENGINE_THREAD.equals(engine) && !ENGINE_VIRTUAL.equals(engine) && !ENGINE_NIO.equals(engine)) {
+            System.err.println("Usage: java Server [" + ENGINE_THREAD + "|" + ENGINE_VIRTUAL + "|" + ENGINE_NIO + "]");
+            return;
+        }
         try {
-            Server server = new Server("src/config.txt");
+            Server server = new Server("src/config.txt", engine);
             server.start();
         } catch (IOException e) {
             System.err.println("Failed to start server: " + e.getMessage());
@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ 会话回收器类，所有会话共享。每个客户端连接建立时登记一个租约，收到一行输入时刷新；
+ 后台线程每秒检查一次，没有传输时超过空闲时限没有输入的会话，以及正在传输但超过停滞时限没有收发数据的会话，
+ 都会被关闭并记录日志，被遗弃的连接不再一直占用线程和连接名额。时限为0时不检查
+ */
+public class SessionReaper {
+    // 默认的空闲时限（秒）
+    private static final int DEFAULT_IDLE_SECONDS = 300;
+    // 默认的传输停滞时限（秒）
+    private static final int DEFAULT_STALL_SECONDS = 120;
+    // 检查的间隔（毫秒）
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    // 所有会话共享的回收器
+    private static final SessionReaper SHARED = new SessionReaper(DEFAULT_IDLE_SECONDS, DEFAULT_STALL_SECONDS);
+
+    // 已登记的租约
+    private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+    // 空闲时限（纳秒），配置重新加载时可以改变
+    private volatile long idleNanos;
+    // 传输停滞时限（纳秒），配置重新加载时可以改变
+    private volatile long stallNanos;
+
+    /**
+     一个客户端连接的租约，连接结束时关闭
+     */
+    public class Lease implements AutoCloseable {
+        // 客户端IP地址
+        private final String ip;
+        // 回收时关闭连接的方法
+        private final Runnable expire;
+        // 正在传输数据的连接
+        private final Set<SocketChannel> transfers = ConcurrentHashMap.newKeySet();
+        // 是否已经被回收
+        private final AtomicBoolean expired = new AtomicBoolean();
+        // 登录成功后的用户名，用于日志
+        private volatile String username;
+        // 最后一次收到输入或者传输结束的时间（纳秒）
+        private volatile long lastActive = System.nanoTime();
+        // 最后一次收发数据的时间（纳秒）
+        private volatile long lastProgress;
+
+        /**
+         构造函数
+         @param ip 客户端IP地址
+         @param expire 回收时关闭连接的方法
+         */
+        private Lease(String ip, Runnable expire) {
+            this.ip = ip;
+            this.expire = expire;
+        }
+
+        /**
+         收到一行输入时刷新租约
+         */
+        public void touch() {
+            lastActive = System.nanoTime();
+        }
+
+        /**
+         登录成功后记录用户名
+         @param username 用户名
+         */
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        /**
+         @return 是否已经因为空闲或者传输停滞被回收
+         */
+        public boolean isExpired() {
+            return expired.get();
+        }
+
+        /**
+         开始在连接上传输数据，传输期间不按空闲时限回收，而是按停滞时限检查数据收发
+         @param channel 传输数据的连接，可以是控制连接或者数据连接
+         @return 传输结束时关闭的登记
+         */
+        public Transfer transfer(SocketChannel channel) {
+            lastProgress = System.nanoTime();
+            transfers.add(channel);
+            TransferProgress.Listener listener = bytes -> lastProgress = System.nanoTime();
+            TransferProgress.watch(channel, listener);
+            return () -> {
+                TransferProgress.unwatch(channel, listener);
+                transfers.remove(channel);
+                touch();
+            };
+        }
+
+        /**
+         取消登记，连接结束时调用
+         */
+        @Override
+        public void close() {
+            leases.remove(this);
+        }
+
+        /**
+         @return 日志中的会话描述
+         */
+        private String describe() {
+            return username != null ? username : "Client " + ip;
+        }
+    }
+
+    /**
+     传输的登记，传输结束（无论成功与否）时关闭
+     */
+    public interface Transfer extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     构造函数，启动后台检查线程
+     @param idleSeconds 空闲时限（秒）
+     @param stallSeconds 传输停滞时限（秒）
+     */
+    private SessionReaper(int idleSeconds, int stallSeconds) {
+        setTimeouts(idleSeconds, stallSeconds);
+        Thread thread = new Thread(this::run, "session-reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     获取所有会话共享的回收器
+     @return 共享的会话回收器
+     */
+    public static SessionReaper shared() {
+        return SHARED;
+    }
+
+    /**
+     按配置设置共享回收器的时限，在服务器启动和配置重新加载时调用，对已登记的会话同样生效
+     @param idleSeconds 空闲时限（秒），为0时不回收空闲会话
+     @param stallSeconds 传输停滞时限（秒），为0时不回收停滞的传输
+     */
+    public static void configure(int idleSeconds, int stallSeconds) {
+        SHARED.setTimeouts(idleSeconds, stallSeconds);
+    }
+
+    /**
+     设置时限
+     @param idleSeconds 空闲时限（秒）
+     @param stallSeconds 传输停滞时限（秒）
+     */
+    private void setTimeouts(int idleSeconds, int stallSeconds) {
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        this.stallNanos = TimeUnit.SECONDS.toNanos(stallSeconds);
+    }
+
+    /**
+     为新的客户端连接登记租约
+     @param ip 客户端IP地址
+     @param expire 回收时关闭连接的方法，在回收器线程中调用
+     @return 登记的租约
+     */
+    public Lease open(String ip, Runnable expire) {
+        Lease lease = new Lease(ip, expire);
+        leases.add(lease);
+        return lease;
+    }
+
+    /**
+     @return 已登记的会话数
+     */
+    public int size() {
+        return leases.size();
+    }
+
+    /**
+     后台检查线程，每秒检查一次所有租约
+     */
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(CHECK_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Lease lease : leases) {
+                if (!lease.transfers.isEmpty()) {
+                    if (stallNanos > 0 && now - lease.lastProgress > stallNanos) {
+                        reap(lease, "transfer stalled for " + TimeUnit.NANOSECONDS.toSeconds(stallNanos) + " s");
+                    }
+                } else if (idleNanos > 0 && now - lease.lastActive > idleNanos) {
+                    reap(lease, "idle for " + TimeUnit.NANOSECONDS.toSeconds(idleNanos) + " s");
+                }
+            }
+        }
+    }
+
+    /**
+     回收会话：关闭正在传输的连接，再关闭控制连接，会话的所有者随后完成清理并释放名额
+     @param lease 要回收的租约
+     @param reason 日志中记录的原因
+     */
+    private void reap(Lease lease, String reason) {
+        if (!lease.expired.compareAndSet(false, true)) {
+            return;
+        }
+        leases.remove(lease);
+        Metrics.shared().reaped();
+        String message = lease.describe() + " " + reason + ", closing connection.";
+        Logger.shared().log(lease.ip, message + "\n");
+        System.out.println(message);
+        for (SocketChannel channel : lease.transfers) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing data connection: " + e.getMessage());
+            }
+        }
+        lease.expire.run();
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.Closeable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ 会话登记类，所有会话共享，按用户名记录每个用户当前的会话数。
+ 登录时在ConcurrentHashMap.compute中原子地检查并增加计数，两个同时的登录不会都通过检查；
+ 会话无论以何种方式结束（exit、连接断开或者异常）都由会话的所有者关闭Session，释放名额。
+ 匿名用户不受会话数限制，但同样计数
+ */
+public class SessionRegistry {
+    // 默认的每个用户同时在线的会话数上限
+    private static final int DEFAULT_MAX_SESSIONS_PER_USER = 1;
+    // 不受会话数限制的匿名用户名
+    private static final String ANONYMOUS = "anonymous";
+    // 所有会话共享的登记表
+    private static final SessionRegistry SHARED = new SessionRegistry(DEFAULT_MAX_SESSIONS_PER_USER);
+
+    // 每个用户同时在线的会话数上限，配置重新加载时可以改变，只影响之后的登录
+    private volatile int maxSessionsPerUser;
+    // 按用户名记录的会话数，没有会话的用户不在表中
+    private final ConcurrentHashMap<String, Integer> sessions = new ConcurrentHashMap<>();
+    // 所有用户的会话总数
+    private final AtomicInteger total = new AtomicInteger();
+
+    /**
+     一个已登记的会话，关闭时释放名额，多次关闭只释放一次
+     */
+    public class Session implements Closeable {
+        // 会话的用户名
+        private final String username;
+        // 是否已经释放
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        /**
+         构造函数
+         @param username 会话的用户名
+         */
+        private Session(String username) {
+            this.username = username;
+        }
+
+        /**
+         释放会话的名额
+         */
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                sessions.computeIfPresent(username, (name, count) -> count > 1 ? count - 1 : null);
+                total.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     构造函数
+     @param maxSessionsPerUser 每个用户同时在线的会话数上限
+     */
+    public SessionRegistry(int maxSessionsPerUser) {
+        this.maxSessionsPerUser = maxSessionsPerUser;
+    }
+
+    /**
+     获取所有会话共享的登记表
+     @return 共享的会话登记表
+     */
+    public static SessionRegistry shared() {
+        return SHARED;
+    }
+
+    /**
+     按配置设置共享登记表的会话数上限，在服务器启动和配置重新加载时调用，已登记的会话保留
+     @param maxSessionsPerUser 每个用户同时在线的会话数上限
+     */
+    public static void configure(int maxSessionsPerUser) {
+        SHARED.maxSessionsPerUser = maxSessionsPerUser;
+    }
+
+    /**
+     为用户登记一个新会话
+     @param username 用户名
+     @return 登记的会话，用户的会话数已达上限时返回null
+     */
+    public Session open(String username) {
+        boolean[] opened = new boolean[1];
+        sessions.compute(username, (name, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= maxSessionsPerUser && !ANONYMOUS.equals(name)) {
+                return count;
+            }
+            opened[0] = true;
+            return current + 1;
+        });
+        if (!opened[0]) {
+            return null;
+        }
+        total.incrementAndGet();
+        return new Session(username);
+    }
+
+    /**
+     获取用户当前的会话数
+     @param username 用户名
+     @return 会话数
+     */
+    public int count(String username) {
+        return sessions.getOrDefault(username, 0);
+    }
+
+    /**
+     @return 所有用户的会话总数
+     */
+    public int total() {
+        return total.get();
+    }
+
+    /**
+     @return 按用户名排序的当前会话数
+     */
+    public Map<String, Integer> snapshot() {
+        return new TreeMap<>(sessions);
+    }
+
+    /**
+     @return 每个用户同时在线的会话数上限
+     */
+    public int getMaxSessionsPerUser() {
+        return maxSessionsPerUser;
+    }
+}
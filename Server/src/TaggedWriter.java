@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ 带标签的输出流，用于流水线模式：把一条命令的应答的每一行都加上“标签 ”前缀后写入控制连接的输出流，
+ 客户端据此把应答与发出的命令对应起来。flush只把数据交给下层的输出流，不立即发送，
+ 由会话在没有更多待处理的输入时统一发送，这样一批命令的应答可以合并成少量的网络写操作
+ */
+public class TaggedWriter extends Writer {
+    // 控制连接的输出流
+    private final Writer out;
+    // 每行的前缀
+    private final String prefix;
+    // 下一个字符是否位于行首
+    private boolean lineStart = true;
+
+    /**
+     构造函数
+     @param tag 命令的标签
+     @param out 控制连接的输出流
+     */
+    public TaggedWriter(String tag, Writer out) {
+        this.out = out;
+        this.prefix = tag + " ";
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            if (lineStart) {
+                out.write(prefix);
+                lineStart = false;
+            }
+            // 找到本行的结尾，连同换行符一起写出
+            int i = off;
+            while (i < end && cbuf[i] != '\n') {
+                i++;
+            }
+            if (i < end) {
+                i++;
+                lineStart = true;
+            }
+            out.write(cbuf, off, i - off);
+            off = i;
+        }
+    }
+
+    @Override
+    public void flush() {
+        // 应答由会话统一发送
+    }
+
+    @Override
+    public void close() {
+        // 不关闭控制连接的输出流
+    }
+}
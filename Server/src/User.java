@@ -2,20 +2,18 @@
  用户类，用于表示系统中的用户。
  */
 public class User {
-    // 用户名和密码
+    // 用户名和加盐的密码哈希
     private final String username;
-    private final String password;
-    // 当前登录状态
-    private boolean loggedIn = false;
+    private final String passwordHash;
 
     /**
      构造函数，用于创建新用户对象。
      @param username 用户名
-     @param password 密码
+     @param passwordHash 加盐的密码哈希，见UserStore
      */
-    public User(String username, String password) {
+    public User(String username, String passwordHash) {
         this.username = username;
-        this.password = password;
+        this.passwordHash = passwordHash;
     }
 
     /**
@@ -27,26 +25,10 @@ public class User {
     }
 
     /**
-     获取密码。
-     @return 密码
+     获取密码哈希。
+     @return 密码哈希
      */
-    public String getPassword() {
-        return password;
-    }
-
-    /**
-     获取当前登录状态。
-     @return 当前登录状态
-     */
-    public boolean isLoggedIn() {
-        return loggedIn;
-    }
-
-    /**
-     设置用户登录状态。
-     @param loggedIn 登录状态
-     */
-    public void setLoggedIn(boolean loggedIn) {
-        this.loggedIn = loggedIn;
+    public String getPasswordHash() {
+        return passwordHash;
     }
 }
@@ -0,0 +1,235 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ 用户存储类，所有会话共享。用户按用户名放在并发哈希表中，登录时直接查找，耗时与用户数无关。
+ 密码只以加盐的PBKDF2哈希保存，格式为“pbkdf2-sha256$迭代次数$盐$哈希”（盐和哈希为Base64编码）。
+ PBKDF2故意很慢，因此最近验证成功的用户名和密码摘要保存在有界的LRU缓存中，频繁重连的客户端不再重复计算。
+ 配置重新加载时，配置文件中没有变化的用户沿用原来的哈希，验证缓存也继续使用
+ */
+public class UserStore {
+    // 密码哈希的前缀
+    private static final String PREFIX = "pbkdf2-sha256";
+    // PBKDF2的迭代次数，新计算的哈希使用该值，已有的哈希使用其中记录的值
+    private static final int ITERATIONS = 100_000;
+    // 盐的长度（字节）
+    private static final int SALT_SIZE = 16;
+    // 哈希的长度（位）
+    private static final int HASH_BITS = 256;
+    // 最近验证成功的记录数上限
+    private static final int RECENT_CAPACITY = 4096;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // 用户名不存在时也计算一次哈希，使登录失败的耗时与用户是否存在无关
+    private static final String DUMMY_HASH = hash("");
+
+    /**
+     一次验证成功的记录
+     @param passwordHash 验证时用户的密码哈希，密码修改后记录失效
+     @param digest 用户名和密码的快速摘要，不保存明文密码
+     */
+    private record Verified(String passwordHash, byte[] digest) {
+    }
+
+    // 按用户名索引的用户
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    // 每个用户在配置文件中的密码字段的快速摘要，用于重新加载时判断是否变化
+    private final Map<String, byte[]> sources = new ConcurrentHashMap<>();
+    // 按访问顺序排列的验证记录，超出上限时淘汰最久未使用的，重新加载后继续使用
+    private final LinkedHashMap<String, Verified> recent;
+    // 计算快速摘要时加在前面的随机值，每个服务器进程不同
+    private final byte[] pepper;
+
+    /**
+     构造函数
+     @param previous 上一次加载的用户存储，为null时创建新的验证缓存
+     */
+    private UserStore(UserStore previous) {
+        if (previous != null) {
+            this.recent = previous.recent;
+            this.pepper = previous.pepper;
+            return;
+        }
+        this.recent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+                return size() > RECENT_CAPACITY;
+            }
+        };
+        this.pepper = new byte[32];
+        RANDOM.nextBytes(pepper);
+    }
+
+    /**
+     根据配置文件中的用户建立索引，同名的用户以第一个为准。明文密码计算加盐哈希（并行计算），内存中不保留明文；
+     与上一次加载相比密码字段没有变化的用户直接沿用原来的用户对象
+     @param accounts 配置文件中的用户，每项为用户名和密码字段
+     @param previous 上一次加载的用户存储，第一次加载时为null
+     @return 用户存储
+     */
+    public static UserStore load(List<String[]> accounts, UserStore previous) {
+        UserStore store = new UserStore(previous);
+        List<User> users = accounts.parallelStream().map(account -> {
+            User unchanged = previous != null ? previous.unchanged(account[0], account[1]) : null;
+            return unchanged != null ? unchanged : new User(account[0], isHash(account[1]) ? account[1] : hash(account[1]));
+        }).toList();
+        for (int i = 0; i < users.size(); i++) {
+            String username = users.get(i).getUsername();
+            if (store.users.putIfAbsent(username, users.get(i)) == null) {
+                store.sources.put(username, store.digest(username, accounts.get(i)[1]));
+            }
+        }
+        return store;
+    }
+
+    /**
+     查找密码字段没有变化的用户
+     @param username 用户名
+     @param secret 配置文件中的密码字段
+     @return 原来的用户对象，用户不存在或者密码字段已经变化时返回null
+     */
+    private User unchanged(String username, String secret) {
+        byte[] source = sources.get(username);
+        return source != null && MessageDigest.isEqual(source, digest(username, secret)) ? users.get(username) : null;
+    }
+
+    /**
+     验证用户名和密码
+     @param username 用户名
+     @param password 密码
+     @return 验证成功的用户，用户名不存在或者密码错误时返回null
+     */
+    public User authenticate(String username, String password) {
+        User user = users.get(username);
+        byte[] digest = digest(username, password);
+        if (user != null) {
+            Verified verified;
+            synchronized (recent) {
+                verified = recent.get(username);
+            }
+            if (verified != null && verified.passwordHash().equals(user.getPasswordHash())
+                    && MessageDigest.isEqual(verified.digest(), digest)) {
+                return user;
+            }
+        }
+        if (!verify(password, user != null ? user.getPasswordHash() : DUMMY_HASH) || user == null) {
+            return null;
+        }
+        synchronized (recent) {
+            recent.put(username, new Verified(user.getPasswordHash(), digest));
+        }
+        return user;
+    }
+
+    /**
+     按用户名查找用户，不验证密码
+     @param username 用户名
+     @return 用户，用户名不存在时返回null
+     */
+    public User find(String username) {
+        return users.get(username);
+    }
+
+    /**
+     @return 用户数
+     */
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     计算密码的加盐哈希
+     @param password 密码
+     @return “pbkdf2-sha256$迭代次数$盐$哈希”格式的哈希
+     */
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_SIZE];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PREFIX + "$" + ITERATIONS + "$" + encoder.encodeToString(salt) + "$"
+                + encoder.encodeToString(pbkdf2(password, salt, ITERATIONS));
+    }
+
+    /**
+     判断配置文件中的密码是否已经是哈希
+     @param secret 配置文件中的密码字段
+     @return 是否是哈希
+     */
+    public static boolean isHash(String secret) {
+        return secret.startsWith(PREFIX + "$");
+    }
+
+    /**
+     验证密码与哈希是否一致，比较的耗时与内容无关
+     @param password 密码
+     @param passwordHash 哈希
+     @return 是否一致，哈希格式不正确时返回false
+     */
+    public static boolean verify(String password, String passwordHash) {
+        String[] parts = passwordHash.split("\\$");
+        if (parts.length != 4 || !parts[0].equals(PREFIX)) {
+            return false;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] expected = decoder.decode(parts[3]);
+            return MessageDigest.isEqual(pbkdf2(password, decoder.decode(parts[2]), Integer.parseInt(parts[1])), expected);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     计算PBKDF2-HMAC-SHA256
+     @param password 密码
+     @param salt 盐
+     @param iterations 迭代次数
+     @return 哈希
+     */
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Invalid iteration count: " + iterations);
+        }
+        try {
+            KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     计算用户名和密码的快速摘要，只用于验证缓存
+     @param username 用户名
+     @param password 密码
+     @return SHA-256摘要
+     */
+    private byte[] digest(String username, String password) {
+        MessageDigest sha256 = DedupTransfer.sha256();
+        sha256.update(pepper);
+        sha256.update(username.getBytes(StandardCharsets.UTF_8));
+        sha256.update((byte) 0);
+        return sha256.digest(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     计算密码的哈希并输出，用于在配置文件中保存哈希而不是明文密码
+     @param args 要计算哈希的密码
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: java UserStore <password>");
+            return;
+        }
+        System.out.println(hash(args[0]));
+    }
+}